@@ -0,0 +1,423 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Library;
+import com.qizx.api.LibraryMember;
+import com.qizx.api.Node;
+import com.qizx.api.NonXMLDocument;
+import com.qizx.api.QName;
+import com.qizx.api.QizxException;
+import com.qizx.api.XMLPushStream;
+import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.JSONReader;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.RequestException;
+import com.qizx.util.basic.PathUtil;
+import com.qizx.xdm.DocumentParser;
+import com.qizx.xdm.IQName;
+
+import com.xmlmind.multipartreq.Part;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+
+/**
+ * Executes a list of update operations (put, putnonxml, setprop, move, copy,
+ * delete) in a single session, with a single commit or a commit every N
+ * operations.
+ * <p>
+ * The list is given by parameter 'manifest', either in XML:
+ * <pre>
+ * &lt;batch>
+ *   &lt;put path="/a/doc.xml">&lt;doc>...&lt;/doc>&lt;/put>
+ *   &lt;put path="/a/big.xml" part="data1"/>
+ *   &lt;setprop path="/a/doc.xml" name="status" type="string">draft&lt;/setprop>
+ *   &lt;move src="/a/old.xml" dst="/b"/>
+ * &lt;/batch>
+ * </pre>
+ * or in JSON, as an array of objects with the same names plus "op":
+ * <pre>
+ * [ {"op":"put", "path":"/a/doc.xml", "data":"&lt;doc/>"},
+ *   {"op":"delete", "path":"/a/old.xml"} ]
+ * </pre>
+ * When an operation fails, the session is rolled back to the last commit,
+ * so that no partial change is committed: the operations done since then
+ * are reported with status 'rolledback', and processing continues with the
+ * next operation. With commit=1, each operation is atomic.
+ */
+public class BatchRequest extends QizxRequestBase
+{
+    static final QName NM_BATCH = IQName.get("batch");
+    static final QName NM_ITEM = IQName.get("item");
+    static final QName NM_COMMIT = IQName.get("commit");
+    static final QName NM_SUMMARY = IQName.get("summary");
+    static final QName NM_RANK = IQName.get("rank");
+    static final QName NM_OP = IQName.get("op");
+    static final QName NM_STATUS = IQName.get("status");
+    static final QName NM_COUNT = IQName.get("count");
+    static final QName NM_ERRORS = IQName.get("errors");
+    static final QName NM_COMMITS = IQName.get("commits");
+    static final QName NM_ROLLEDBACK = IQName.get("rolledback");
+
+    private static final String OK = "ok";
+    private static final String ERROR = "error";
+    private static final String ROLLEDBACK = "rolledback";
+
+    // an operation of the manifest
+    static class Operation
+    {
+        String name;
+        Map<String, String> params = new HashMap<String, String>();
+        Node content;   // inline XML data (XML manifest only)
+
+        String get(String param)
+        {
+            String value = params.get(param);
+            return (value == null || value.length() == 0)? null : value;
+        }
+    }
+
+    // result of an operation, reported once committed or rolled back
+    static class Outcome
+    {
+        int rank;
+        String op;
+        String status;
+        String result;
+    }
+
+    public String getName()
+    {
+        return "batch";
+    }
+
+    public void handlePost()
+        throws ServletException, IOException
+    {
+        String libName = getLibraryParam();
+        String manifest = getParameter("manifest");
+        if(manifest == null) { // in a part?
+            manifest = getPartAsString("manifest");
+            if(manifest == null)
+                requiredParam("manifest");
+        }
+        int commitRate = getIntParameter("commit", 0);
+
+        List<Operation> operations = JSONReader.isJSON(manifest)?
+                parseJSONManifest(manifest) : parseXMLManifest(manifest);
+        try {
+            Library lib = acquireLibSession(libName);
+            response.setContentType(MIME_XML);
+
+            XMLSerializer out = new XMLSerializer(output, "UTF-8");
+            out.putDocumentStart();
+            out.putElementStart(NM_BATCH);
+
+            int rank = 0, errorCount = 0, rolledBack = 0, commits = 0;
+            ArrayList<Outcome> uncommitted = new ArrayList<Outcome>();
+            for(Operation op : operations)
+            {
+                Outcome outcome = new Outcome();
+                outcome.rank = ++ rank;
+                outcome.op = op.name;
+                boolean failed = true;
+                try {
+                    outcome.result = execute(lib, op);
+                    failed = false;
+                }
+                catch (RequestException e) {
+                    outcome.result = e.code + ": " + errorMessage(e);
+                }
+                catch (QizxException e) {
+                    outcome.result = XML_DATA + ": " + e.getMessage();
+                }
+
+                outcome.status = failed? ERROR : OK;
+                if(failed) {
+                    // discard partial changes with those of previous
+                    // uncommitted operations
+                    ++ errorCount;
+                    rollback(lib);
+                    for(Outcome o : uncommitted)
+                        o.status = ROLLEDBACK;
+                    rolledBack += uncommitted.size();
+                    uncommitted.add(outcome);
+                    putOutcomes(out, uncommitted);
+                    continue;
+                }
+                uncommitted.add(outcome);
+                if(commitRate > 0 && uncommitted.size() >= commitRate) {
+                    commit(lib);
+                    ++ commits;
+                    putOutcomes(out, uncommitted);
+                    out.putElementStart(NM_COMMIT);
+                    out.putAttribute(NM_COUNT, Integer.toString(rank), null);
+                    out.putElementEnd(NM_COMMIT);
+                    out.flush();
+                }
+            }
+            if(lib.isModified()) {
+                commit(lib);
+                ++ commits;
+            }
+            putOutcomes(out, uncommitted);
+            log("batch of " + rank + " operations, " + errorCount
+                + " error(s), " + rolledBack + " rolled back, "
+                + commits + " commit(s)");
+
+            out.putElementStart(NM_SUMMARY);
+            out.putAttribute(NM_COUNT, Integer.toString(rank), null);
+            out.putAttribute(NM_ERRORS, Integer.toString(errorCount), null);
+            out.putAttribute(NM_ROLLEDBACK, Integer.toString(rolledBack),
+                             null);
+            out.putAttribute(NM_COMMITS, Integer.toString(commits), null);
+            out.putElementEnd(NM_SUMMARY);
+            out.putElementEnd(NM_BATCH);
+            out.putDocumentEnd();
+            out.flush();
+        }
+        catch (DataModelException e) {
+            log("batch: dm error " + e);
+            throw new RequestException(e);
+        }
+    }
+
+    // writes and clears outcomes
+    private static void putOutcomes(XMLSerializer out, List<Outcome> outcomes)
+        throws DataModelException
+    {
+        for(Outcome o : outcomes) {
+            out.putElementStart(NM_ITEM);
+            out.putAttribute(NM_RANK, Integer.toString(o.rank), null);
+            out.putAttribute(NM_OP, o.op, null);
+            out.putAttribute(NM_STATUS, o.status, null);
+            if(o.result != null)
+                out.putText(o.result);
+            out.putElementEnd(NM_ITEM);
+        }
+        outcomes.clear();
+    }
+
+    /**
+     * Executes an operation, returns the path of the resulting member.
+     */
+    private String execute(Library lib, Operation op)
+        throws QizxException, RequestException, IOException
+    {
+        String path = op.get("path");
+        if("put".equals(op.name)) {
+            path = PathUtil.normalizePath(requireValue(op, "path"), true);
+            try {
+                if(op.content != null) {
+                    XMLPushStream stream = lib.beginImportDocument(path);
+                    try {
+                        stream.putDocumentStart();
+                        stream.putNodeCopy(op.content, 0);
+                        stream.putDocumentEnd();
+                    }
+                    catch (DataModelException e) {
+                        lib.cancelImportDocument();
+                        throw e;
+                    }
+                    lib.endImportDocument();
+                }
+                else {
+                    InputSource data = openSource(op);
+                    lib.importDocument(path, data);
+                }
+            }
+            catch (DataModelException e) {
+                throw new RequestException(XML_DATA,
+                                    PutRequest.importError(e, path));
+            }
+            return path;
+        }
+        else if("putnonxml".equals(op.name)) {
+            path = PathUtil.normalizePath(requireValue(op, "path"), true);
+            Part content = requirePart(op);
+            InputStream stream = content.getInputStream();
+            NonXMLDocument doc;
+            try {
+                doc = lib.importNonXMLDocument(path, false, stream);
+            }
+            finally {
+                stream.close();
+            }
+            String mimeType = op.get("content-type");
+            if(mimeType == null)
+                mimeType = content.getContentType();
+            if(mimeType != null)
+                doc.setProperty(MIME_PROPERTY, mimeType);
+            doc.setIntegerProperty("size", content.getSize());
+            return path;
+        }
+        else if("setprop".equals(op.name)) {
+            LibraryMember member = requireMember(lib, path);
+            String name = requireValue(op, "name");
+            String type = op.get("type");
+            String value = op.get("value");
+            if(value == null && op.content != null)
+                value = new XMLSerializer().serializeToString(op.content);
+            if(value == null)
+                requiredParam("value");
+            member.setProperty(name, SetPropRequest.convertValue(lib,
+                                     type == null? "string" : type, value));
+            return member.getPath();
+        }
+        else if("move".equals(op.name)) {
+            LibraryMember src = requireMember(lib, op.get("src"));
+            return MoveRequest.move(lib, src, requireValue(op, "dst")).getPath();
+        }
+        else if("copy".equals(op.name)) {
+            LibraryMember src = requireMember(lib, op.get("src"));
+            return CopyRequest.copy(lib, src, requireValue(op, "dst")).getPath();
+        }
+        else if("delete".equals(op.name)) {
+            LibraryMember member = lib.getMember(requireValue(op, "path"));
+            if(member == null)
+                return null;
+            member.delete();
+            return member.getPath();
+        }
+        throw new RequestException(BAD_REQUEST,
+                                   "unknown batch operation '" + op.name + "'");
+    }
+
+    private String requireValue(Operation op, String param)
+        throws RequestException
+    {
+        String value = op.get(param);
+        if(value == null)
+            requiredParam(param);
+        return value;
+    }
+
+    private Part requirePart(Operation op)
+        throws RequestException, IOException
+    {
+        String name = requireValue(op, "part");
+        try {
+            Part part = getPart(name);
+            if(part == null)
+                throw new RequestException(BAD_REQUEST,
+                                           "no data for parameter " + name);
+            return part;
+        }
+        catch (ServletException e) {
+            throw new RequestException(SERVER, e);
+        }
+    }
+
+    // XML data for a put: either in 'data' or in a part
+    private InputSource openSource(Operation op)
+        throws RequestException, IOException
+    {
+        String data = op.get("data");
+        if(data != null)
+            return new InputSource(new StringReader(data));
+        return new InputSource(requirePart(op).getInputStream());
+    }
+
+    private static String errorMessage(RequestException e)
+    {
+        Throwable cause = e.getCause();
+        if(cause != null && cause.getMessage() != null)
+            return cause.getMessage();
+        return e.getMessage();
+    }
+
+    private List<Operation> parseXMLManifest(String manifest)
+        throws RequestException, IOException
+    {
+        ArrayList<Operation> operations = new ArrayList<Operation>();
+        try {
+            Node root = DocumentParser.parse(new InputSource(new StringReader(manifest)));
+            root = firstElement(root);
+            if(root == null)
+                throw new RequestException(BAD_REQUEST, "empty manifest");
+            for(Node node = firstElement(root); node != null;
+                node = nextElement(node))
+            {
+                Operation op = new Operation();
+                op.name = node.getNodeName().getLocalPart();
+                Node[] attributes = node.getAttributes();
+                for(int i = 0; attributes != null && i < attributes.length; i++)
+                    op.params.put(attributes[i].getNodeName().getLocalPart(),
+                                  attributes[i].getStringValue());
+                op.content = firstElement(node);
+                if(op.content == null && !op.params.containsKey("value"))
+                    op.params.put("value", node.getStringValue());
+                operations.add(op);
+            }
+        }
+        catch (SAXException e) {
+            throw new RequestException(BAD_REQUEST, e);
+        }
+        catch (DataModelException e) {
+            throw new RequestException(BAD_REQUEST, e);
+        }
+        return operations;
+    }
+
+    private List<Operation> parseJSONManifest(String manifest)
+        throws RequestException
+    {
+        Object json = JSONReader.parse(manifest);
+        if(json instanceof Map<?, ?>)
+            json = ((Map<?, ?>) json).get("operations");
+        if(!(json instanceof List<?>))
+            throw new RequestException(BAD_REQUEST,
+                                       "manifest should be an array of operations");
+        ArrayList<Operation> operations = new ArrayList<Operation>();
+        for(Object item : (List<?>) json) {
+            if(!(item instanceof Map<?, ?>))
+                throw new RequestException(BAD_REQUEST,
+                                       "operation should be a JSON object");
+            Operation op = new Operation();
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>) item).entrySet()) {
+                Object value = entry.getValue();
+                op.params.put((String) entry.getKey(),
+                              value == null? null : value.toString());
+            }
+            op.name = op.params.remove("op");
+            if(op.name == null)
+                throw new RequestException(BAD_REQUEST, "operation without 'op'");
+            operations.add(op);
+        }
+        return operations;
+    }
+
+    private static Node firstElement(Node node)
+        throws DataModelException
+    {
+        Node child = node.getFirstChild();
+        return (child == null || child.isElement())? child : nextElement(child);
+    }
+
+    private static Node nextElement(Node node)
+        throws DataModelException
+    {
+        node = node.getNextSibling();
+        while(node != null && !node.isElement())
+            node = node.getNextSibling();
+        return node;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.server.util.QizxDriver;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.QueryRegistry;
+import com.qizx.server.util.QueryRegistry.RunningQuery;
+import com.qizx.server.util.RequestException;
+
+import java.io.IOException;
+
+/**
+ * Cancels a running query (see 'queries'). Allowed to the owner of the
+ * query and to administrators. The request evaluating the query fails with
+ * error code 'Cancelled'.
+ */
+public class CancelRequest extends QizxRequestBase
+{
+    public String getName()
+    {
+        return "cancel";
+    }
+
+    public void handlePost()
+        throws RequestException, IOException
+    {
+        String id = getParameter("id");
+        if(id == null)
+            requiredParam("id");
+        QizxDriver driver = requireQizxDriver();
+        QueryRegistry registry = driver.getQueryRegistry();
+        RunningQuery query = registry.get(id);
+        if(query == null)
+            throw new RequestException(NOT_FOUND, "no running query " + id);
+        String user = getUserName();
+        boolean owner = (user == null)? query.getUser() == null
+                                      : user.equals(query.getUser());
+        if(!owner && !isAdmin(driver))
+            throw new RequestException(ACCESS,
+                             "query " + id + " belongs to another user");
+        registry.cancel(query, user);
+        log("query " + id + " of " + query.getUser() + " cancelled by " + user);
+        response.setContentType(MIME_PLAIN_TEXT);
+        println(id);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.server.util.CursorRegistry;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.RequestException;
+
+import java.io.IOException;
+
+/**
+ * Closes a cursor opened by eval, releasing its resources on the server.
+ */
+public class CloseCursorRequest extends QizxRequestBase
+{
+    public String getName()
+    {
+        return "closecursor";
+    }
+
+    public void handleGet()
+        throws RequestException, IOException
+    {
+        handlePost();
+    }
+
+    public void handlePost()
+        throws RequestException, IOException
+    {
+        String id = getParameter("cursor");
+        if(id == null)
+            requiredParam("cursor");
+        CursorRegistry registry = requireQizxDriver().getCursorRegistry();
+        if(registry == null)
+            throw new RequestException(BAD_REQUEST, "cursors are disabled");
+        registry.close(registry.acquire(id, getUserName(), this));
+        response.setContentType(MIME_PLAIN_TEXT);
+        println(id);
+    }
+}
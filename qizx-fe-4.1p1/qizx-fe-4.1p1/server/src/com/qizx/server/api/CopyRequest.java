@@ -39,34 +39,8 @@ public class CopyRequest extends QizxRequestBase
             response.setContentType(MIME_PLAIN_TEXT);
 
             LibraryMember src = requireMember(lib, srcPath);
-            LibraryMember dst = lib.getMember(dstPath);
-            LibraryMember result = null;
-
-            if(src.isCollection()) {
-                if(dst == null)
-                    result = lib.copyMember(srcPath, dstPath);
-                else if(dst.isCollection()) {
-                    dstPath = PathUtil.makePath(dstPath,
-                                                PathUtil.getBaseName(srcPath));
-                    result = lib.copyMember(srcPath, dstPath);
-                }
-                else throw new RequestException(XML_DATA,
-                                         "cannot copy Collection to Document");
-            }
-            else {
-                if(dst != null) {
-                    if(dst.isCollection()) {
-                        dstPath = PathUtil.makePath(dstPath,
-                                                    PathUtil.getBaseName(srcPath));
-                        dst = lib.getMember(dstPath);
-                    }
-                    if(dst != null) {
-                        dst.delete(); 
-                    }
-                }
-                result = lib.copyMember(srcPath, dstPath);             
-            }
-            lib.commit();
+            LibraryMember result = copy(lib, src, dstPath);
+            commit(lib);
             if(result != null)
                 println(result.getPath());
         }
@@ -74,4 +48,39 @@ public class CopyRequest extends QizxRequestBase
             throw new RequestException(e);
         }
     }
+
+    /**
+     * Copies a member: if the destination is an existing Collection, the copy
+     * is created inside it. An existing destination Document is replaced.
+     * @return the copy
+     */
+    static LibraryMember copy(Library lib, LibraryMember src, String dstPath)
+        throws QizxException, RequestException
+    {
+        String srcPath = src.getPath();
+        LibraryMember dst = lib.getMember(dstPath);
+
+        if(src.isCollection()) {
+            if(dst == null)
+                return lib.copyMember(srcPath, dstPath);
+            else if(dst.isCollection()) {
+                dstPath = PathUtil.makePath(dstPath,
+                                            PathUtil.getBaseName(srcPath));
+                return lib.copyMember(srcPath, dstPath);
+            }
+            else throw new RequestException(XML_DATA,
+                                     "cannot copy Collection to Document");
+        }
+        if(dst != null) {
+            if(dst.isCollection()) {
+                dstPath = PathUtil.makePath(dstPath,
+                                            PathUtil.getBaseName(srcPath));
+                dst = lib.getMember(dstPath);
+            }
+            if(dst != null) {
+                dst.delete(); 
+            }
+        }
+        return lib.copyMember(srcPath, dstPath);             
+    }
 }
@@ -11,6 +11,7 @@ package com.qizx.server.api;
 import com.qizx.api.Library;
 import com.qizx.api.LibraryMember;
 import com.qizx.api.QizxException;
+import com.qizx.server.util.GroupCommitter;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
 
@@ -30,22 +31,44 @@ public class DeleteRequest extends QizxRequestBase
         throws RequestException, IOException
     {
         String libName = getLibraryParam();
-        String path = getPathParam();
+        final String path = getPathParam();
 
         try {
+            GroupCommitter group = requireQizxDriver().getGroupCommitter(libName);
+            if(group != null) {
+                String result = group.execute(libName, this,
+                                              new GroupCommitter.Write() {
+                    public String apply(Library lib)
+                        throws QizxException
+                    {
+                        return delete(lib, path);
+                    }
+                });
+                response.setContentType(MIME_PLAIN_TEXT);
+                println(result);
+                return;
+            }
+
             Library lib = acquireLibSession(libName);
             response.setContentType(MIME_PLAIN_TEXT);
-            LibraryMember member = lib.getMember(path);
-            if(member == null)
-                println("");
-            else {
-                member.delete();
-                lib.commit();
-                println(member.getPath());
-            }
+            String deleted = delete(lib, path);
+            if(deleted.length() > 0)
+                commit(lib);
+            println(deleted);
         }
         catch (QizxException e) {
             throw new RequestException(e);
         }
     }
+
+    // returns the path of the deleted member, or "" if not found
+    private static String delete(Library lib, String path)
+        throws QizxException
+    {
+        LibraryMember member = lib.getMember(path);
+        if(member == null)
+            return "";
+        member.delete();
+        return member.getPath();
+    }
 }
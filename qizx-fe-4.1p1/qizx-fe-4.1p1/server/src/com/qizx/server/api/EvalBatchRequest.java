@@ -0,0 +1,467 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.api.CompilationException;
+import com.qizx.api.DataModelException;
+import com.qizx.api.EvaluationException;
+import com.qizx.api.Expression;
+import com.qizx.api.ItemSequence;
+import com.qizx.api.Library;
+import com.qizx.api.Node;
+import com.qizx.api.QName;
+import com.qizx.api.QizxException;
+import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.CursorRegistry.TimeLimit;
+import com.qizx.server.util.ExpressionCache;
+import com.qizx.server.util.JSONReader;
+import com.qizx.server.util.QizxDriver;
+import com.qizx.server.util.QueryRegistry.RunningQuery;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.RequestException;
+import com.qizx.server.util.ResourceLimits;
+import com.qizx.xdm.DocumentParser;
+import com.qizx.xdm.IQName;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletException;
+
+/**
+ * Evaluates several independent queries concurrently, each on its own
+ * session, possibly on different Libraries.
+ * <p>
+ * The queries are given by parameter 'manifest', either in XML:
+ * <pre>
+ * &lt;evalbatch>
+ *   &lt;query name="orders" library="sales">count(//order)&lt;/query>
+ *   &lt;query name="latest" count="10">//news[last()]&lt;/query>
+ * &lt;/evalbatch>
+ * </pre>
+ * or in JSON, as an array of objects with the same names:
+ * <pre>
+ * [ {"name":"orders", "library":"sales", "query":"count(//order)"} ]
+ * </pre>
+ * The default Library is given by parameter 'library'. The time limit
+ * (parameter 'maxtime', or the configured eval_time_out) is a deadline
+ * shared by all queries: a query still running or not started when it is
+ * reached fails with a TimeOut error. Limits on items and memory apply to
+ * each query, the limit on bytes to the whole response.
+ * <p>
+ * The response contains one element 'query' per query, in order of
+ * completion, with the items in the same form as 'eval' with format=items,
+ * or an error message. Updates made by queries are not committed.
+ */
+public class EvalBatchRequest extends QizxRequestBase
+{
+    static final QName NM_EVALBATCH = IQName.get("evalbatch");
+    static final QName NM_QUERY = IQName.get("query");
+    static final QName NM_SUMMARY = IQName.get("summary");
+    static final QName NM_NAME = IQName.get("name");
+    static final QName NM_STATUS = IQName.get("status");
+    static final QName NM_COUNT = IQName.get("count");
+    static final QName NM_ERRORS = IQName.get("errors");
+    static final QName NM_TIME = IQName.get("time");
+
+    private static final String OK = "ok";
+    private static final String ERROR = "error";
+
+    // a query of the manifest
+    static class Query
+    {
+        String name;
+        String library;
+        String text;
+        int count = -1;
+    }
+
+    // serialized result of a query
+    static class Section
+    {
+        Query query;
+        boolean failed;
+        byte[] data;
+    }
+
+    private String userName;    // read in the request thread only
+    private ResourceLimits limits;
+
+    public String getName()
+    {
+        return "evalbatch";
+    }
+
+    public void handlePost()
+        throws ServletException, IOException
+    {
+        String libName = getLibraryParam();
+        String manifest = getParameter("manifest");
+        if(manifest == null) { // in a part?
+            manifest = getPartAsString("manifest");
+            if(manifest == null)
+                requiredParam("manifest");
+        }
+        int maxTime = getIntParameter("maxtime", -1);
+
+        QizxDriver driver = requireQizxDriver();
+        userName = getUserName();
+        limits = getQueryLimits();
+        List<Query> queries = JSONReader.isJSON(manifest)?
+                parseJSONManifest(manifest) : parseXMLManifest(manifest);
+        for(Query q : queries)
+            if(q.library == null)
+                q.library = libName;
+        if(queries.size() > driver.getEvalBatchMax())
+            throw new RequestException(BAD_REQUEST, "too many queries: "
+                                       + queries.size() + ", maximum is "
+                                       + driver.getEvalBatchMax());
+        int timeout = (maxTime > 0)? maxTime : driver.evalTimeout;
+        long start = System.currentTimeMillis();
+        long deadline = (timeout > 0)? start + timeout : 0;
+
+        ExecutorService executor = driver.getEvalBatchExecutor();
+        CompletionService<Section> completion = null;
+        ArrayList<Future<Section>> futures = new ArrayList<Future<Section>>();
+        try {
+            // running queries are cancelled if the client disconnects
+            watchClient();
+            if(executor != null) {
+                completion = new ExecutorCompletionService<Section>(executor);
+                for(Query q : queries)
+                    futures.add(completion.submit(task(driver, q, deadline)));
+            }
+
+            response.setContentType(MIME_XML);
+            XMLSerializer out = new XMLSerializer(output, "UTF-8");
+            out.putDocumentStart();
+            out.putElementStart(NM_EVALBATCH);
+            out.putText("\n");
+            out.flush();
+
+            int errorCount = 0;
+            for(int rank = 0; rank < queries.size(); rank++) {
+                Section section;
+                if(completion == null)
+                    section = evaluate(driver, queries.get(rank), deadline);
+                else
+                    section = completion.take().get();
+                if(section.failed)
+                    ++ errorCount;
+                // sections are serialized independently of the response
+                output.write(section.data);
+                output.flush();
+            }
+
+            long time = System.currentTimeMillis() - start;
+            log("evalbatch of " + queries.size() + " queries, " + errorCount
+                + " error(s), " + time + " ms");
+            out.putElementStart(NM_SUMMARY);
+            out.putAttribute(NM_COUNT, Integer.toString(queries.size()), null);
+            out.putAttribute(NM_ERRORS, Integer.toString(errorCount), null);
+            out.putAttribute(NM_TIME, Long.toString(time), null);
+            out.putElementEnd(NM_SUMMARY);
+            out.putElementEnd(NM_EVALBATCH);
+            out.putDocumentEnd();
+            out.flush();
+        }
+        catch (InterruptedException e) {
+            throw new RequestException(SERVER, "evalbatch interrupted");
+        }
+        catch (ExecutionException e) {
+            throw new RequestException(SERVER, "evalbatch: " + e.getCause());
+        }
+        catch (DataModelException e) {
+            throw new RequestException(e);
+        }
+        catch (IOException e) {
+            if(clientOutput.getExceededLimit() != null)
+                throw new RequestException(RESOURCE_LIMIT,
+                                           clientOutput.getExceededLimit());
+            throw e;
+        }
+        finally {
+            // not started yet if the response was interrupted:
+            for(Future<Section> f : futures)
+                f.cancel(false);
+        }
+    }
+
+    private Callable<Section> task(final QizxDriver driver, final Query query,
+                                   final long deadline)
+    {
+        return new Callable<Section>() {
+            public Section call()
+                throws IOException, DataModelException
+            {
+                return evaluate(driver, query, deadline);
+            }
+        };
+    }
+
+    /**
+     * Evaluates a query on a session of its own and serializes its items or
+     * its error into a section. Can be called from any thread.
+     */
+    private Section evaluate(QizxDriver driver, Query query, long deadline)
+        throws IOException, DataModelException
+    {
+        Section section = new Section();
+        section.query = query;
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        XMLSerializer serial = fragmentSerializer(data);
+        long start = System.currentTimeMillis();
+        Library session = null;
+        TimeLimit limit = null;
+        RunningQuery running = null;
+        String error = null;
+        int itemCnt = 0;
+        try {
+            session = driver.acquireCachingSession(query.library, userName,
+                                                   this);
+            ExpressionCache cache = driver.getExpressionCache();
+            Expression expr = (cache == null)?
+                    session.compileExpression(query.text)
+                    : cache.compile(session, query.text);
+            if(deadline > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0)
+                    throw new RequestException(TIMEOUT,
+                                   "deadline reached before evaluation");
+                if(cache != null)
+                    limit = cache.limitTime(expr, remaining);
+                else
+                    expr.setTimeOut((int) remaining);
+            }
+            running = driver.getQueryRegistry().register(getName(), userName,
+                                        session.getName(), query.text, expr);
+            if(clientOutput != null)
+                driver.getQueryRegistry().watch(running, clientOutput);
+            driver.getQueryRegistry().limit(running, limits);
+            ItemSequence items = expr.evaluate();
+            ByteArrayOutputStream itemData = new ByteArrayOutputStream();
+            XMLSerializer itemSerial = fragmentSerializer(itemData);
+            for(; (query.count < 0 || itemCnt < query.count)
+                  && items.moveToNextItem(); ++itemCnt)
+            {
+                running.countItem();
+                itemSerial.putElementStart(RESTAPIServlet.NM_ITEM);
+                itemSerial.putAttribute(RESTAPIServlet.NM_TYPE,
+                                        items.getType().toString(), null);
+                if(items.isNode())
+                    items.export(itemSerial);
+                else
+                    itemSerial.putAtomText(items.getString());
+                itemSerial.putElementEnd(RESTAPIServlet.NM_ITEM);
+            }
+            itemSerial.flush();
+
+            putQueryStart(serial, query, OK, start);
+            serial.putAttribute(NM_COUNT, Integer.toString(itemCnt), null);
+            serial.putText("\n");
+            serial.flush();
+            itemData.writeTo(data);
+        }
+        catch (RequestException e) {
+            error = e.code + ": " + e.getMessage();
+        }
+        catch (CompilationException e) {
+            error = COMPILATION + ": " + e.getMessage();
+        }
+        catch (EvaluationException e) {
+            String exceeded = (running == null)? null
+                                  : running.getExceededLimit();
+            if(exceeded != null)
+                error = RESOURCE_LIMIT + ": " + exceeded;
+            else if(running != null && running.isCancelled())
+                error = CANCELLED + ": " + e.getMessage();
+            else if(limit != null && limit.hasExpired()
+               || e.getErrorCode() == EvaluationException.TIME_LIMIT)
+                error = TIMEOUT + ": " + e.getMessage();
+            else {
+                QName code = e.getErrorCode();
+                error = EVALUATION + ": "
+                        + (code != null? code.getLocalPart() : "<unknown code>")
+                        + " " + e.getMessage();
+            }
+        }
+        catch (QizxException e) {
+            error = XML_DATA + ": " + e.getMessage();
+        }
+        finally {
+            driver.getQueryRegistry().unregister(running);
+            if(limit != null)
+                limit.cancel();
+            if(session != null)
+                driver.releaseSession(session);
+        }
+
+        if(error != null) {
+            section.failed = true;
+            data.reset();
+            serial = fragmentSerializer(data);
+            putQueryStart(serial, query, ERROR, start);
+            serial.putText(error);
+        }
+        serial.putElementEnd(NM_QUERY);
+        serial.putText("\n");
+        serial.flush();
+        section.data = data.toByteArray();
+        return section;
+    }
+
+    // serializer for a part of the response, without XML declaration
+    private static XMLSerializer fragmentSerializer(ByteArrayOutputStream data)
+        throws DataModelException
+    {
+        XMLSerializer serial = new XMLSerializer(data, "UTF-8");
+        serial.setOption(XMLSerializer.OMIT_XML_DECLARATION, "yes");
+        return serial;
+    }
+
+    private static void putQueryStart(XMLSerializer serial, Query query,
+                                      String status, long start)
+        throws DataModelException
+    {
+        serial.putElementStart(NM_QUERY);
+        serial.putAttribute(NM_NAME, query.name, null);
+        serial.putAttribute(NM_STATUS, status, null);
+        serial.putAttribute(NM_TIME,
+                            Long.toString(System.currentTimeMillis() - start),
+                            null);
+    }
+
+    private List<Query> parseXMLManifest(String manifest)
+        throws RequestException
+    {
+        ArrayList<Query> queries = new ArrayList<Query>();
+        try {
+            Node root = DocumentParser.parse(new InputSource(new StringReader(manifest)));
+            root = firstElement(root);
+            if(root == null)
+                throw new RequestException(BAD_REQUEST, "empty manifest");
+            for(Node node = firstElement(root); node != null;
+                node = nextElement(node))
+            {
+                Query q = new Query();
+                q.name = attribute(node, "name");
+                q.library = attribute(node, "library");
+                q.count = toCount(attribute(node, "count"));
+                q.text = attribute(node, "query");
+                if(q.text == null)
+                    q.text = node.getStringValue();
+                addQuery(queries, q);
+            }
+        }
+        catch (SAXException e) {
+            throw new RequestException(BAD_REQUEST, e);
+        }
+        catch (IOException e) {
+            throw new RequestException(BAD_REQUEST, e);
+        }
+        catch (DataModelException e) {
+            throw new RequestException(BAD_REQUEST, e);
+        }
+        return queries;
+    }
+
+    private List<Query> parseJSONManifest(String manifest)
+        throws RequestException
+    {
+        Object json = JSONReader.parse(manifest);
+        if(json instanceof Map<?, ?>)
+            json = ((Map<?, ?>) json).get("queries");
+        if(!(json instanceof List<?>))
+            throw new RequestException(BAD_REQUEST,
+                                       "manifest should be an array of queries");
+        ArrayList<Query> queries = new ArrayList<Query>();
+        for(Object item : (List<?>) json) {
+            if(!(item instanceof Map<?, ?>))
+                throw new RequestException(BAD_REQUEST,
+                                           "query should be a JSON object");
+            Map<?, ?> map = (Map<?, ?>) item;
+            Query q = new Query();
+            q.name = toString(map.get("name"));
+            q.library = toString(map.get("library"));
+            q.text = toString(map.get("query"));
+            q.count = toCount(toString(map.get("count")));
+            addQuery(queries, q);
+        }
+        return queries;
+    }
+
+    private static void addQuery(List<Query> queries, Query q)
+        throws RequestException
+    {
+        if(q.text == null || q.text.trim().length() == 0)
+            throw new RequestException(BAD_REQUEST, "query " + (queries.size() + 1)
+                                       + " has no text");
+        if(q.name == null)
+            q.name = "q" + (queries.size() + 1);
+        queries.add(q);
+    }
+
+    private static int toCount(String value)
+        throws RequestException
+    {
+        if(value == null)
+            return -1;
+        try {
+            return (int) Double.parseDouble(value);
+        }
+        catch (NumberFormatException e) {
+            throw new RequestException(BAD_REQUEST, "invalid count '"
+                                       + value + "'");
+        }
+    }
+
+    private static String toString(Object value)
+    {
+        return (value == null)? null : value.toString();
+    }
+
+    private static String attribute(Node node, String name)
+        throws DataModelException
+    {
+        Node attr = node.getAttribute(IQName.get(name));
+        if(attr == null)
+            return null;
+        String value = attr.getStringValue();
+        return (value.length() == 0)? null : value;
+    }
+
+    private static Node firstElement(Node node)
+        throws DataModelException
+    {
+        Node child = node.getFirstChild();
+        return (child == null || child.isElement())? child : nextElement(child);
+    }
+
+    private static Node nextElement(Node node)
+        throws DataModelException
+    {
+        node = node.getNextSibling();
+        while(node != null && !node.isElement())
+            node = node.getNextSibling();
+        return node;
+    }
+}
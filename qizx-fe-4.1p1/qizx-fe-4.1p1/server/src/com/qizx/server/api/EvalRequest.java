@@ -11,23 +11,73 @@ package com.qizx.server.api;
 
 import com.qizx.api.*;
 import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.BinaryItemWriter;
+import com.qizx.server.util.CursorRegistry;
+import com.qizx.server.util.CursorRegistry.Cursor;
+import com.qizx.server.util.CursorRegistry.TimeLimit;
+import com.qizx.server.util.ExpressionCache;
+import com.qizx.server.util.JSONItemWriter;
+import com.qizx.server.util.JSONWriter;
+import com.qizx.server.util.QizxDriver;
+import com.qizx.server.util.QueryDependencies;
+import com.qizx.server.util.QueryNormalizer;
+import com.qizx.server.util.QueryRegistry.RunningQuery;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
-import com.qizx.xquery.ExpressionImpl;
+import com.qizx.server.util.ResultCache;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
 
 import javax.servlet.ServletException;
 
 /**
  * Execute a XQuery script.
+ * <p>
+ * With parameter cursor=true, the results are kept on the server after the
+ * first page ('count' items), and the header X-Qizx-Cursor returns a cursor
+ * id. Following pages are obtained with cursor=&lt;id&gt; (no query needed).
+ * The cursor is closed when results are exhausted, by the 'closecursor'
+ * request, or after some idle time.
+ * <p>
+ * With format=json, the result is a JSON object whose member "items" is an
+ * array of items (see {@link JSONItemWriter}); parameter 'jsonnodes' selects
+ * the mapping of nodes: jsonml (default) or xml.
+ * <p>
+ * With format=binary, or without format if the Accept header contains
+ * application/x-qizx-items, items are encoded by {@link BinaryItemWriter}.
+ * <p>
+ * Parameters maxitems, maxoutput (Kb) and maxmemory (Mb) lower the resource
+ * limits of the user; with a cursor, they apply to each page. Parameters
+ * flushitems, flushoutput (Kb) and flushinterval (ms) change the policy of
+ * flushing of results (see {@link com.qizx.server.util.FlushPolicy}).
+ * If an error occurs after results have been flushed, the error message is
+ * appended to the partial response after a line
+ * {@link QizxRequestBase#ERROR_MARKER}; in format json, the result object
+ * gets a member "error" with members "code" and "message"; in format
+ * binary, an ERROR record ends the stream.
  */
 public class EvalRequest extends QizxRequestBase
 {
-    private static final String ITEMS_FORMAT = "items";
+    protected static final String ITEMS_FORMAT = "items";
     private static final String HTML_FMT = "html";
     private static final String XHTML_FMT = "xhtml";
+    private static final String JSON_FMT = "json";
+    private static final String BINARY_FMT = "binary";
+    private static final String CURSOR_HEADER = "X-Qizx-Cursor";
+
+    // policies for the total-count of wrapped results:
+    private static final String COUNT_NONE = "none";
+    protected static final String COUNT_EXACT = "exact";
+    private static final String COUNT_CAPPED = "capped:";
+    private static final String COUNT_TRAILER = "trailer";
+    private static final String TOTAL_COUNT_NAME = "total-count";
+
+    private String countPolicy;
+    private int countCap;
+    private JSONItemWriter jsonOut;     // for format json
+    private BinaryItemWriter binaryOut; // for format binary
 
     public String getName()
     {
@@ -45,88 +95,127 @@ public class EvalRequest extends QizxRequestBase
     {
         String libName = getLibraryParam();
         //String path = getPathParam();
-        String queryParam = getParameter("query"); 
-        if(queryParam == null) { // in a part?
-            queryParam = getPartAsString("query");
-            if(queryParam == null)
-                requiredParam("query");
-        }
         String format = getParameter("format");
         String encoding = getParameter("encoding", "UTF-8");
         int maxTime = getIntParameter("maxtime", -1);
         int count = getIntParameter("count", -1);
-        int first = getIntParameter("first", 0);
+        int first = getIntParameter("first", -1);
+        String cursorParam = getParameter("cursor");
         log("count "+count+" first "+first);
         
         boolean wrapped = ITEMS_FORMAT.equals(format);
 //        if(count < 0 && !wrapped)
 //            count = 1;
+        parseCountPolicy(getParameter("totalcount", COUNT_EXACT));
+        int timeout = maxTime;
+        if(timeout <= 0)
+            timeout = requireQizxDriver().evalTimeout;
         
-        try {
-            XQuerySession lib = acquireLibSession(libName);
-            
-            Expression expr = lib.compileExpression(queryParam);
-            
-            XMLSerializer serial = new XMLSerializer(output, encoding);
-            QName RESULTS = lib.getQName("items");
+        if(cursorParam != null && !"true".equals(cursorParam)) {
+            fetchCursor(cursorParam, format, encoding, timeout, count, first);
+            return;
+        }
+        boolean withCursor = cursorParam != null;
 
-            if(HTML_FMT.equalsIgnoreCase(format)) {
-                serial.setOption(XMLSerializer.METHOD, "html");
-                response.setContentType("text/html");
-            }
-            else if(XHTML_FMT.equalsIgnoreCase(format)) {
-                serial.setOption(XMLSerializer.METHOD, "xhtml");
-                response.setContentType("text/xhtml+xml");
-            }
+        String queryParam = getParameter("query"); 
+        if(queryParam == null) { // in a part?
+            queryParam = getPartAsString("query");
+            if(queryParam == null)
+                requiredParam("query");
+        }
+        startQueryLog(queryParam, true);
+        
+        try {
+            QizxDriver driver = requireQizxDriver();
+            ExpressionCache cache = withCursor? null
+                                        : driver.getExpressionCache();
+            ResultCache results = withCursor? null : driver.getResultCache();
+            String[] roots = (results == null)? null
+                                 : QueryDependencies.getRoots(queryParam);
+            long stamp = (roots == null)? 0 : results.getStamp();
+            XQuerySession lib;
+            if(cache == null)
+                lib = acquireLibSession(libName);
             else {
-                response.setContentType(MIME_XML);
+                libSession = driver.acquireCachingSession(libName,
+                                                          getUserName(), this);
+                lib = libSession;
             }
 
-            if(maxTime > 0)
-                expr.setTimeOut(maxTime);
-            else {
-                int timeout = getDriver().evalTimeout;
-                if(timeout > 0)
-                    expr.setTimeOut(timeout);
+            String resultKey = null;
+            ResultCache.Capture capture = null;
+            if(roots != null) {
+                resultKey = resultKey(queryParam, format, encoding, count, first);
+                ResultCache.Result result = results.get(resultKey);
+                if(result != null) {
+                    response.setContentType(result.getContentType());
+                    output.write(result.getData());
+                    return;
+                }
+                output = capture = results.capture(output);
             }
-            /////((ExpressionImpl) expr).setCompilationTrace(new PrintWriter(System.err, true));
 
-            ItemSequence items = expr.evaluate();
-            int itemCnt = 0;
-
-            items.moveTo(first);
+            Expression expr;
+            if(cache == null)
+                expr = lib.compileExpression(queryParam);
+            else
+                expr = compileCached(cache, libSession, queryParam,
+                                     driver.isNormalizingQueries());
             
-            if (wrapped) {
-                serial.putDocumentStart();
-                serial.putElementStart(RESULTS);
-                serial.putAttribute(lib.getQName("total-count"),
-                                    Long.toString(items.countItems()), null);
-            }
-            for(; (count < 0 || itemCnt < count) && items.moveToNextItem(); ++itemCnt)
-            {
-                if (wrapped) {
-                    serial.putElementStart(RESTAPIServlet.NM_ITEM);
-                    serial.putAttribute(RESTAPIServlet.NM_TYPE,
-                                        items.getType().toString(), null);
+            watchClient();
+            XMLSerializer serial = newSerializer(format, encoding);
+
+            // with a cursor, the time limit applies to each page
+            TimeLimit limit = null;
+            if(cache != null)
+                limit = cache.limitTime(expr, timeout);
+            else if(timeout > 0 && !withCursor)
+                expr.setTimeOut(timeout);
+
+            if(!withCursor) {
+                RunningQuery running = startQuery(libSession.getName(), expr);
+                try {
+                    ItemSequence items = expr.evaluate();
+                    items.moveTo(Math.max(first, 0));
+                    slowLogPhase("evaluate");
+                    int itemCnt = putItems(lib, items, count, wrapped, null,
+                                           serial);
+                    slowLogPhase("serialize");
+                    setItemCount(itemCnt);
+                    // updating queries are not cached
+                    byte[] data = (capture == null)? null : capture.getData();
+                    if(data != null && !libSession.isModified())
+                        results.put(resultKey, libSession.getName(), roots,
+                                    response.getContentType(), data, stamp);
                 }
-                
-                if (items.isNode()) {
-                    items.export(serial);
+                catch (EvaluationException e) {
+                    checkStopped(running, e);
+                    if(limit != null && limit.hasExpired())
+                        throw new RequestException(TIMEOUT, e);
+                    throw e;
                 }
-                else {
-                    if (itemCnt > 0 && !wrapped)
-                        serial.putText(" "); // some space
-                    serial.putAtomText(items.getString());
+                catch (DataModelException e) {
+                    checkStopped(running, e);
+                    throw e;
                 }
-                if (wrapped)
-                    serial.putElementEnd(RESTAPIServlet.NM_ITEM);
-            }
-            if (wrapped) {
-                serial.putElementEnd(RESULTS);
-                serial.putDocumentEnd();
+                catch (IOException e) {
+                    checkStopped(running, e);
+                    throw e;
+                }
+                finally {
+                    endQuery(running);
+                    if(limit != null)
+                        limit.cancel();
+                }
+                return;
             }
 
-            serial.flush();
+            ItemSequence items = expr.evaluate();
+            CursorRegistry registry = requireCursors();
+            Cursor cursor = registry.open(getUserName(), libSession, expr, items);
+            libSession = null;  // belongs to the cursor now
+            putCursorPage(registry, cursor, timeout, first, count, wrapped,
+                          serial);
         }
         catch (CompilationException e) {
             throw new RequestException(e);
@@ -140,4 +229,399 @@ public class EvalRequest extends QizxRequestBase
             throw new RequestException(e);
         }
     }
+
+    // identifies a result: Library session, user, query and output options
+    private String resultKey(String query, String format, String encoding,
+                             int count, int first)
+    {
+        return libSession.getName() + "\u0000" + getUserName()
+               + "\u0000" + format + "\u0000" + acceptsBinary()
+               + "\u0000" + encoding + "\u0000" + count
+               + "\u0000" + getParameter("jsonnodes", JSONItemWriter.JSONML)
+               + "\u0000" + first + "\u0000" + countPolicy + countCap
+               + "\u0000" + query;
+    }
+
+    /**
+     * Gets a compiled expression from the cache. If normalized, the literals
+     * of the query are replaced by external variables, which are bound to
+     * the literal values.
+     */
+    private Expression compileCached(ExpressionCache cache, Library lib,
+                                     String query, boolean normalize)
+        throws QizxException
+    {
+        QueryNormalizer norm = normalize? QueryNormalizer.normalize(query)
+                                        : null;
+        if(norm == null)
+            return cache.compile(lib, query);
+        Expression expr = cache.compile(lib, norm.getText());
+        for(QueryNormalizer.Literal lit : norm.getLiterals())
+            expr.bindVariable(lib.getQName(lit.getName()),
+                              lib.createItem(lit.getValue(),
+                                             lib.getType(lit.getType())));
+        return expr;
+    }
+
+    /**
+     * Next page of a cursor: from the current position, or from 'first'
+     * if specified.
+     */
+    private void fetchCursor(String id, String format, String encoding,
+                             int timeout, int count, int first)
+        throws RequestException, IOException
+    {
+        CursorRegistry registry = requireCursors();
+        try {
+            watchClient();
+            XMLSerializer serial = newSerializer(format, encoding);
+            Cursor cursor = registry.acquire(id, getUserName(), this);
+            putCursorPage(registry, cursor, timeout, first, count,
+                          ITEMS_FORMAT.equals(format), serial);
+        }
+        catch (QizxException e) {
+            throw new RequestException(e);
+        }
+    }
+
+    // Writes a page and keeps the cursor open if there can be more items.
+    // Closes the cursor in case of error.
+    private void putCursorPage(CursorRegistry registry, Cursor cursor,
+                               int timeout, int first, int count,
+                               boolean wrapped, XMLSerializer serial)
+        throws QizxException, IOException, RequestException
+    {
+        ItemSequence items = cursor.getItems();
+        boolean more = false;
+        TimeLimit limit = registry.limitTime(cursor, timeout);
+        RunningQuery running = startQuery(cursor.getSession().getName(),
+                                          cursor.getExpression());
+        try {
+            if(first >= 0)
+                items.moveTo(first);
+            slowLogPhase("evaluate");
+            if(count >= 0)  // otherwise all items are returned
+                response.setHeader(CURSOR_HEADER, cursor.getId());
+            int itemCnt = putItems(cursor.getSession(), items, count, wrapped,
+                                   cursor, serial);
+            slowLogPhase("serialize");
+            setItemCount(itemCnt);
+            long total = cursor.getTotalCount();
+            more = count >= 0 && itemCnt == count
+                   && (total < 0 || items.getPosition() < total);
+        }
+        catch (EvaluationException e) {
+            checkStopped(running, e);
+            if(limit.hasExpired())
+                throw new RequestException(TIMEOUT, e);
+            throw new RequestException(e);
+        }
+        catch (DataModelException e) {
+            checkStopped(running, e);
+            throw e;
+        }
+        catch (IOException e) {
+            checkStopped(running, e);
+            throw e;
+        }
+        finally {
+            endQuery(running);
+            limit.cancel();
+            if(more)
+                registry.release(cursor);
+            else
+                registry.close(cursor);
+        }
+    }
+
+    private CursorRegistry requireCursors()
+        throws RequestException
+    {
+        CursorRegistry registry = requireQizxDriver().getCursorRegistry();
+        if(registry == null)
+            throw new RequestException(BAD_REQUEST, "cursors are disabled");
+        return registry;
+    }
+
+    /**
+     * Creates a serializer for the output format, or for formats 'json' and
+     * 'binary', a writer used by putItems (returns null). If no format is
+     * specified, the binary format is used if accepted by the client.
+     */
+    protected XMLSerializer newSerializer(String format, String encoding)
+        throws DataModelException, RequestException, IOException
+    {
+        if(BINARY_FMT.equalsIgnoreCase(format)
+           || format == null && acceptsBinary()) {
+            response.setContentType(BinaryItemWriter.MIME_TYPE);
+            binaryOut = new BinaryItemWriter(output);
+            return null;
+        }
+        if(JSON_FMT.equalsIgnoreCase(format)) {
+            String nodes = getParameter("jsonnodes", JSONItemWriter.JSONML);
+            if(!JSONItemWriter.isNodeMapping(nodes))
+                throw new RequestException(BAD_REQUEST, "invalid jsonnodes '"
+                                       + nodes + "': should be jsonml or xml");
+            response.setContentType(JSONWriter.MIME_JSON + "; charset="
+                                    + encoding);
+            jsonOut = new JSONItemWriter(new JSONWriter(new BufferedWriter(
+                          new OutputStreamWriter(output, encoding))), nodes);
+            return null;
+        }
+        XMLSerializer serial = new XMLSerializer(output, encoding);
+        if(HTML_FMT.equalsIgnoreCase(format)) {
+            serial.setOption(XMLSerializer.METHOD, "html");
+            response.setContentType("text/html");
+        }
+        else if(XHTML_FMT.equalsIgnoreCase(format)) {
+            serial.setOption(XMLSerializer.METHOD, "xhtml");
+            response.setContentType("text/xhtml+xml");
+        }
+        else {
+            response.setContentType(MIME_XML);
+        }
+        return serial;
+    }
+
+    private boolean acceptsBinary()
+    {
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.indexOf(BinaryItemWriter.MIME_TYPE) >= 0;
+    }
+
+    protected void parseCountPolicy(String policy)
+        throws RequestException
+    {
+        countPolicy = policy;
+        if(policy.startsWith(COUNT_CAPPED)) {
+            countPolicy = COUNT_CAPPED;
+            try {
+                countCap = Integer.parseInt(policy.substring(COUNT_CAPPED.length()));
+            }
+            catch (NumberFormatException e) {
+                countCap = -1;
+            }
+            if(countCap < 0)
+                throw new RequestException(BAD_REQUEST,
+                                   "invalid totalcount '" + policy + "'");
+        }
+        else if(!COUNT_NONE.equals(policy) && !COUNT_EXACT.equals(policy)
+                && !COUNT_TRAILER.equals(policy))
+            throw new RequestException(BAD_REQUEST, "invalid totalcount '"
+                      + policy + "': should be none, exact, capped:N or trailer");
+    }
+
+    protected boolean putErrorRecord(String code, String message)
+        throws IOException
+    {
+        if(jsonOut != null) {
+            JSONWriter out = jsonOut.getWriter();
+            out.closeTo(1);     // back in the result object
+            if(out.getDepth() == 0)
+                out.startObject();
+            out.name("error");
+            jsonOut.putError(code, message);
+            out.endObject();
+            out.flush();
+            return true;
+        }
+        if(binaryOut != null) {
+            binaryOut.putError(code, message);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Serializes at most count items from the current position.
+     * <p>
+     * In wrapped format, the total number of items is given according to
+     * parameter 'totalcount': 'exact' (default) in attribute total-count,
+     * which requires a complete evaluation before the first item;
+     * 'capped:N' counts at most N items and gives "N+" if there are more;
+     * 'trailer' gives the exact count in element total-count after the
+     * items; 'none' gives no count. Format json is always wrapped.
+     * @param cursor if not null, the total count is cached in the cursor and
+     * the cursor id is added to the wrapper element
+     * @return the number of items serialized
+     */
+    protected int putItems(XQuerySession lib, ItemSequence items, int count,
+                         boolean wrapped, Cursor cursor, XMLSerializer serial)
+        throws QizxException, IOException
+    {
+        if(jsonOut != null)
+            return putJSONItems(items, count, cursor);
+        if(binaryOut != null)
+            return putBinaryItems(items, count, cursor);
+        int itemCnt = 0;
+        QName RESULTS = lib.getQName("items");
+        QName TOTAL_COUNT = lib.getQName(TOTAL_COUNT_NAME);
+        if (wrapped) {
+            serial.putDocumentStart();
+            serial.putElementStart(RESULTS);
+            if(COUNT_EXACT.equals(countPolicy))
+                serial.putAttribute(TOTAL_COUNT,
+                                    Long.toString(exactCount(items, cursor)),
+                                    null);
+            else if(COUNT_CAPPED.equals(countPolicy))
+                serial.putAttribute(TOTAL_COUNT, cappedCount(items), null);
+            if(cursor != null)
+                serial.putAttribute(lib.getQName("cursor"), cursor.getId(), null);
+        }
+        for(; (count < 0 || itemCnt < count) && items.moveToNextItem(); ++itemCnt)
+        {
+            countItem();
+            if (wrapped) {
+                serial.putElementStart(RESTAPIServlet.NM_ITEM);
+                serial.putAttribute(RESTAPIServlet.NM_TYPE,
+                                    items.getType().toString(), null);
+            }
+            
+            if (items.isNode()) {
+                items.export(serial);
+            }
+            else {
+                if (itemCnt > 0 && !wrapped)
+                    serial.putText(" "); // some space
+                serial.putAtomText(items.getString());
+            }
+            if (wrapped)
+                serial.putElementEnd(RESTAPIServlet.NM_ITEM);
+            if(flushDue())
+                serial.flush();
+        }
+        if (wrapped) {
+            if(COUNT_TRAILER.equals(countPolicy)) {
+                serial.flush();     // items are not delayed by counting
+                long total = trailerCount(items, cursor);
+                serial.putElementStart(TOTAL_COUNT);
+                serial.putText(Long.toString(total));
+                serial.putElementEnd(TOTAL_COUNT);
+            }
+            serial.putElementEnd(RESULTS);
+            serial.putDocumentEnd();
+        }
+
+        serial.flush();
+        return itemCnt;
+    }
+
+    /**
+     * Writes at most count items from the current position, as a JSON
+     * object with member "items", and members "total-count" and "cursor" as
+     * in wrapped format.
+     */
+    private int putJSONItems(ItemSequence items, int count, Cursor cursor)
+        throws QizxException, IOException
+    {
+        JSONWriter out = jsonOut.getWriter();
+        out.startObject();
+        if(COUNT_EXACT.equals(countPolicy))
+            out.name(TOTAL_COUNT_NAME).value(exactCount(items, cursor));
+        else if(COUNT_CAPPED.equals(countPolicy)) {
+            String capped = cappedCount(items);
+            out.name(TOTAL_COUNT_NAME);
+            if(capped.endsWith("+"))
+                out.value(capped);
+            else
+                out.value(Long.parseLong(capped));
+        }
+        if(cursor != null)
+            out.name("cursor").value(cursor.getId());
+        out.name("items").startArray();
+        int itemCnt = 0;
+        for(; (count < 0 || itemCnt < count) && items.moveToNextItem(); ++itemCnt) {
+            countItem();
+            jsonOut.putItem(items);
+            if(flushDue())
+                out.flush();
+        }
+        out.endArray();
+        if(COUNT_TRAILER.equals(countPolicy)) {
+            out.flush();    // items are not delayed by counting
+            out.name(TOTAL_COUNT_NAME).value(trailerCount(items, cursor));
+        }
+        out.endObject();
+        out.flush();
+        return itemCnt;
+    }
+
+    /**
+     * Writes at most count items from the current position in binary
+     * format, with total count and cursor as in wrapped format.
+     */
+    private int putBinaryItems(ItemSequence items, int count, Cursor cursor)
+        throws QizxException, IOException
+    {
+        if(COUNT_EXACT.equals(countPolicy))
+            binaryOut.putTotalCount(exactCount(items, cursor));
+        else if(COUNT_CAPPED.equals(countPolicy)) {
+            // "N+" is given as N + 1
+            String capped = cappedCount(items);
+            binaryOut.putTotalCount(capped.endsWith("+")? countCap + 1
+                                    : Long.parseLong(capped));
+        }
+        if(cursor != null)
+            binaryOut.putCursor(cursor.getId());
+        int itemCnt = 0;
+        for(; (count < 0 || itemCnt < count) && items.moveToNextItem(); ++itemCnt) {
+            countItem();
+            binaryOut.putItem(items);
+            if(flushDue())
+                binaryOut.flush();
+        }
+        if(COUNT_TRAILER.equals(countPolicy)) {
+            binaryOut.flush();  // items are not delayed by counting
+            binaryOut.putTotalCount(trailerCount(items, cursor));
+        }
+        binaryOut.end();
+        return itemCnt;
+    }
+
+    // total count computed before items, cached in the cursor
+    private static long exactCount(ItemSequence items, Cursor cursor)
+        throws EvaluationException
+    {
+        long total = (cursor == null)? -1 : cursor.getTotalCount();
+        if(total < 0)
+            total = items.countItems();
+        if(cursor != null)
+            cursor.setTotalCount(total);
+        return total;
+    }
+
+    // total count computed after items, cached in the cursor
+    private static long trailerCount(ItemSequence items, Cursor cursor)
+        throws EvaluationException
+    {
+        long total = (cursor == null)? -1 : cursor.getTotalCount();
+        if(total < 0) {
+            // the position of a cursor must not change
+            total = (cursor != null)? items.countItems()
+                            : items.getPosition() + skipAll(items);
+        }
+        if(cursor != null)
+            cursor.setTotalCount(total);
+        return total;
+    }
+
+    // counts at most countCap items, then returns to the current position
+    private String cappedCount(ItemSequence items)
+        throws EvaluationException
+    {
+        long position = items.getPosition();
+        items.moveTo(0);
+        int counted = items.skip(countCap + 1);
+        items.moveTo(position);
+        return (counted > countCap)? (countCap + "+") : Integer.toString(counted);
+    }
+
+    private static long skipAll(ItemSequence items)
+        throws EvaluationException
+    {
+        long total = 0;
+        for(int skipped; (skipped = items.skip(Integer.MAX_VALUE)) > 0; )
+            total += skipped;
+        return total;
+    }
 }
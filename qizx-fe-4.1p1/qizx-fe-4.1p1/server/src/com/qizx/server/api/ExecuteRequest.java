@@ -0,0 +1,109 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.api.*;
+import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.CursorRegistry.TimeLimit;
+import com.qizx.server.util.PreparedQueries;
+import com.qizx.server.util.PreparedQueries.Prepared;
+import com.qizx.server.util.QueryRegistry.RunningQuery;
+import com.qizx.server.util.RequestException;
+
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+/**
+ * Executes a query compiled by the 'prepare' request.
+ * <p>
+ * Parameter 'handle' is the value returned by 'prepare'. The external
+ * variable $name is bound to the value of parameter '$name', converted to
+ * the declared type of the variable, like parameters of XQuery Services. A
+ * variable keeps its value in following executions if not specified again.
+ * Output parameters are the same as for 'eval', except cursors.
+ */
+public class ExecuteRequest extends EvalRequest
+{
+    public String getName()
+    {
+        return "execute";
+    }
+
+    public void handlePost()
+        throws ServletException, IOException
+    {
+        String handle = getParameter("handle");
+        if(handle == null)
+            requiredParam("handle");
+        String format = getParameter("format");
+        String encoding = getParameter("encoding", "UTF-8");
+        int maxTime = getIntParameter("maxtime", -1);
+        int count = getIntParameter("count", -1);
+        int first = getIntParameter("first", -1);
+        parseCountPolicy(getParameter("totalcount", COUNT_EXACT));
+        int timeout = maxTime;
+        if(timeout <= 0)
+            timeout = requireQizxDriver().evalTimeout;
+
+        PreparedQueries registry = requireQizxDriver().getPreparedQueries();
+        if(registry == null)
+            throw new RequestException(BAD_REQUEST,
+                                       "prepared queries are disabled");
+        try {
+            watchClient();
+            XMLSerializer serial = newSerializer(format, encoding);
+            Prepared prepared = registry.acquire(handle, getUserName(), this);
+            TimeLimit limit = null;
+            RunningQuery running = null;
+            try {
+                limit = registry.limitTime(prepared, timeout);
+                Expression expr = prepared.getExpression();
+                startQueryLog(expr.getSource(), true);
+                running = startQuery(prepared.getSession().getName(), expr);
+                bindVariables(expr);
+                ItemSequence items = expr.evaluate();
+                items.moveTo(Math.max(first, 0));
+                slowLogPhase("evaluate");
+                int itemCnt = putItems(prepared.getSession(), items, count,
+                                       ITEMS_FORMAT.equals(format), null, serial);
+                slowLogPhase("serialize");
+                setItemCount(itemCnt);
+            }
+            catch (EvaluationException e) {
+                checkStopped(running, e);
+                if(limit != null && limit.hasExpired())
+                    throw new RequestException(TIMEOUT, e);
+                throw new RequestException(e);
+            }
+            catch (DataModelException e) {
+                checkStopped(running, e);
+                throw e;
+            }
+            catch (IOException e) {
+                checkStopped(running, e);
+                throw e;
+            }
+            finally {
+                endQuery(running);
+                if(limit != null)
+                    limit.cancel();
+                registry.release(prepared);
+            }
+        }
+        catch (SAXException e) {
+            throw new RequestException(XML_DATA, e);
+        }
+        catch (QizxException e) {
+            throw new RequestException(e);
+        }
+    }
+}
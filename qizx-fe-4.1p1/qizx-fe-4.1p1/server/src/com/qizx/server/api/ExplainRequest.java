@@ -0,0 +1,244 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.api.CompilationException;
+import com.qizx.api.EvaluationException;
+import com.qizx.api.EvaluationStackTrace;
+import com.qizx.api.Expression;
+import com.qizx.api.ItemSequence;
+import com.qizx.api.Library;
+import com.qizx.api.QName;
+import com.qizx.api.QizxException;
+import com.qizx.api.TraceObserver;
+import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.QueryRegistry.RunningQuery;
+import com.qizx.server.util.RequestException;
+import com.qizx.xdm.IQName;
+import com.qizx.xquery.ExpressionImpl;
+import com.qizx.xquery.XMLExprDisplay;
+
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+
+import javax.servlet.ServletException;
+
+/**
+ * Shows how a query is executed.
+ * <p>
+ * With mode=plan (default), returns the compiled expression tree after
+ * static optimization, and the index queries used by path expressions on
+ * the Library. These are planned when a path is first evaluated, so the
+ * query is evaluated until its first item, which is discarded.
+ * <p>
+ * With mode=profile, the query is evaluated completely (items are not
+ * returned) and the response gives in addition the time of compilation,
+ * time to the first item, total time and item count, and for each label of
+ * fn:trace() in the query, the number of calls, the number of items traced
+ * and the time of the first and last calls from the start of evaluation.
+ * Items passed to fn:trace are counted on a copy of the sequence, which
+ * adds to the evaluation time.
+ * <p>
+ * External variables are bound as with 'execute', by parameters '$name'.
+ * Updates made by the query are not committed.
+ */
+public class ExplainRequest extends QizxRequestBase
+{
+    static final QName NM_EXPLAIN = IQName.get("explain");
+    static final QName NM_PLAN = IQName.get("plan");
+    static final QName NM_INDEXES = IQName.get("indexes");
+    static final QName NM_PROFILE = IQName.get("profile");
+    static final QName NM_TRACE = IQName.get("trace");
+    static final QName NM_MODE = IQName.get("mode");
+    static final QName NM_COMPILE = IQName.get("compile");
+    static final QName NM_FIRST_ITEM = IQName.get("first-item");
+    static final QName NM_TOTAL = IQName.get("total");
+    static final QName NM_ITEMS = IQName.get("items");
+    static final QName NM_LABEL = IQName.get("label");
+    static final QName NM_LINE = IQName.get("line");
+    static final QName NM_COLUMN = IQName.get("column");
+    static final QName NM_CALLS = IQName.get("calls");
+    static final QName NM_FIRST = IQName.get("first");
+    static final QName NM_LAST = IQName.get("last");
+
+    private static final String PLAN_MODE = "plan";
+    private static final String PROFILE_MODE = "profile";
+
+    // statistics of the calls of fn:trace with a label
+    static class TraceStats
+    {
+        String label;
+        int line;
+        int column;
+        long calls;
+        long items;
+        long first;
+        long last;
+    }
+
+    // aggregates calls of fn:trace
+    static class Profiler implements TraceObserver
+    {
+        long start;
+        LinkedHashMap<String, TraceStats> stats =
+            new LinkedHashMap<String, TraceStats>();
+
+        public void trace(EvaluationStackTrace location, ItemSequence items,
+                          String label)
+        {
+            long time = System.currentTimeMillis() - start;
+            TraceStats s = stats.get(label);
+            if(s == null) {
+                s = new TraceStats();
+                s.label = label;
+                s.line = location.getLineNumber();
+                s.column = location.getColumnNumber();
+                s.first = time;
+                stats.put(label, s);
+            }
+            ++ s.calls;
+            s.last = time;
+            try {
+                s.items += items.countItems();
+            }
+            catch (EvaluationException e) {
+                ; // counted as 0
+            }
+        }
+    }
+
+    public String getName()
+    {
+        return "explain";
+    }
+
+    public void handleGet()
+        throws ServletException, IOException
+    {
+        handlePost();
+    }
+
+    public void handlePost()
+        throws ServletException, IOException
+    {
+        String libName = getLibraryParam();
+        String mode = getParameter("mode", PLAN_MODE);
+        if(!PLAN_MODE.equals(mode) && !PROFILE_MODE.equals(mode))
+            throw new RequestException(BAD_REQUEST, "invalid mode '" + mode
+                                       + "': should be plan or profile");
+        int maxTime = getIntParameter("maxtime", -1);
+        String queryParam = getParameter("query");
+        if(queryParam == null) { // in a part?
+            queryParam = getPartAsString("query");
+            if(queryParam == null)
+                requiredParam("query");
+        }
+        int timeout = (maxTime > 0)? maxTime : requireQizxDriver().evalTimeout;
+
+        try {
+            Library lib = acquireLibSession(libName);
+            long t0 = System.currentTimeMillis();
+            Expression expr = lib.compileExpression(queryParam);
+            long compileTime = System.currentTimeMillis() - t0;
+            bindVariables(expr);
+            if(timeout > 0)
+                expr.setTimeOut(timeout);
+
+            StringWriter indexTrace = new StringWriter();
+            ((ExpressionImpl) expr).setCompilationTrace(
+                                        new PrintWriter(indexTrace, true));
+            Profiler profiler = null;
+            if(PROFILE_MODE.equals(mode)) {
+                profiler = new Profiler();
+                expr.setTraceObserver(profiler);
+            }
+
+            long firstItemTime = -1, totalTime = -1, itemCount = 0;
+            RunningQuery running = startQuery(lib.getName(), expr);
+            try {
+                long t1 = System.currentTimeMillis();
+                if(profiler != null)
+                    profiler.start = t1;
+                ItemSequence items = expr.evaluate();
+                if(items.moveToNextItem()) {
+                    countItem();
+                    itemCount = 1;
+                }
+                firstItemTime = System.currentTimeMillis() - t1;
+                if(profiler != null) {
+                    for(; items.moveToNextItem(); ++ itemCount)
+                        countItem();
+                    totalTime = System.currentTimeMillis() - t1;
+                }
+            }
+            catch (EvaluationException e) {
+                checkStopped(running, e);
+                if(e.getErrorCode() == EvaluationException.TIME_LIMIT)
+                    throw new RequestException(TIMEOUT, e);
+                throw e;
+            }
+            finally {
+                endQuery(running);
+            }
+
+            response.setContentType(MIME_XML);
+            XMLSerializer out = new XMLSerializer(output, "UTF-8");
+            out.setOption(XMLSerializer.INDENT, "yes");
+            out.putDocumentStart();
+            out.putElementStart(NM_EXPLAIN);
+            out.putAttribute(NM_MODE, mode, null);
+
+            out.putElementStart(NM_PLAN);
+            ((ExpressionImpl) expr).dump(new XMLExprDisplay(out));
+            out.putElementEnd(NM_PLAN);
+
+            out.putElementStart(NM_INDEXES);
+            out.putText(indexTrace.toString());
+            out.putElementEnd(NM_INDEXES);
+
+            if(profiler != null) {
+                out.putElementStart(NM_PROFILE);
+                out.putAttribute(NM_COMPILE, Long.toString(compileTime), null);
+                out.putAttribute(NM_FIRST_ITEM, Long.toString(firstItemTime),
+                                 null);
+                out.putAttribute(NM_TOTAL, Long.toString(totalTime), null);
+                out.putAttribute(NM_ITEMS, Long.toString(itemCount), null);
+                for(TraceStats s : profiler.stats.values()) {
+                    out.putElementStart(NM_TRACE);
+                    out.putAttribute(NM_LABEL, s.label, null);
+                    out.putAttribute(NM_LINE, Integer.toString(s.line), null);
+                    out.putAttribute(NM_COLUMN, Integer.toString(s.column), null);
+                    out.putAttribute(NM_CALLS, Long.toString(s.calls), null);
+                    out.putAttribute(NM_ITEMS, Long.toString(s.items), null);
+                    out.putAttribute(NM_FIRST, Long.toString(s.first), null);
+                    out.putAttribute(NM_LAST, Long.toString(s.last), null);
+                    out.putElementEnd(NM_TRACE);
+                }
+                out.putElementEnd(NM_PROFILE);
+            }
+            out.putElementEnd(NM_EXPLAIN);
+            out.putDocumentEnd();
+            out.flush();
+        }
+        catch (CompilationException e) {
+            throw new RequestException(e);
+        }
+        catch (SAXException e) {
+            throw new RequestException(XML_DATA, e);
+        }
+        catch (QizxException e) {
+            throw new RequestException(e);
+        }
+    }
+}
@@ -9,18 +9,43 @@
 package com.qizx.server.api;
 
 import com.qizx.api.*;
+import com.qizx.api.util.GlobFilter;
 import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.BlobCache;
+import com.qizx.server.util.ListingCache;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
+import com.qizx.server.util.TarOutputStream;
 import com.qizx.util.basic.FileUtil;
 
+import com.xmlmind.util.Base64;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.regex.PatternSyntaxException;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class GetRequest extends QizxRequestBase
 {
+    private static final String ZIP_FORMAT = "zip";
+    private static final String TAR_FORMAT = "tar";
+    private static final String TGZ_FORMAT = "tgz";
+    private static final String IMPORT_DATE = "import-date";
+    private static final String CONTINUATION_HEADER = "X-Qizx-Continuation";
+    private static final String SORTED_TOKEN = "s:";
+    private static final String OFFSET_TOKEN = "o:";
+    private static final String TYPE_COLLECTION = "collection";
+    private static final String TYPE_DOCUMENT = "document";
+    private static final String TYPE_NONXML = "nonxml";
+
+    private String[] options;
 
     public String getName()
     {
@@ -38,46 +63,33 @@ public class GetRequest extends QizxRequestBase
     {
         String libName = getLibraryParam();
         String path = getPathParam();
+        String format = getParameter("format");
         String opts = getParameter("options");
-        String[] options = (opts == null)? null : opts.split("[\n\r\t;,]+");
+        options = (opts == null)? null : opts.split("[\n\r\t;,]+");
+        
+        // before the session is opened, to detect concurrent updates:
+        BlobCache blobCache = requireQizxDriver().getBlobCache();
+        long cacheStamp = (blobCache == null)? 0 : blobCache.getStamp();
+        ListingCache listingCache = requireQizxDriver().getListingCache();
+        long listingStamp = (listingCache == null)? 0 : listingCache.getStamp();
         
         try {
             Library lib = acquireLibSession(libName);         
             LibraryMember member = requireMember(lib, path);
 
-            if(member.isCollection())
+            if(member.isCollection() && format != null)
             {
-                response.setContentType(MIME_PLAIN_TEXT);
-                Collection col = (Collection) member;
-                LibraryMemberIterator iter = col.getChildren();
-                ArrayList<String> res = new ArrayList<String>();
-                for( ; iter.moveToNextMember(); ) {
-                    member = iter.getCurrentMember();
-                    if(member.isCollection())
-                        res.add(member.getPath() + "/");
-                    else
-                        res.add(member.getPath());
-                }
-                Collections.sort(res);
-                for (String mpath : res) {
-                    println(mpath);
-                }
+                exportArchive((Collection) member, format);
+            }
+            else if(member.isCollection())
+            {
+                listCollection(lib, (Collection) member, listingCache,
+                               listingStamp);
             }
             else if(member instanceof Document) {
                 response.setContentType(MIME_XML);
                 Document doc = (Document) member;
-                XMLSerializer serial = new XMLSerializer(output, "UTF-8");
-                if(options != null)
-                    for (int i = 0; i < options.length; i++) {
-                        String op = options[i];
-                        int eq = op.indexOf('=');
-                        String optName = (eq < 0)? op : op.substring(0, eq);
-                        String optValue = (eq < 0)? "true" : op.substring(eq + 1);
-                        try {
-                            serial.setOption(optName, optValue);
-                        }
-                        catch (DataModelException ignored) { ; }
-                    }
+                XMLSerializer serial = newSerializer(output);
                 serial.putNodeCopy(doc.getDocumentNode(), 0);
                 serial.flush();
             }
@@ -85,9 +97,13 @@ public class GetRequest extends QizxRequestBase
                 String mimeType = (String) member.getProperty(MIME_PROPERTY);
                 response.setContentType(mimeType != null? mimeType : MIME_DATA);
                 NonXMLDocument nonx = (NonXMLDocument) member;
-                InputStream export = nonx.open();
-                FileUtil.copy(export, output, null);
-                export.close();
+                if(blobCache != null)
+                    blobCache.send(lib.getName(), nonx, cacheStamp, output);
+                else {
+                    InputStream export = nonx.open();
+                    FileUtil.copy(export, output, null);
+                    export.close();
+                }
             }
         }
         catch (DataModelException e) {
@@ -95,4 +111,283 @@ public class GetRequest extends QizxRequestBase
         }
 
     }
+
+    /**
+     * Lists the paths of the members of a collection, one per line (with a
+     * trailing '/' for collections).
+     * <p>
+     * Parameters: 'glob' filters on member names, 'type' on member type
+     * (collection, document, nonxml), 'sort' (default true), 'offset' and
+     * 'limit' select a page. If the listing is incomplete, the header
+     * X-Qizx-Continuation contains a token to pass in parameter 'token' to
+     * get the next page: with sorted listings it remains valid if members
+     * are added or removed.
+     */
+    private void listCollection(Library lib, Collection col,
+                                ListingCache cache, long cacheStamp)
+        throws RequestException, IOException, DataModelException
+    {
+        String glob = getParameter("glob");
+        String type = getParameter("type");
+        boolean sort = getBooleanParameter("sort", true);
+        int offset = Math.max(getIntParameter("offset", 0), 0);
+        int limit = getIntParameter("limit", 0);
+        String token = getParameter("token");
+        String lastPath = null;
+        if(token != null) {
+            String t = decodeToken(token);
+            if(t.startsWith(SORTED_TOKEN))
+                lastPath = t.substring(SORTED_TOKEN.length());
+            else if(t.startsWith(OFFSET_TOKEN))
+                try {
+                    offset = Integer.parseInt(t.substring(OFFSET_TOKEN.length()));
+                }
+                catch (NumberFormatException e) {
+                    throw new RequestException(BAD_REQUEST, "invalid token");
+                }
+            else
+                throw new RequestException(BAD_REQUEST, "invalid token");
+        }
+
+        MemberFilter filter;
+        try {
+            filter = new MemberFilter(glob, type);
+        }
+        catch (PatternSyntaxException e) {
+            throw new RequestException(BAD_REQUEST, "invalid glob: " + e.getMessage());
+        }
+        response.setContentType(MIME_PLAIN_TEXT);
+
+        if(!sort) {
+            LibraryMemberIterator iter = col.getChildren(filter);
+            int rank = 0;
+            for( ; rank < offset && iter.moveToNextMember(); ++rank)
+                ;
+            if(limit <= 0) {
+                // streamed: no memory used
+                for( ; iter.moveToNextMember(); )
+                    println(memberPath(iter.getCurrentMember()));
+                return;
+            }
+            // the page is held until its end is known, because the
+            // continuation header must precede the body
+            ArrayList<String> page = new ArrayList<String>();
+            for( ; page.size() < limit && iter.moveToNextMember(); ++rank)
+                page.add(memberPath(iter.getCurrentMember()));
+            if(iter.moveToNextMember())
+                setContinuation(OFFSET_TOKEN + rank);
+            for(String p : page)
+                println(p);
+            return;
+        }
+
+        String filterKey = glob + "|" + type;
+        String[] paths = (cache == null)? null
+                          : cache.get(lib.getName(), getUserName(),
+                                      col.getPath(), filterKey);
+        if(paths == null) {
+            LibraryMemberIterator iter = col.getChildren(filter);
+            ArrayList<String> res = new ArrayList<String>();
+            for( ; iter.moveToNextMember(); )
+                res.add(memberPath(iter.getCurrentMember()));
+            paths = res.toArray(new String[res.size()]);
+            Arrays.sort(paths);
+            if(cache != null)
+                cache.put(lib.getName(), getUserName(), col.getPath(),
+                          filterKey, paths, cacheStamp);
+        }
+
+        int start = offset;
+        if(lastPath != null) {
+            start = Arrays.binarySearch(paths, lastPath);
+            start = (start >= 0)? start + 1 : -start - 1;
+        }
+        int end = paths.length;
+        if(limit > 0 && start + limit < end) {
+            end = start + limit;
+            setContinuation(SORTED_TOKEN + paths[end - 1]);
+        }
+        for(int i = start; i < end; i++)
+            println(paths[i]);
+    }
+
+    private static String memberPath(LibraryMember member)
+    {
+        return member.isCollection()? member.getPath() + "/" : member.getPath();
+    }
+
+    private void setContinuation(String token)
+        throws IOException
+    {
+        response.setHeader(CONTINUATION_HEADER,
+                           Base64.encode(token.getBytes("UTF-8")));
+    }
+
+    private static String decodeToken(String token)
+        throws RequestException
+    {
+        try {
+            return new String(Base64.decode(token), "UTF-8");
+        }
+        catch (Exception e) {   // malformed base64
+            throw new RequestException(BAD_REQUEST, "invalid token");
+        }
+    }
+
+    // name and type filter, applied by Collection.getChildren
+    private static class MemberFilter implements LibraryMemberFilter
+    {
+        private GlobFilter glob;
+        private String type;
+
+        MemberFilter(String glob, String type)
+            throws RequestException
+        {
+            this.glob = (glob == null)? null : new GlobFilter(glob);
+            if(type != null && !TYPE_COLLECTION.equals(type)
+               && !TYPE_DOCUMENT.equals(type) && !TYPE_NONXML.equals(type))
+                throw new RequestException(BAD_REQUEST, "invalid type '" + type
+                             + "': should be collection, document or nonxml");
+            this.type = type;
+        }
+
+        public boolean accept(LibraryMember member)
+        {
+            if(TYPE_COLLECTION.equals(type) && !member.isCollection()
+               || TYPE_DOCUMENT.equals(type) && !(member instanceof Document)
+               || TYPE_NONXML.equals(type) && !(member instanceof NonXMLDocument))
+                return false;
+            return glob == null || glob.accept(member);
+        }
+    }
+
+    private XMLSerializer newSerializer(OutputStream out)
+        throws DataModelException
+    {
+        XMLSerializer serial = new XMLSerializer(out, "UTF-8");
+        if(options != null)
+            for (int i = 0; i < options.length; i++) {
+                String op = options[i];
+                int eq = op.indexOf('=');
+                String optName = (eq < 0)? op : op.substring(0, eq);
+                String optValue = (eq < 0)? "true" : op.substring(eq + 1);
+                try {
+                    serial.setOption(optName, optValue);
+                }
+                catch (DataModelException ignored) { ; }
+            }
+        return serial;
+    }
+
+    /**
+     * Streams the contents of a collection as a ZIP or TAR archive. 
+     */
+    private void exportArchive(Collection col, String format)
+        throws RequestException, IOException, DataModelException
+    {
+        String name = col.getName();
+        if(name == null || name.length() == 0)
+            name = "root";
+        if(ZIP_FORMAT.equalsIgnoreCase(format)) {
+            response.setContentType("application/zip");
+            setAttachment(name + ".zip");
+            ZipOutputStream zip = new ZipOutputStream(output);
+            exportZip(col, "", zip);
+            zip.finish();
+        }
+        else if(TAR_FORMAT.equalsIgnoreCase(format)
+                || TGZ_FORMAT.equalsIgnoreCase(format)) {
+            boolean gzip = TGZ_FORMAT.equalsIgnoreCase(format);
+            response.setContentType(gzip? "application/x-gzip" : "application/x-tar");
+            setAttachment(name + (gzip? ".tgz" : ".tar"));
+            GZIPOutputStream gzout = gzip? new GZIPOutputStream(output) : null;
+            TarOutputStream tar = new TarOutputStream(gzip? gzout : output);
+            exportTar(col, "", tar);
+            tar.finish();
+            if(gzout != null)
+                gzout.finish();
+        }
+        else
+            throw new RequestException(BAD_REQUEST, "invalid format '" + format
+                                       + "': should be zip, tar or tgz");
+    }
+
+    private void setAttachment(String fileName)
+    {
+        response.setHeader("Content-Disposition",
+                           "attachment; filename=\"" + fileName + "\"");
+    }
+
+    private void exportZip(Collection col, String prefix, ZipOutputStream zip)
+        throws IOException, DataModelException
+    {
+        LibraryMemberIterator iter = col.getChildren();
+        for( ; iter.moveToNextMember(); ) {
+            LibraryMember member = iter.getCurrentMember();
+            String name = prefix + member.getName();
+            if(member.isCollection()) {
+                ZipEntry entry = new ZipEntry(name + "/");
+                entry.setTime(modificationTime(member));
+                zip.putNextEntry(entry);
+                zip.closeEntry();
+                exportZip((Collection) member, name + "/", zip);
+                continue;
+            }
+            ZipEntry entry = new ZipEntry(name);
+            entry.setTime(modificationTime(member));
+            zip.putNextEntry(entry);
+            if(member instanceof Document) {
+                XMLSerializer serial = newSerializer(zip);
+                serial.putNodeCopy(((Document) member).getDocumentNode(), 0);
+                serial.flush();
+            }
+            else if(member instanceof NonXMLDocument) {
+                InputStream export = ((NonXMLDocument) member).open();
+                FileUtil.copy(export, zip, null);
+                export.close();
+            }
+            zip.closeEntry();
+        }
+    }
+
+    private void exportTar(Collection col, String prefix, TarOutputStream tar)
+        throws IOException, DataModelException
+    {
+        LibraryMemberIterator iter = col.getChildren();
+        for( ; iter.moveToNextMember(); ) {
+            LibraryMember member = iter.getCurrentMember();
+            String name = prefix + member.getName();
+            long time = modificationTime(member);
+            if(member.isCollection()) {
+                tar.putDirectoryEntry(name, time);
+                exportTar((Collection) member, name + "/", tar);
+            }
+            else if(member instanceof Document) {
+                // TAR needs the size beforehand: serialize the document first
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                XMLSerializer serial = newSerializer(data);
+                serial.putNodeCopy(((Document) member).getDocumentNode(), 0);
+                serial.flush();
+                tar.putNextEntry(name, data.size(), time);
+                data.writeTo(tar);
+                tar.closeEntry();
+            }
+            else if(member instanceof NonXMLDocument) {
+                NonXMLDocument nonx = (NonXMLDocument) member;
+                tar.putNextEntry(name, nonx.size(), time);
+                InputStream export = nonx.open();
+                FileUtil.copy(export, tar, null);
+                export.close();
+                tar.closeEntry();
+            }
+        }
+    }
+
+    private static long modificationTime(LibraryMember member)
+        throws DataModelException
+    {
+        Object date = member.getProperty(IMPORT_DATE);
+        return (date instanceof Date)? ((Date) date).getTime()
+                                     : System.currentTimeMillis();
+    }
 }
@@ -13,6 +13,9 @@ import com.qizx.api.Product;
 import com.qizx.api.QName;
 import com.qizx.api.QizxException;
 import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.ExpressionCache;
+import com.qizx.server.util.ResultCache;
+import com.qizx.server.util.SlowQueryLog;
 import com.qizx.server.util.RequestException;
 import com.qizx.server.util.QizxDriver;
 import com.qizx.server.util.QizxRequestBase;
@@ -70,6 +73,35 @@ public class InfoRequest extends QizxRequestBase
             putProp(out, ("processors"), 
                          "" + Runtime.getRuntime().availableProcessors());
 
+            ExpressionCache cache = driver.getExpressionCache();
+            if(cache != null) {
+                long hits = cache.getHits(), misses = cache.getMisses();
+                putProp(out, "expression-cache-size", "" + cache.size());
+                putProp(out, "expression-cache-hits", "" + hits);
+                putProp(out, "expression-cache-misses", "" + misses);
+                putProp(out, "expression-cache-hit-rate", ""
+                        + (hits + misses == 0? 0 : (double) hits / (hits + misses)));
+                putProp(out, "expression-cache-evictions",
+                        "" + cache.getEvictions());
+                putProp(out, "expression-cache-idle-sessions",
+                        "" + cache.getIdleCount());
+            }
+            ResultCache results = driver.getResultCache();
+            if(results != null) {
+                putProp(out, "result-cache-size", "" + results.size());
+                putProp(out, "result-cache-bytes", "" + results.getByteCount());
+                putProp(out, "result-cache-hits", "" + results.getHits());
+                putProp(out, "result-cache-misses", "" + results.getMisses());
+                putProp(out, "result-cache-stale-hits",
+                        "" + results.getStaleHits());
+            }
+            putProp(out, "running-queries",
+                    "" + driver.getQueryRegistry().size());
+            SlowQueryLog slowLog = driver.getSlowQueryLog();
+            if(slowLog != null)
+                putProp(out, "slow-queries-logged",
+                        "" + slowLog.getLoggedCount());
+
             out.putElementEnd(wrapper);
             out.putDocumentEnd();
             out.flush();
@@ -0,0 +1,255 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.api.*;
+import com.qizx.api.util.PushNodeBuilder;
+import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.BlobCache;
+import com.qizx.server.util.PathGlob;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.RequestException;
+import com.qizx.util.basic.FileUtil;
+import com.qizx.xdm.IQName;
+
+import com.xmlmind.util.Base64;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Get several Documents in a single response.
+ * <p>
+ * Documents are specified by parameters path, path2, path3..., by a list
+ * of paths in parameter 'paths', or by a pattern in parameter 'glob'.
+ * The response is in multipart/mixed format (default) with one part per
+ * document, or a XML envelope if parameter 'format' is 'xml'. Errors are
+ * reported for each document.
+ * <p>
+ * XML documents are loaded in memory before being written, so that an error
+ * reading one is reported instead of a truncated document. A non-XML part
+ * interrupted by an error is shorter than its Content-Length.
+ */
+public class MGetRequest extends QizxRequestBase
+{
+    private static final String XML_FORMAT = "xml";
+    private static final String CRLF = "\r\n";
+
+    static final QName NM_DOCUMENTS = IQName.get("documents");
+    static final QName NM_DOCUMENT = IQName.get("document");
+    static final QName NM_ERROR = IQName.get("error");
+    static final QName NM_PATH = IQName.get("path");
+    static final QName NM_CODE = IQName.get("code");
+    static final QName NM_CONTENT_TYPE = IQName.get("content-type");
+    static final QName NM_ENCODING = IQName.get("encoding");
+
+    private String boundary;
+    private XMLSerializer envelope;
+
+    public String getName()
+    {
+        return "mget";
+    }
+
+    public void handleGet()
+        throws RequestException, IOException
+    {
+        handlePost();
+    }
+
+    public void handlePost()
+        throws RequestException, IOException
+    {
+        String libName = getLibraryParam();
+        String glob = getParameter("glob");
+        boolean xmlFormat = XML_FORMAT.equalsIgnoreCase(getParameter("format"));
+
+        ArrayList<String> paths = new ArrayList<String>();
+        String path = getParameter("path");
+        for(int rank = 2; path != null; rank++) {
+            paths.add(path);
+            path = getParameter("path" + rank);
+        }
+        String list = getParameter("paths");
+        if(list != null) {
+            String[] items = list.split("[\n\r,;]+");
+            for (int i = 0; i < items.length; i++)
+                if(items[i].trim().length() > 0)
+                    paths.add(items[i].trim());
+        }
+        if(paths.isEmpty() && glob == null)
+            throw new RequestException(BAD_REQUEST,
+                                       "parameter 'path', 'paths' or 'glob' required");
+
+        BlobCache blobCache = requireQizxDriver().getBlobCache();
+        long cacheStamp = (blobCache == null)? 0 : blobCache.getStamp();
+
+        try {
+            Library lib = acquireLibSession(libName);
+
+            ArrayList<LibraryMember> members = new ArrayList<LibraryMember>();
+            if(glob != null) {
+                new PathGlob(glob).expand(lib, members);
+                Collections.sort(members, new Comparator<LibraryMember>() {
+                    public int compare(LibraryMember m1, LibraryMember m2) {
+                        return m1.getPath().compareTo(m2.getPath());
+                    }
+                });
+            }
+
+            if(xmlFormat) {
+                response.setContentType(MIME_XML);
+                envelope = new XMLSerializer(output, "UTF-8");
+                envelope.putDocumentStart();
+                envelope.putElementStart(NM_DOCUMENTS);
+            }
+            else {
+                boundary = "qizx-" + Long.toHexString(System.nanoTime())
+                           + Long.toHexString(hashCode());
+                response.setContentType("multipart/mixed; boundary=" + boundary);
+            }
+
+            for(String p : paths) {
+                LibraryMember member = lib.getMember(p);
+                if(member == null)
+                    putError(p, NOT_FOUND, "Library member '" + p +
+                             "' not found in library " + lib.getName());
+                else if(member.isCollection())
+                    putError(p, BAD_REQUEST, "'" + p + "' is a Collection");
+                else
+                    putMember(lib, member, blobCache, cacheStamp);
+            }
+            for(LibraryMember member : members)
+                putMember(lib, member, blobCache, cacheStamp);
+
+            if(xmlFormat) {
+                envelope.putElementEnd(NM_DOCUMENTS);
+                envelope.putDocumentEnd();
+                envelope.flush();
+            }
+            else
+                print("--" + boundary + "--" + CRLF);
+        }
+        catch (DataModelException e) {
+            throw new RequestException(e);
+        }
+    }
+
+    private void putMember(Library lib, LibraryMember member,
+                           BlobCache blobCache, long cacheStamp)
+        throws DataModelException, IOException
+    {
+        String path = member.getPath();
+        try {
+            if(member instanceof Document) {
+                Node root = load(((Document) member).getDocumentNode());
+                if(envelope != null) {
+                    envelope.putElementStart(NM_DOCUMENT);
+                    envelope.putAttribute(NM_PATH, path, null);
+                    for(Node n = root.getFirstChild(); n != null; n = n.getNextSibling())
+                        envelope.putNodeCopy(n, 0);
+                    envelope.putElementEnd(NM_DOCUMENT);
+                    return;
+                }
+                putPartHeader(path, MIME_XML + "; charset=UTF-8", null);
+                XMLSerializer serial = new XMLSerializer(output, "UTF-8");
+                serial.putNodeCopy(root, 0);
+                serial.flush();
+                print(CRLF);
+            }
+            else if(member instanceof NonXMLDocument) {
+                NonXMLDocument nonx = (NonXMLDocument) member;
+                String mimeType = (String) member.getProperty(MIME_PROPERTY);
+                if(mimeType == null)
+                    mimeType = MIME_DATA;
+                if(envelope != null) {
+                    InputStream in = nonx.open();
+                    byte[] data = FileUtil.loadBytes(in);
+                    in.close();
+                    envelope.putElementStart(NM_DOCUMENT);
+                    envelope.putAttribute(NM_PATH, path, null);
+                    envelope.putAttribute(NM_CONTENT_TYPE, mimeType, null);
+                    envelope.putAttribute(NM_ENCODING, "base64", null);
+                    envelope.putText(Base64.encode(data));
+                    envelope.putElementEnd(NM_DOCUMENT);
+                    return;
+                }
+                putPartHeader(path, mimeType, Long.toString(nonx.size()));
+                try {
+                    if(blobCache != null)
+                        blobCache.send(lib.getName(), nonx, cacheStamp, output);
+                    else {
+                        InputStream export = nonx.open();
+                        FileUtil.copy(export, output, null);
+                        export.close();
+                    }
+                }
+                finally {
+                    print(CRLF);    // the next boundary must start a line
+                }
+            }
+        }
+        catch (DataModelException e) {
+            // before the part of an XML document, or after a truncated
+            // non-XML part (never inside the envelope: data is loaded first)
+            putError(path, XML_DATA, e.getMessage());
+        }
+    }
+
+    // copies a stored document in memory: read errors occur before output
+    private static Node load(Node document)
+        throws DataModelException
+    {
+        PushNodeBuilder builder = new PushNodeBuilder();
+        builder.putNodeCopy(document, 0);
+        return builder.reap();
+    }
+
+    private void putError(String path, String code, String message)
+        throws DataModelException, IOException
+    {
+        if(envelope != null) {
+            envelope.putElementStart(NM_ERROR);
+            envelope.putAttribute(NM_PATH, path, null);
+            envelope.putAttribute(NM_CODE, code, null);
+            envelope.putText(message);
+            envelope.putElementEnd(NM_ERROR);
+            return;
+        }
+        putPartHeader(path, MIME_QIZX_ERROR, null);
+        print(code + ": " + message + CRLF);
+    }
+
+    private void putPartHeader(String path, String contentType, String length)
+        throws IOException
+    {
+        print("--" + boundary + CRLF);
+        print("Content-Type: " + contentType + CRLF);
+        print("Content-Location: " + encodePath(path) + CRLF);
+        if(length != null)
+            print("Content-Length: " + length + CRLF);
+        print(CRLF);
+    }
+
+    // headers are ASCII only
+    private static String encodePath(String path)
+    {
+        try {
+            return new URI(null, null, path, null).toASCIIString();
+        }
+        catch (URISyntaxException e) {
+            return path;
+        }
+    }
+}
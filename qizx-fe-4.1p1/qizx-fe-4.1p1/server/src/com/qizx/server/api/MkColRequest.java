@@ -48,7 +48,7 @@ public class MkColRequest extends QizxRequestBase
                                "parent collection does not exist " + parentPath);
             }
             Collection coll = lib.createCollection(path);
-            lib.commit();
+            commit(lib);
             println(coll.getPath());
         }
         catch (DataModelException e) {
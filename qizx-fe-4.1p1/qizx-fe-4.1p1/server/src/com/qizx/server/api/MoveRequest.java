@@ -40,33 +40,8 @@ public class MoveRequest extends QizxRequestBase
             response.setContentType(MIME_PLAIN_TEXT);
             
             LibraryMember src = requireMember(lib, srcPath);
-            LibraryMember dst = lib.getMember(dstPath);
-            LibraryMember result = null;
-            
-            if(src.isCollection()) {
-                if(dst == null)
-                    result = lib.renameMember(srcPath, dstPath);
-                else if(dst.isCollection()) {
-                    dstPath = PathUtil.makePath(dstPath,
-                                                PathUtil.getBaseName(srcPath));
-                    result = lib.renameMember(srcPath, dstPath);
-                }
-                else throw new RequestException(XML_DATA, "cannot rename Collection to Document");
-            }
-            else {
-                if(dst != null) {
-                    if(dst.isCollection()) {
-                        dstPath = PathUtil.makePath(dstPath,
-                                                    PathUtil.getBaseName(srcPath));
-                        dst = lib.getMember(dstPath);
-                    }
-                    if(dst != null) {
-                        dst.delete(); 
-                    }
-                }
-                result = lib.renameMember(srcPath, dstPath);             
-            }
-            lib.commit();
+            LibraryMember result = move(lib, src, dstPath);
+            commit(lib);
             if(result != null)
                 println(result.getPath());
         }
@@ -74,4 +49,38 @@ public class MoveRequest extends QizxRequestBase
             throw new RequestException(e);
         }
     }
+
+    /**
+     * Renames a member: if the destination is an existing Collection, the
+     * member is moved inside it. An existing destination Document is replaced.
+     * @return the renamed member
+     */
+    static LibraryMember move(Library lib, LibraryMember src, String dstPath)
+        throws QizxException, RequestException
+    {
+        String srcPath = src.getPath();
+        LibraryMember dst = lib.getMember(dstPath);
+        
+        if(src.isCollection()) {
+            if(dst == null)
+                return lib.renameMember(srcPath, dstPath);
+            else if(dst.isCollection()) {
+                dstPath = PathUtil.makePath(dstPath,
+                                            PathUtil.getBaseName(srcPath));
+                return lib.renameMember(srcPath, dstPath);
+            }
+            else throw new RequestException(XML_DATA, "cannot rename Collection to Document");
+        }
+        if(dst != null) {
+            if(dst.isCollection()) {
+                dstPath = PathUtil.makePath(dstPath,
+                                            PathUtil.getBaseName(srcPath));
+                dst = lib.getMember(dstPath);
+            }
+            if(dst != null) {
+                dst.delete(); 
+            }
+        }
+        return lib.renameMember(srcPath, dstPath);             
+    }
 }
@@ -0,0 +1,66 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.api.Expression;
+import com.qizx.api.Library;
+import com.qizx.api.QizxException;
+import com.qizx.server.util.PreparedQueries;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.RequestException;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+/**
+ * Compiles a XQuery script and keeps it on the server: returns a handle
+ * used by the 'execute' request.
+ */
+public class PrepareRequest extends QizxRequestBase
+{
+    public String getName()
+    {
+        return "prepare";
+    }
+
+    public void handleGet()
+        throws ServletException, IOException
+    {
+        handlePost();
+    }
+
+    public void handlePost()
+        throws ServletException, IOException
+    {
+        String libName = getLibraryParam();
+        String query = getParameter("query"); 
+        if(query == null) { // in a part?
+            query = getPartAsString("query");
+            if(query == null)
+                requiredParam("query");
+        }
+        PreparedQueries registry = requireQizxDriver().getPreparedQueries();
+        if(registry == null)
+            throw new RequestException(BAD_REQUEST,
+                                       "prepared queries are disabled");
+        try {
+            Library lib = acquireLibSession(libName);
+            Expression expr = lib.compileExpression(query);
+            PreparedQueries.Prepared prepared =
+                registry.add(getUserName(), lib, expr);
+            libSession = null;  // belongs to the registry now
+            response.setContentType(MIME_PLAIN_TEXT);
+            println(prepared.getId());
+        }
+        catch (QizxException e) {
+            throw new RequestException(e);
+        }
+    }
+}
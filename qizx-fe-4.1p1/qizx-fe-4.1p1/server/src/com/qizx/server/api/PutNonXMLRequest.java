@@ -100,7 +100,7 @@ public class PutNonXMLRequest extends QizxRequestBase
                 curDataParam = "data" + rank;
             }
             
-            lib.commit();
+            commit(lib);
             
             log("import of " + (rank - 1 - errorCount) + " non-XML documents, "
                 + errorCount + " error(s)");
@@ -11,9 +11,18 @@ package com.qizx.server.api;
 import com.qizx.api.DataModelException;
 import com.qizx.api.Document;
 import com.qizx.api.Library;
+import com.qizx.api.NonXMLDocument;
 import com.qizx.api.QName;
+import com.qizx.api.QizxException;
+import com.qizx.api.XMLPushStream;
+import com.qizx.api.util.SAXToPushStream;
+import com.qizx.server.util.GroupCommitter;
+import com.qizx.server.util.ParsePipeline;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
+import com.qizx.server.util.SAXEventBuffer;
+import com.qizx.server.util.TarInputStream;
+import com.qizx.util.basic.FileUtil;
 import com.qizx.util.basic.PathUtil;
 import com.qizx.xdm.IQName;
 
@@ -21,11 +30,26 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.servlet.ServletException;
 
 public class PutRequest extends QizxRequestBase
 {
     private static final int LOCK_TIME_OUT = 5000;
+    private static final int MB = 1048576;
+    private static final String ZIP_FORMAT = "zip";
+    private static final String TAR_FORMAT = "tar";
+    private static final String TGZ_FORMAT = "tgz";
+    private static final String DEFAULT_XML_EXTENSIONS = "xml";
 
     public String getName()
     {
@@ -48,6 +72,13 @@ public class PutRequest extends QizxRequestBase
         String lock = getParameter("lock");
         
         try {
+            GroupCommitter group = requireQizxDriver().getGroupCommitter(libName);
+            if(group != null && lock == null && getParameter("format") == null
+               && getParameter("path2") == null) {
+                groupImport(group, libName, PathUtil.normalizePath(path, true));
+                return;
+            }
+
             Library lib = acquireLibSession(libName);
             
             log("========== starting import ");
@@ -60,6 +91,18 @@ public class PutRequest extends QizxRequestBase
             }
 
             response.setContentType(MIME_PLAIN_TEXT);
+
+            String format = getParameter("format");
+            if(format != null) {
+                importArchive(lib, path, format);
+                return;
+            }
+            ParsePipeline pipeline = requireQizxDriver().newParsePipeline();
+            if(pipeline != null && getParameter("path2") != null) {
+                importPipelined(lib, pipeline, path);
+                return;
+            }
+
             StringBuilder status = new StringBuilder();
             
             String curDataParam = "data";
@@ -77,18 +120,7 @@ public class PutRequest extends QizxRequestBase
                     Document doc = lib.importDocument(path, data);
                 }
                 catch (DataModelException e) {
-                    Exception ex = e;
-                    if (e.getCause() instanceof SAXException)
-                        ex = (SAXException) e.getCause();
-                    
-                    status.append(ex.getClass().getSimpleName()).append('\t');
-                    status.append(path).append('\t');
-                    if(ex instanceof SAXParseException) {
-                        SAXParseException sax = (SAXParseException) ex;
-                        status.append("[line " + sax.getLineNumber() + "] ");
-                    }
-                    status.append(ex.getMessage()).append('\n');
-                    
+                    status.append(importError(e, path)).append('\n');
                     ++ errorCount;
                 }
 //                finally {
@@ -103,7 +135,7 @@ public class PutRequest extends QizxRequestBase
                 data = openXMLSource(curDataParam);
             }
             
-            lib.commit();
+            commit(lib);
             
             log("import of " + (rank - 1 - errorCount) + " documents, "
                 + errorCount + " error(s)");
@@ -120,4 +152,292 @@ public class PutRequest extends QizxRequestBase
             throw new RequestException(e);
         }
     }
+
+    /**
+     * Imports a single document in group commit mode.
+     */
+    private void groupImport(GroupCommitter group, String libName,
+                             final String path)
+        throws RequestException, IOException
+    {
+        response.setContentType(MIME_PLAIN_TEXT);
+        int errorCount = 0;
+        try {
+            group.execute(libName, this, new GroupCommitter.Write() {
+                public String apply(Library lib)
+                    throws DataModelException, RequestException
+                {
+                    InputSource data = openXMLSource("data");
+                    if(data == null)
+                        throw new RequestException(BAD_REQUEST,
+                                           "no XML data for parameter data");
+                    log("import XML " + path + " (group commit)");
+                    lib.importDocument(path, data);
+                    return path;
+                }
+            });
+        }
+        catch (DataModelException e) {
+            println(importError(e, path));
+            ++ errorCount;
+        }
+        catch (QizxException e) {
+            throw new RequestException(e);
+        }
+        println("IMPORT ERRORS " + errorCount);
+    }
+
+    /**
+     * Imports documents path/data, path2/data2... parsed in parallel by the
+     * pipeline, then stored one at a time in the order of the request.
+     */
+    private void importPipelined(Library lib, ParsePipeline pipeline,
+                                 String firstPath)
+        throws RequestException, IOException, DataModelException
+    {
+        ArrayList<String> paths = new ArrayList<String>();
+        for(String path = firstPath; path != null;
+            path = getParameter("path" + (paths.size() + 1)))
+            paths.add(PathUtil.normalizePath(path, true));
+
+        StringBuilder status = new StringBuilder();
+        int submitted = 0, errorCount = 0;
+        try {
+            for(String path : paths)
+            {
+                // keep the pipeline full:
+                while(submitted < paths.size() && !pipeline.isFull()) {
+                    String dataParam = (submitted == 0)? "data"
+                                                 : "data" + (submitted + 1);
+                    InputSource data = openXMLSource(dataParam);
+                    if(data == null)
+                        throw new RequestException(BAD_REQUEST,
+                                      "no XML data for parameter " + dataParam);
+                    pipeline.submit(data);
+                    ++ submitted;
+                }
+
+                log("import XML " + path + " (parsed in pipeline)");
+                try {
+                    SAXEventBuffer events = pipeline.next();
+                    XMLPushStream stream = lib.beginImportDocument(path);
+                    try {
+                        events.replay(new SAXToPushStream(stream));
+                    }
+                    catch (SAXException e) {
+                        lib.cancelImportDocument();
+                        throw e;
+                    }
+                    lib.endImportDocument();
+                }
+                catch (SAXException e) {
+                    status.append(importError(e, path)).append('\n');
+                    ++ errorCount;
+                }
+                catch (IOException e) {
+                    status.append(importError(e, path)).append('\n');
+                    ++ errorCount;
+                }
+                catch (DataModelException e) {
+                    status.append(importError(e, path)).append('\n');
+                    ++ errorCount;
+                }
+            }
+        }
+        finally {
+            pipeline.cancel();
+        }
+
+        commit(lib);
+
+        log("import of " + (paths.size() - errorCount) + " documents, "
+            + errorCount + " error(s)");
+
+        status.append("IMPORT ERRORS ").append(errorCount);
+        println(status.toString());
+    }
+
+    /**
+     * Imports all the entries of a ZIP or TAR archive in part 'data' as they
+     * are read, below the collection 'path'. Commits every N documents
+     * (parameter 'commit') and/or N Mb (parameter 'commitsize').
+     * If the archive is corrupted, documents imported since the last commit
+     * are rolled back (reported by a line ROLLBACK n) and not counted.
+     */
+    private void importArchive(Library lib, String root, String format)
+        throws RequestException, IOException, DataModelException
+    {
+        int commitCount = getIntParameter("commit", 0);
+        long commitSize = getIntParameter("commitsize", 0) * (long) MB;
+        HashSet<String> xmlExtensions =
+            parseNameList(getParameter("xmlext", DEFAULT_XML_EXTENSIONS));
+        root = PathUtil.normalizePath(root, true);
+
+        InputStream data;
+        try {
+            data = getPartAsStream("data");
+        }
+        catch (ServletException e) {
+            throw new RequestException(SERVER, e);
+        }
+        if(data == null)
+            throw new RequestException(BAD_REQUEST, "no archive in parameter data");
+
+        ZipInputStream zip = null;
+        TarInputStream tar = null;
+        if(ZIP_FORMAT.equalsIgnoreCase(format))
+            zip = new ZipInputStream(data);
+        else if(TAR_FORMAT.equalsIgnoreCase(format))
+            tar = new TarInputStream(data);
+        else if(TGZ_FORMAT.equalsIgnoreCase(format))
+            tar = new TarInputStream(new GZIPInputStream(data));
+        else
+            throw new RequestException(BAD_REQUEST, "invalid format '" + format
+                                       + "': should be zip, tar or tgz");
+        log("========== starting " + format + " import in " + root);
+
+        int docCount = 0, errorCount = 0, pending = 0, committed = 0;
+        long pendingSize = 0;
+        try {
+            for(;;) {
+                String name;
+                boolean directory;
+                InputStream content;
+                if(zip != null) {
+                    ZipEntry entry = zip.getNextEntry();
+                    if(entry == null)
+                        break;
+                    name = entry.getName();
+                    directory = entry.isDirectory();
+                    content = zip;
+                }
+                else {
+                    TarInputStream.Entry entry = tar.getNextEntry();
+                    if(entry == null)
+                        break;
+                    name = entry.getName();
+                    directory = entry.isDirectory();
+                    content = tar;
+                }
+                String path = PathUtil.normalizePath(
+                                          PathUtil.makePath(root, name), true);
+                if(("/" + name + "/").indexOf("/../") >= 0
+                   || !PathUtil.contains(root, true, path)) {
+                    ++ errorCount;
+                    println("InvalidPath\t" + name + "\toutside of " + root);
+                    continue;
+                }
+
+                EntryStream stream = new EntryStream(content);
+                try {
+                    if(directory) {
+                        if(lib.getMember(path) == null)
+                            lib.createCollection(path);
+                        continue;
+                    }
+                    if(xmlExtensions.contains(FileUtil.fileExtension(name).toLowerCase()))
+                        lib.importDocument(path, new InputSource(stream));
+                    else {
+                        NonXMLDocument doc =
+                            lib.importNonXMLDocument(path, false, stream);
+                        String mimeType =
+                            URLConnection.guessContentTypeFromName(name);
+                        if(mimeType != null)
+                            doc.setProperty(MIME_PROPERTY, mimeType);
+                        doc.setIntegerProperty("size", stream.count);
+                    }
+                    ++ docCount;
+                }
+                catch (DataModelException e) {
+                    ++ errorCount;
+                    println(importError(e, path));
+                }
+                ++ pending;
+                pendingSize += stream.count;
+
+                if((commitCount > 0 && pending >= commitCount)
+                   || (commitSize > 0 && pendingSize >= commitSize)) {
+                    commit(lib);
+                    committed = docCount;
+                    println("COMMIT " + docCount + " " + errorCount);
+                    output.flush();
+                    pending = 0;
+                    pendingSize = 0;
+                }
+            }
+        }
+        catch (IOException e) {
+            // stream corrupted: keep only what is committed, report
+            ++ errorCount;
+            println(e.getClass().getSimpleName() + "\t" + format + "\t"
+                    + e.getMessage());
+            rollback(lib);
+            println("ROLLBACK " + (docCount - committed));
+            docCount = committed;
+        }
+        if(lib.isModified())
+            commit(lib);
+
+        log("import of " + docCount + " documents from " + format
+            + " archive, " + errorCount + " error(s)");
+        println("IMPORTED " + docCount);
+        println("IMPORT ERRORS " + errorCount);
+    }
+
+    // Entry of an archive: not closed by the parser, counts bytes.
+    private static class EntryStream extends FilterInputStream
+    {
+        long count;
+
+        EntryStream(InputStream in)
+        {
+            super(in);
+        }
+
+        public int read()
+            throws IOException
+        {
+            int b = in.read();
+            if(b >= 0)
+                ++ count;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            int n = in.read(b, off, len);
+            if(n > 0)
+                count += n;
+            return n;
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * Describes an import error: exception class, path, position if
+     * available, message; separated by tabs.
+     */
+    static String importError(Exception e, String path)
+    {
+        Exception ex = e;
+        if (e.getCause() instanceof SAXException)
+            ex = (SAXException) e.getCause();
+        else if (e instanceof SAXException
+                 && ((SAXException) e).getException() != null)
+            ex = ((SAXException) e).getException(); // wrapped by replay
+        
+        StringBuilder status = new StringBuilder();
+        status.append(ex.getClass().getSimpleName()).append('\t');
+        status.append(path).append('\t');
+        if(ex instanceof SAXParseException) {
+            SAXParseException sax = (SAXParseException) ex;
+            status.append("[line " + sax.getLineNumber() + "] ");
+        }
+        status.append(ex.getMessage());
+        return status.toString();
+    }
 }
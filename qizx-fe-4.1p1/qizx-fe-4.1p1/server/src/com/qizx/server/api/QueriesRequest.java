@@ -0,0 +1,84 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.QName;
+import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.QizxDriver;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.QueryRegistry.RunningQuery;
+import com.qizx.server.util.RequestException;
+import com.qizx.xdm.IQName;
+
+import java.io.IOException;
+
+/**
+ * Lists the queries being evaluated: all queries for an administrator,
+ * otherwise the queries of the user.
+ * <p>
+ * Each query has an id (for the 'cancel' request), the name of the request
+ * that runs it, the user, the Library, the start time and elapsed time in
+ * milliseconds, and a hash of the query text.
+ */
+public class QueriesRequest extends QizxRequestBase
+{
+    static final QName NM_QUERIES = IQName.get("queries");
+    static final QName NM_QUERY = IQName.get("query");
+    static final QName NM_ID = IQName.get("id");
+    static final QName NM_OP = IQName.get("op");
+    static final QName NM_USER = IQName.get("user");
+    static final QName NM_LIBRARY = IQName.get("library");
+    static final QName NM_START = IQName.get("start");
+    static final QName NM_ELAPSED = IQName.get("elapsed");
+    static final QName NM_HASH = IQName.get("hash");
+    static final QName NM_CANCELLED = IQName.get("cancelled");
+
+    public String getName()
+    {
+        return "queries";
+    }
+
+    public void handleGet()
+        throws RequestException, IOException
+    {
+        QizxDriver driver = requireQizxDriver();
+        String user = isAdmin(driver)? null : getUserName();
+        long now = System.currentTimeMillis();
+        try {
+            response.setContentType(MIME_XML);
+            XMLSerializer out = new XMLSerializer(output, "UTF-8");
+            out.putDocumentStart();
+            out.putElementStart(NM_QUERIES);
+            for(RunningQuery q : driver.getQueryRegistry().list(user)) {
+                out.putElementStart(NM_QUERY);
+                out.putAttribute(NM_ID, q.getId(), null);
+                out.putAttribute(NM_OP, q.getOperation(), null);
+                if(q.getUser() != null)
+                    out.putAttribute(NM_USER, q.getUser(), null);
+                if(q.getLibrary() != null)
+                    out.putAttribute(NM_LIBRARY, q.getLibrary(), null);
+                out.putAttribute(NM_START, Long.toString(q.getStartTime()),
+                                 null);
+                out.putAttribute(NM_ELAPSED,
+                                 Long.toString(now - q.getStartTime()), null);
+                out.putAttribute(NM_HASH, q.getQueryHash(), null);
+                if(q.isCancelled())
+                    out.putAttribute(NM_CANCELLED, "true", null);
+                out.putElementEnd(NM_QUERY);
+            }
+            out.putElementEnd(NM_QUERIES);
+            out.putDocumentEnd();
+            out.flush();
+        }
+        catch (DataModelException e) {
+            throw new RequestException(e);
+        }
+    }
+}
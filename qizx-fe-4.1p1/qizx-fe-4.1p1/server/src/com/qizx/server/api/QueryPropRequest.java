@@ -17,6 +17,7 @@ import com.qizx.api.QizxException;
 import com.qizx.api.util.XMLSerializer;
 import com.qizx.server.util.RequestException;
 import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.QueryRegistry.RunningQuery;
 
 import java.io.IOException;
 import java.util.HashSet;
@@ -48,6 +49,7 @@ public class QueryPropRequest extends QizxRequestBase
         String queryParam = getParameter("query");
         String properties = getParameter("properties", "path,nature");
         HashSet propNames = parseNameList(properties);
+        startQueryLog(queryParam, true);
        
         try {
             Library lib = acquireLibSession(libName);
@@ -64,10 +66,19 @@ public class QueryPropRequest extends QizxRequestBase
             out.putDocumentStart();
             out.putElementStart(NAME);
            
-            LibraryMemberIterator members = root.queryProperties(q);
-            for(; members.moveToNextMember(); ) {
-                RESTAPIServlet.putProperties(members.getCurrentMember(), out, propNames);
+            RunningQuery running = startQuery(lib.getName(), q);
+            int count = 0;
+            try {
+                LibraryMemberIterator members = root.queryProperties(q);
+                for(; members.moveToNextMember(); ++count) {
+                    RESTAPIServlet.putProperties(members.getCurrentMember(), out, propNames);
+                }
             }
+            finally {
+                endQuery(running);
+            }
+            slowLogPhase("evaluate");
+            setItemCount(count);
 
             out.putElementEnd(NAME);
             out.putDocumentEnd();
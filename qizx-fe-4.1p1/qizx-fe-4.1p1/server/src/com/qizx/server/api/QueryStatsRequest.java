@@ -0,0 +1,162 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.QName;
+import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.QizxDriver;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.QueryStats;
+import com.qizx.server.util.QueryStats.Stat;
+import com.qizx.server.util.RequestException;
+import com.qizx.xdm.IQName;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Returns the statistics of queries aggregated per fingerprint (see
+ * {@link QueryStats}). Requires the administrator role.
+ * <p>
+ * Fingerprints are sorted in decreasing order of parameter 'sort': total
+ * (default), calls, mean, p95, max, compile, items, errors or timeouts.
+ * Parameter 'count' limits the number of fingerprints returned.
+ * <p>
+ * With POST, the statistics are reset after being returned.
+ * <p>
+ * Times are in milliseconds; 'compile' is the total time spent before
+ * evaluation.
+ */
+public class QueryStatsRequest extends QizxRequestBase
+{
+    static final QName NM_QUERYSTATS = IQName.get("querystats");
+    static final QName NM_QUERY = IQName.get("query");
+    static final QName NM_SINCE = IQName.get("since");
+    static final QName NM_MAX_SIZE = IQName.get("max-size");
+    static final QName NM_EVICTED = IQName.get("evicted");
+    static final QName NM_FINGERPRINT = IQName.get("fingerprint");
+    static final QName NM_OP = IQName.get("op");
+
+    private static final String[] SORT_KEYS = {
+        "total", "calls", "mean", "p95", "max", "compile", "items",
+        "errors", "timeouts"
+    };
+    private static final QName[] SORT_NAMES = new QName[SORT_KEYS.length];
+    static {
+        for(int k = 0; k < SORT_KEYS.length; k++)
+            SORT_NAMES[k] = IQName.get(SORT_KEYS[k]);
+    }
+
+    public String getName()
+    {
+        return "querystats";
+    }
+
+    public void handleGet()
+        throws RequestException, IOException
+    {
+        putStats(false);
+    }
+
+    public void handlePost()
+        throws RequestException, IOException
+    {
+        putStats(true);
+    }
+
+    private void putStats(boolean reset)
+        throws RequestException, IOException
+    {
+        QizxDriver driver = requireQizxDriver();
+        checkAdminRole(driver);
+        QueryStats stats = driver.getQueryStats();
+        if(stats == null)
+            throw new RequestException(BAD_REQUEST,
+                                       "query statistics are disabled");
+        String sort = getParameter("sort", "total");
+        final int key = indexOf(sort);
+        if(key < 0)
+            throw new RequestException(BAD_REQUEST, "invalid sort '" + sort
+                                       + "'");
+        int count = getIntParameter("count", -1);
+
+        List<Stat> list;
+        long since;
+        long evicted;
+        synchronized (stats) {
+            list = stats.list();
+            since = stats.getResetTime();
+            evicted = stats.getEvicted();
+            if(reset)
+                stats.reset();
+        }
+        Collections.sort(list, new Comparator<Stat>() {
+            public int compare(Stat s1, Stat s2) {
+                long v1 = value(s1, key), v2 = value(s2, key);
+                return (v1 > v2)? -1 : (v1 < v2)? 1 : 0;
+            }
+        });
+        if(count >= 0 && list.size() > count)
+            list = list.subList(0, count);
+
+        try {
+            response.setContentType(MIME_XML);
+            XMLSerializer out = new XMLSerializer(output, "UTF-8");
+            out.putDocumentStart();
+            out.putElementStart(NM_QUERYSTATS);
+            out.putAttribute(NM_SINCE, Long.toString(since), null);
+            out.putAttribute(NM_MAX_SIZE, Integer.toString(stats.getMaxSize()),
+                             null);
+            out.putAttribute(NM_EVICTED, Long.toString(evicted), null);
+            for(Stat s : list) {
+                out.putElementStart(NM_QUERY);
+                out.putAttribute(NM_FINGERPRINT, s.getFingerprint(), null);
+                out.putAttribute(NM_OP, s.getOperation(), null);
+                for(int k = 0; k < SORT_KEYS.length; k++)
+                    out.putAttribute(SORT_NAMES[k],
+                                     Long.toString(value(s, k)), null);
+                out.putText(s.getText());
+                out.putElementEnd(NM_QUERY);
+            }
+            out.putElementEnd(NM_QUERYSTATS);
+            out.putDocumentEnd();
+            out.flush();
+        }
+        catch (DataModelException e) {
+            throw new RequestException(e);
+        }
+    }
+
+    private static int indexOf(String sort)
+    {
+        for(int k = 0; k < SORT_KEYS.length; k++)
+            if(SORT_KEYS[k].equals(sort))
+                return k;
+        return -1;
+    }
+
+    // value of a statistic by its rank in SORT_KEYS
+    private static long value(Stat s, int key)
+    {
+        switch(key) {
+        case 0: return s.getTotalTime();
+        case 1: return s.getCalls();
+        case 2: return s.getMeanTime();
+        case 3: return s.getP95Time();
+        case 4: return s.getMaxTime();
+        case 5: return s.getCompileTime();
+        case 6: return s.getItems();
+        case 7: return s.getErrors();
+        default: return s.getTimeouts();
+        }
+    }
+}
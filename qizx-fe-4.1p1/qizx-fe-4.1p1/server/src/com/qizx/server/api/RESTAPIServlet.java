@@ -50,16 +50,27 @@ public class RESTAPIServlet extends ServletBase
         addHandler(new ListLibRequest());
         
         addHandler(new EvalRequest());      // q/o
+        addHandler(new CloseCursorRequest());
+        addHandler(new PrepareRequest());
+        addHandler(new ExecuteRequest());
+        addHandler(new EvalBatchRequest());
+        addHandler(new QueriesRequest());
+        addHandler(new CancelRequest());
+        addHandler(new ExplainRequest());
+        addHandler(new QueryStatsRequest());
         addHandler(new MkColRequest());
         addHandler(new PutRequest());
         addHandler(new PutNonXMLRequest());
 
         addHandler(new GetRequest());
         defaultHandler("GET", new GetRequest());
+        addHandler(new MGetRequest());
+        addHandler(new TreeRequest());
 
         addHandler(new MoveRequest());
         addHandler(new CopyRequest());
         addHandler(new DeleteRequest());
+        addHandler(new BatchRequest());
         
         addHandler(new GetPropRequest());
         addHandler(new SetPropRequest());
@@ -119,30 +130,47 @@ public class RESTAPIServlet extends ServletBase
                 continue;
             out.putElementStart(NM_PROPERTY);
             out.putAttribute(NM_NAME, names[i], null);
-            String type = null;
-            if(value instanceof Node) {
-                Node node = (Node) value;
-                out.putAttribute(NM_TYPE, node.getNodeKind() + "()", null);
-                out.putNodeCopy(node, 0);   // strange if node is attribute
-            }
-            else {
-                if(value instanceof Date) {
-                    value = new com.qizx.api.util.time.DateTime((Date) value, 0);
-                    type = "dateTime";
-                }
-                else if(value instanceof Double)
-                    type = "double";
-                else if(value instanceof Long)
-                    type = "integer";
-                else if(value instanceof Boolean)
-                    type = "boolean";
-                if(type != null)
-                    out.putAttribute(NM_TYPE, type, null);
-    
-                out.putText(value.toString());
-            }
+            String type = propertyType(value);
+            if(type != null)
+                out.putAttribute(NM_TYPE, type, null);
+            if(value instanceof Node)
+                out.putNodeCopy((Node) value, 0);   // strange if node is attribute
+            else
+                out.putText(propertyText(value));
             out.putElementEnd(NM_PROPERTY);
         }
         out.putElementEnd(NM_PROPERTIES);
     }
+
+    /**
+     * Type of a property value in responses: null for a string.
+     */
+    protected static String propertyType(Object value)
+        throws DataModelException
+    {
+        if(value instanceof Node)
+            return ((Node) value).getNodeKind() + "()";
+        if(value instanceof Date)
+            return "dateTime";
+        if(value instanceof Double)
+            return "double";
+        if(value instanceof Long)
+            return "integer";
+        if(value instanceof Boolean)
+            return "boolean";
+        return null;
+    }
+
+    /**
+     * Text of a property value in responses (serialized if a node).
+     */
+    protected static String propertyText(Object value)
+        throws DataModelException
+    {
+        if(value instanceof Node)
+            return new XMLSerializer().serializeToString((Node) value);
+        if(value instanceof Date)
+            return new com.qizx.api.util.time.DateTime((Date) value, 0).toString();
+        return value.toString();
+    }
 }
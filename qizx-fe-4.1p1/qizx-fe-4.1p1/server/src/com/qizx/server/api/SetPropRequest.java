@@ -15,6 +15,7 @@ import com.qizx.api.Library;
 import com.qizx.api.LibraryMember;
 import com.qizx.api.QizxException;
 import com.qizx.apps.util.Property;
+import com.qizx.server.util.GroupCommitter;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
 import com.qizx.xdm.DocumentParser;
@@ -39,60 +40,98 @@ public class SetPropRequest extends QizxRequestBase
         throws RequestException, IOException
     {
         String libName = getLibraryParam();
-        String path = getPathParam();
+        final String path = getPathParam();
         
-        String nameParam = getParameter("name");
-        if(nameParam == null)
+        if(getParameter("name") == null)
             throw new RequestException(BAD_REQUEST, "parameter 'name' should not be empty");
-        String typeParam = getParameter("type", "string");
-        String valueParam = getParameter("value");
-        int rank = getParameter("name1") != null? 1 : 2;
         
         try {
+            GroupCommitter group = requireQizxDriver().getGroupCommitter(libName);
+            if(group != null) {
+                String result = group.execute(libName, this,
+                                              new GroupCommitter.Write() {
+                    public String apply(Library lib)
+                        throws QizxException, RequestException
+                    {
+                        return setProperties(lib, path);
+                    }
+                });
+                response.setContentType(MIME_PLAIN_TEXT);
+                println(result);
+                return;
+            }
+
             Library lib = acquireLibSession(libName);
             response.setContentType(MIME_PLAIN_TEXT);
 
-            LibraryMember member = requireMember(lib, path);
-            for(; ; ++rank)
-            {
-                Object value = valueParam;
-                ItemType type = lib.getType(typeParam);
-                if(Property.EXPRESSION.equals(typeParam)) {
-                    Expression exp = lib.compileExpression(valueParam);
-                    ItemSequence res = exp.evaluate();
-                    if(res.moveToNextItem()) {
-                        value = res.getCurrentItem();
-                    } // ignore remaining items...
-                }
-                else if(Property.NODE.equals(typeParam)) {
-                    try {
-                        value = DocumentParser.parse(new InputSource(new StringReader(valueParam)));
-                    }
-                    catch (SAXException e) {
-                        throw new RequestException("XMLData", e);
-                    }
-                }
-                else if(type == null)
-                    throw new RequestException(BAD_REQUEST, "invalid property type '"+typeParam+"'");
-                else {
-                    value = lib.createItem(valueParam, type);
-                }
-                
-                log("value "+value+" class "+(value != null? value.getClass() : null));
-                member.setProperty(nameParam, value);
-                
-                // more?
-                nameParam = getParameter("name" + rank);
-                if(nameParam == null)
-                    break;
-                typeParam = getParameter("type" + rank);
-                valueParam = getParameter("value" + rank);
-            }            
-            lib.commit();
-            println(member.getPath());
+            String memberPath = setProperties(lib, path);
+            commit(lib);
+            println(memberPath);
         }
         catch (QizxException e) {
             throw new RequestException(e);
         }
     }
+
+    // sets properties name/type/value, name2/type2/value2... (or name1...)
+    private String setProperties(Library lib, String path)
+        throws QizxException, RequestException
+    {
+        String nameParam = getParameter("name");
+        String typeParam = getParameter("type", "string");
+        String valueParam = getParameter("value");
+        int rank = getParameter("name1") != null? 1 : 2;
+
+        LibraryMember member = requireMember(lib, path);
+        for(; ; ++rank)
+        {
+            Object value = convertValue(lib, typeParam, valueParam);
+            
+            log("value "+value+" class "+(value != null? value.getClass() : null));
+            member.setProperty(nameParam, value);
+            
+            // more?
+            nameParam = getParameter("name" + rank);
+            if(nameParam == null)
+                break;
+            typeParam = getParameter("type" + rank);
+            valueParam = getParameter("value" + rank);
+        }            
+        return member.getPath();
+    }
+
+    /**
+     * Converts the string value of a property according to its type name:
+     * an atomic type, an XQuery expression or a XML node.
+     */
+    static Object convertValue(Library lib, String typeParam, String valueParam)
+        throws QizxException, RequestException
+    {
+        Object value = valueParam;
+        ItemType type = lib.getType(typeParam);
+        if(Property.EXPRESSION.equals(typeParam)) {
+            Expression exp = lib.compileExpression(valueParam);
+            ItemSequence res = exp.evaluate();
+            if(res.moveToNextItem()) {
+                value = res.getCurrentItem();
+            } // ignore remaining items...
+        }
+        else if(Property.NODE.equals(typeParam)) {
+            try {
+                value = DocumentParser.parse(new InputSource(new StringReader(valueParam)));
+            }
+            catch (SAXException e) {
+                throw new RequestException("XMLData", e);
+            }
+            catch (IOException e) {
+                throw new RequestException(SERVER, e);
+            }
+        }
+        else if(type == null)
+            throw new RequestException(BAD_REQUEST, "invalid property type '"+typeParam+"'");
+        else {
+            value = lib.createItem(valueParam, type);
+        }
+        return value;
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.api.*;
+import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.JSONWriter;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.RequestException;
+import com.qizx.xdm.IQName;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.HashSet;
+
+/**
+ * Lists a hierarchy of Library members with selected properties, in a
+ * single streamed response.
+ * <p>
+ * Parameters: 'path' of the root member, 'depth' (default unlimited, 0 for
+ * the root member only), 'properties' (list of property names, '*' for all,
+ * none by default), 'format' (xml or json).
+ */
+public class TreeRequest extends QizxRequestBase
+{
+    private static final String JSON_FORMAT = "json";
+    private static final String ALL_PROPERTIES = "*";
+    private static final String COLLECTION = "collection";
+    private static final String DOCUMENT = "document";
+    private static final String NON_XML = "nonxml";
+
+    static final QName NM_TREE = IQName.get("tree");
+    static final QName NM_COLLECTION = IQName.get(COLLECTION);
+    static final QName NM_DOCUMENT = IQName.get(DOCUMENT);
+    static final QName NM_NON_XML = IQName.get(NON_XML);
+
+    private boolean withProperties;
+    private HashSet<String> propNames;  // null for all
+
+    public String getName()
+    {
+        return "tree";
+    }
+
+    public void handleGet()
+        throws RequestException, IOException
+    {
+        handlePost();
+    }
+
+    public void handlePost()
+        throws RequestException, IOException
+    {
+        String libName = getLibraryParam();
+        String path = getPathParam();
+        int depth = getIntParameter("depth", -1);
+        if(depth < 0)
+            depth = Integer.MAX_VALUE;
+        String properties = getParameter("properties");
+        withProperties = properties != null;
+        if(withProperties && !ALL_PROPERTIES.equals(properties.trim()))
+            propNames = parseNameList(properties);
+        boolean json = JSON_FORMAT.equalsIgnoreCase(getParameter("format"));
+
+        try {
+            Library lib = acquireLibSession(libName);
+            LibraryMember root = requireMember(lib, path == null? "/" : path);
+
+            if(json) {
+                response.setContentType(JSONWriter.MIME_JSON + "; charset=UTF-8");
+                JSONWriter out = new JSONWriter(new BufferedWriter(
+                                      new OutputStreamWriter(output, "UTF-8")));
+                putJSONMember(root, out, depth);
+                out.flush();
+            }
+            else {
+                response.setContentType(MIME_XML);
+                XMLSerializer out = new XMLSerializer(output, "UTF-8");
+                out.putDocumentStart();
+                out.putElementStart(NM_TREE);
+                putXMLMember(root, out, depth);
+                out.putElementEnd(NM_TREE);
+                out.putDocumentEnd();
+                out.flush();
+            }
+        }
+        catch (QizxException e) {
+            throw new RequestException(e);
+        }
+    }
+
+    private void putXMLMember(LibraryMember member, XMLSerializer out,
+                              int depth)
+        throws DataModelException
+    {
+        QName name = member.isCollection()? NM_COLLECTION
+                : (member instanceof NonXMLDocument)? NM_NON_XML : NM_DOCUMENT;
+        out.putElementStart(name);
+        out.putAttribute(RESTAPIServlet.NM_PATH, member.getPath(), null);
+        if(withProperties)
+            RESTAPIServlet.putProperties(member, out, propNames);
+        if(member.isCollection() && depth > 0) {
+            LibraryMemberIterator children = ((Collection) member).getChildren();
+            for(; children.moveToNextMember(); )
+                putXMLMember(children.getCurrentMember(), out, depth - 1);
+        }
+        out.putElementEnd(name);
+    }
+
+    private void putJSONMember(LibraryMember member, JSONWriter out, int depth)
+        throws DataModelException, IOException
+    {
+        out.startObject();
+        out.name("path").value(member.getPath());
+        out.name("type").value(member.isCollection()? COLLECTION
+                 : (member instanceof NonXMLDocument)? NON_XML : DOCUMENT);
+        if(withProperties) {
+            out.name("properties").startObject();
+            String[] names = member.getPropertyNames();
+            for (int i = 0; i < names.length; i++) {
+                if(propNames != null && !propNames.contains(names[i]))
+                    continue;
+                Object value = member.getProperty(names[i]);
+                if(value != null) {
+                    out.name(names[i]);
+                    putJSONValue(value, out);
+                }
+            }
+            out.endObject();
+        }
+        if(member.isCollection() && depth > 0) {
+            out.name("children").startArray();
+            LibraryMemberIterator children = ((Collection) member).getChildren();
+            for(; children.moveToNextMember(); )
+                putJSONMember(children.getCurrentMember(), out, depth - 1);
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    // property value: types and conversions of RESTAPIServlet.putProperties
+    private static void putJSONValue(Object value, JSONWriter out)
+        throws DataModelException, IOException
+    {
+        String type = RESTAPIServlet.propertyType(value);
+        if("double".equals(type))
+            out.value(((Double) value).doubleValue());
+        else if("integer".equals(type))
+            out.value(((Long) value).longValue());
+        else if("boolean".equals(type))
+            out.value(((Boolean) value).booleanValue());
+        else
+            out.value(RESTAPIServlet.propertyText(value));
+    }
+}
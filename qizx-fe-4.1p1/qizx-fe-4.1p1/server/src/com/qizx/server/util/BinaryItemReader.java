@@ -0,0 +1,260 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Reads the binary encoding of XQuery items produced by
+ * {@link BinaryItemWriter}, as a stream of events.
+ * <p>
+ * {@link #next()} returns the tag of the next record (ATOM, NODE, node
+ * events, TOTAL_COUNT, CURSOR, ERROR, or EOS at the end). The data of the record
+ * is then available through the getters: for ATOM, {@link #getType()} and
+ * one of {@link #getLong()}, {@link #getDouble()}, {@link #getBoolean()},
+ * {@link #getString()} according to {@link #getValueKind()}; for ELEMENT
+ * and ATTRIBUTE, the name and attributes; for TEXT, COMMENT and PI the
+ * string value (and target name of PI); for TOTAL_COUNT the count
+ * ({@link #getLong()}); for CURSOR the id ({@link #getString()}); for
+ * ERROR the code ({@link #getErrorCode()}) and message ({@link #getString()}).
+ */
+public class BinaryItemReader
+{
+    private InputStream in;
+    private ArrayList<String> names = new ArrayList<String>();
+    private byte[] buffer = new byte[256];
+
+    private String type;
+    private int valueKind;
+    private long longValue;
+    private double doubleValue;
+    private String stringValue;
+    private String errorCode;
+    private String namespace;
+    private String localName;
+    private int attrCount;
+    private String[] attrNamespaces = new String[8];
+    private String[] attrNames = new String[8];
+    private String[] attrValues = new String[8];
+
+    public BinaryItemReader(InputStream in)
+        throws IOException
+    {
+        this.in = new BufferedInputStream(in, 8192);
+        for(int i = 0; i < BinaryItemWriter.MAGIC.length; i++)
+            if(readByte() != BinaryItemWriter.MAGIC[i])
+                throw new IOException("not a binary item stream");
+    }
+
+    /**
+     * Reads the next record.
+     * @return the tag of the record
+     */
+    public int next()
+        throws IOException
+    {
+        int tag = readByte();
+        switch(tag) {
+        case BinaryItemWriter.ATOM:
+            type = readName();
+            valueKind = readByte();
+            switch(valueKind) {
+            case BinaryItemWriter.LONG:
+                long zigzag = readNumber();
+                longValue = (zigzag >>> 1) ^ -(zigzag & 1);
+                break;
+            case BinaryItemWriter.DOUBLE:
+                long bits = 0;
+                for(int i = 0; i < 8; i++)
+                    bits = (bits << 8) | readByte();
+                doubleValue = Double.longBitsToDouble(bits);
+                break;
+            case BinaryItemWriter.BOOLEAN:
+                longValue = readByte();
+                break;
+            case BinaryItemWriter.STRING:
+                stringValue = readString();
+                break;
+            default:
+                throw new IOException("invalid value kind " + valueKind);
+            }
+            break;
+        case BinaryItemWriter.NODE:
+            type = readName();
+            break;
+        case BinaryItemWriter.ELEMENT:
+            namespace = readName();
+            localName = readName();
+            attrCount = (int) readNumber();
+            if(attrCount > attrNames.length) {
+                attrNamespaces = new String[attrCount];
+                attrNames = new String[attrCount];
+                attrValues = new String[attrCount];
+            }
+            for(int a = 0; a < attrCount; a++) {
+                attrNamespaces[a] = readName();
+                attrNames[a] = readName();
+                attrValues[a] = readString();
+            }
+            break;
+        case BinaryItemWriter.ATTRIBUTE:
+            namespace = readName();
+            localName = readName();
+            stringValue = readString();
+            break;
+        case BinaryItemWriter.PI:
+            localName = readName();
+            stringValue = readString();
+            break;
+        case BinaryItemWriter.TEXT:
+        case BinaryItemWriter.COMMENT:
+        case BinaryItemWriter.CURSOR:
+            stringValue = readString();
+            break;
+        case BinaryItemWriter.TOTAL_COUNT:
+            longValue = readNumber();
+            break;
+        case BinaryItemWriter.ERROR:
+            errorCode = readString();
+            stringValue = readString();
+            break;
+        case BinaryItemWriter.DOCUMENT:
+        case BinaryItemWriter.END:
+        case BinaryItemWriter.EOS:
+            break;
+        default:
+            throw new IOException("invalid record tag " + tag);
+        }
+        return tag;
+    }
+
+    /** Type of the current item (ATOM or NODE). */
+    public String getType()
+    {
+        return type;
+    }
+
+    /** Kind of atomic value: LONG, DOUBLE, BOOLEAN or STRING. */
+    public int getValueKind()
+    {
+        return valueKind;
+    }
+
+    public long getLong()
+    {
+        return longValue;
+    }
+
+    public double getDouble()
+    {
+        return doubleValue;
+    }
+
+    public boolean getBoolean()
+    {
+        return longValue != 0;
+    }
+
+    public String getString()
+    {
+        return stringValue;
+    }
+
+    /** Code of the current error, like 'Evaluation' or 'TimeOut'. */
+    public String getErrorCode()
+    {
+        return errorCode;
+    }
+
+    /** Namespace URI of the current element or attribute, "" if none. */
+    public String getNamespace()
+    {
+        return namespace;
+    }
+
+    /** Local name of the current element or attribute, or PI target. */
+    public String getLocalName()
+    {
+        return localName;
+    }
+
+    public int getAttributeCount()
+    {
+        return attrCount;
+    }
+
+    public String getAttributeNamespace(int index)
+    {
+        return attrNamespaces[index];
+    }
+
+    public String getAttributeName(int index)
+    {
+        return attrNames[index];
+    }
+
+    public String getAttributeValue(int index)
+    {
+        return attrValues[index];
+    }
+
+    private String readName()
+        throws IOException
+    {
+        int index = (int) readNumber();
+        if(index > 0) {
+            if(index > names.size())
+                throw new IOException("invalid name reference " + index);
+            return names.get(index - 1);
+        }
+        String name = readString();
+        names.add(name);
+        return name;
+    }
+
+    private String readString()
+        throws IOException
+    {
+        int size = (int) readNumber();
+        if(buffer.length < size)
+            buffer = new byte[size];
+        for(int done = 0; done < size; ) {
+            int count = in.read(buffer, done, size - done);
+            if(count < 0)
+                throw new EOFException();
+            done += count;
+        }
+        return new String(buffer, 0, size, "UTF-8");
+    }
+
+    private long readNumber()
+        throws IOException
+    {
+        long value = 0;
+        for(int shift = 0; ; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    private int readByte()
+        throws IOException
+    {
+        int b = in.read();
+        if(b < 0)
+            throw new EOFException();
+        return b;
+    }
+}
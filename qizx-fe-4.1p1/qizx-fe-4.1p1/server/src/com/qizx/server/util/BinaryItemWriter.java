@@ -0,0 +1,283 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Item;
+import com.qizx.api.ItemType;
+import com.qizx.api.Node;
+import com.qizx.api.QName;
+import com.qizx.api.QizxException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Writes XQuery items in a compact binary encoding, read by
+ * {@link BinaryItemReader}.
+ * <p>
+ * The stream starts with the 4 bytes "QXB1", followed by records made of
+ * a tag byte and data. Numbers are unsigned variable-length integers (7
+ * bits per byte, low bits first), strings are a length in bytes followed
+ * by UTF-8. Names (types, elements, attributes, namespace URIs) are
+ * tokenized: a name is written once as 0 followed by the string, then
+ * referenced by its index + 1.
+ * <ul>
+ * <li>ATOM: type name, then a value tag: LONG (zigzag number), DOUBLE (8
+ * bytes), BOOLEAN (1 byte), or STRING (string, also used for decimals and
+ * other types).
+ * <li>NODE: type name, then node events terminated by END.
+ * <li>Node events: DOCUMENT ... END; ELEMENT namespace, local name,
+ * attribute count, attributes (namespace, local name, value string),
+ * children, END; TEXT string; COMMENT string; PI target, data;
+ * ATTRIBUTE namespace, local name, value (for attribute items).
+ * <li>TOTAL_COUNT number, CURSOR string: result information, before or
+ * after items.
+ * <li>ERROR code string, message string: the evaluation failed after part
+ * of the result has been sent. Can follow any record, even inside a node,
+ * and is followed by EOS.
+ * <li>EOS: end of stream.
+ * </ul>
+ */
+public class BinaryItemWriter
+{
+    public static final String MIME_TYPE = "application/x-qizx-items";
+    static final byte[] MAGIC = { 'Q', 'X', 'B', '1' };
+
+    public static final int ATOM = 'A';
+    public static final int NODE = 'N';
+    public static final int TOTAL_COUNT = 'C';
+    public static final int CURSOR = 'K';
+    public static final int ERROR = 'X';
+    public static final int EOS = 'Z';
+
+    public static final int LONG = 'l';
+    public static final int DOUBLE = 'd';
+    public static final int BOOLEAN = 'b';
+    public static final int STRING = 's';
+
+    public static final int DOCUMENT = 'D';
+    public static final int ELEMENT = 'E';
+    public static final int ATTRIBUTE = '@';
+    public static final int TEXT = 'T';
+    public static final int COMMENT = 'M';
+    public static final int PI = 'P';
+    public static final int END = ')';
+
+    private OutputStream out;
+    private HashMap<String, Integer> names = new HashMap<String, Integer>();
+    private byte[] buffer = new byte[256];
+
+    public BinaryItemWriter(OutputStream out)
+        throws IOException
+    {
+        this.out = new BufferedOutputStream(out, 8192);
+        this.out.write(MAGIC);
+    }
+
+    /**
+     * Writes an item with its type.
+     */
+    public void putItem(Item item)
+        throws QizxException, IOException
+    {
+        if(item.isNode()) {
+            out.write(NODE);
+            putName(item.getType().toString());
+            putNode(item.getNode());
+            out.write(END);
+            return;
+        }
+        out.write(ATOM);
+        ItemType itemType = item.getType();
+        putName(itemType.toString());
+        for(ItemType type = itemType; type != null; type = type.getSuperType()) {
+            String name = type.getShortName();
+            if("integer".equals(name)) {
+                out.write(LONG);
+                long value = item.getInteger();
+                putNumber((value << 1) ^ (value >> 63));
+                return;
+            }
+            if("double".equals(name) || "float".equals(name)) {
+                out.write(DOUBLE);
+                long bits = Double.doubleToLongBits(item.getDouble());
+                for(int shift = 56; shift >= 0; shift -= 8)
+                    out.write((int) (bits >>> shift));
+                return;
+            }
+            if("boolean".equals(name)) {
+                out.write(BOOLEAN);
+                out.write(item.getBoolean()? 1 : 0);
+                return;
+            }
+        }
+        out.write(STRING);
+        putString(item.getString());
+    }
+
+    public void putTotalCount(long count)
+        throws IOException
+    {
+        out.write(TOTAL_COUNT);
+        putNumber(count);
+    }
+
+    public void putCursor(String id)
+        throws IOException
+    {
+        out.write(CURSOR);
+        putString(id);
+    }
+
+    /**
+     * Writes an error, then the end of stream mark, and flushes.
+     */
+    public void putError(String code, String message)
+        throws IOException
+    {
+        out.write(ERROR);
+        putString(code);
+        putString(message);
+        end();
+    }
+
+    /**
+     * Writes the end of stream mark and flushes.
+     */
+    public void end()
+        throws IOException
+    {
+        out.write(EOS);
+        out.flush();
+    }
+
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+    }
+
+    private void putNode(Node node)
+        throws DataModelException, IOException
+    {
+        switch(node.getNodeNature()) {
+        case Node.DOCUMENT:
+            out.write(DOCUMENT);
+            putChildren(node);
+            out.write(END);
+            break;
+        case Node.ELEMENT:
+            out.write(ELEMENT);
+            putQName(node.getNodeName());
+            Node[] attributes = node.getAttributes();
+            int attrCount = (attributes == null)? 0 : attributes.length;
+            putNumber(attrCount);
+            for(int a = 0; a < attrCount; a++) {
+                putQName(attributes[a].getNodeName());
+                putString(attributes[a].getStringValue());
+            }
+            putChildren(node);
+            out.write(END);
+            break;
+        case Node.ATTRIBUTE:
+            out.write(ATTRIBUTE);
+            putQName(node.getNodeName());
+            putString(node.getStringValue());
+            break;
+        case Node.COMMENT:
+            out.write(COMMENT);
+            putString(node.getStringValue());
+            break;
+        case Node.PROCESSING_INSTRUCTION:
+            out.write(PI);
+            putName(node.getNodeName().getLocalPart());
+            putString(node.getStringValue());
+            break;
+        default:
+            out.write(TEXT);
+            putString(node.getStringValue());
+        }
+    }
+
+    private void putChildren(Node node)
+        throws DataModelException, IOException
+    {
+        for(Node child = node.getFirstChild(); child != null;
+            child = child.getNextSibling())
+            putNode(child);
+    }
+
+    private void putQName(QName name)
+        throws IOException
+    {
+        String uri = name.getNamespaceURI();
+        putName(uri == null? "" : uri);
+        putName(name.getLocalPart());
+    }
+
+    private void putName(String name)
+        throws IOException
+    {
+        Integer index = names.get(name);
+        if(index != null) {
+            putNumber(index.intValue() + 1);
+            return;
+        }
+        names.put(name, names.size());
+        putNumber(0);
+        putString(name);
+    }
+
+    private void putString(String s)
+        throws IOException
+    {
+        // UTF-8 encoding, at most 3 bytes per char (surrogates give 2 x 3)
+        int length = s.length();
+        if(buffer.length < 3 * length)
+            buffer = new byte[3 * length];
+        int size = 0;
+        for(int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if(c < 0x80)
+                buffer[size++] = (byte) c;
+            else if(c < 0x800) {
+                buffer[size++] = (byte) (0xc0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int code = Character.toCodePoint(c, s.charAt(++i));
+                buffer[size++] = (byte) (0xf0 | (code >> 18));
+                buffer[size++] = (byte) (0x80 | ((code >> 12) & 0x3f));
+                buffer[size++] = (byte) (0x80 | ((code >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (code & 0x3f));
+            }
+            else {
+                buffer[size++] = (byte) (0xe0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        putNumber(size);
+        out.write(buffer, 0, size);
+    }
+
+    private void putNumber(long value)
+        throws IOException
+    {
+        while((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
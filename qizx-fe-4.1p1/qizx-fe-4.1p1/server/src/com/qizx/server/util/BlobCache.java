@@ -0,0 +1,257 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.NonXMLDocument;
+import com.qizx.util.basic.FileUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Two-level cache of non-XML documents served by the get request.
+ * <p>
+ * Small documents are kept in direct (off-heap) buffers, larger ones are
+ * copied into local files and sent with FileChannel.transferTo. Both levels
+ * are bounded and share a single LRU order. Entries are invalidated through
+ * the {@link LibraryChangeMonitor}.
+ */
+public class BlobCache implements LibraryChangeMonitor.Listener
+{
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    private long memoryLimit;
+    private long memoryUsed;
+    private int memoryThreshold;
+    private File directory;
+    private long diskLimit;
+    private long diskUsed;
+
+    // incremented on each invalidation: detects concurrent updates
+    private long stamp;
+    private LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    private static class Entry
+    {
+        String key;
+        long size;
+        ByteBuffer buffer;  // memory tier
+        File file;          // file tier
+        boolean shared;     // false if used only once
+    }
+
+    /**
+     * @param memoryLimit maximum size in bytes of the memory tier
+     * @param memoryThreshold maximum size of a document kept in memory
+     * @param directory location of the file tier, or null if none
+     * @param diskLimit maximum size in bytes of the file tier
+     */
+    public BlobCache(long memoryLimit, int memoryThreshold,
+                     File directory, long diskLimit)
+        throws IOException
+    {
+        this.memoryLimit = memoryLimit;
+        this.memoryThreshold = memoryThreshold;
+        this.directory = directory;
+        this.diskLimit = diskLimit;
+        if(directory != null) {
+            FileUtil.ensureDirExists(directory);
+            // leftovers of a previous run:
+            File[] old = directory.listFiles();
+            for(int i = 0; old != null && i < old.length; i++)
+                old[i].delete();
+        }
+    }
+
+    /**
+     * Returns a value to pass to {@link #send}: must be obtained before
+     * opening the session used to read the document.
+     */
+    public synchronized long getStamp()
+    {
+        return stamp;
+    }
+
+    /**
+     * Sends the contents of a non-XML document, from the cache if possible.
+     * @param stamp value of getStamp() before the document was accessed
+     */
+    public void send(String library, NonXMLDocument doc, long stamp,
+                     OutputStream output)
+        throws IOException, DataModelException
+    {
+        String key = library + ":" + doc.getPath();
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+        }
+        if(e == null)
+            e = load(key, doc, stamp);
+        FileInputStream in = null;
+        if(e != null && e.file != null) {
+            try {
+                in = new FileInputStream(e.file);
+            }
+            catch (FileNotFoundException evicted) {
+                e = null;
+            }
+        }
+        if(e == null) {     // not cacheable
+            InputStream export = doc.open();
+            FileUtil.copy(export, output, null);
+            export.close();
+            return;
+        }
+
+        WritableByteChannel out = Channels.newChannel(output);
+        if(e.buffer != null) {
+            ByteBuffer data = e.buffer.duplicate();
+            while(data.hasRemaining())
+                out.write(data);
+        }
+        else {
+            try {
+                FileChannel channel = in.getChannel();
+                long pos = 0, size = channel.size();
+                while(pos < size)
+                    pos += channel.transferTo(pos, size - pos, out);
+            }
+            finally {
+                in.close();
+                if(!e.shared)
+                    e.file.delete();
+            }
+        }
+    }
+
+    public void memberChanged(String library, String path)
+    {
+        String prefix = library + ":";
+        synchronized (this) {
+            ++ stamp;
+            for(Iterator<Entry> it = entries.values().iterator(); it.hasNext(); )
+            {
+                Entry e = it.next();
+                if(e.key.startsWith(prefix) && LibraryChangeMonitor.isAffected(
+                                     e.key.substring(prefix.length()), path)) {
+                    it.remove();
+                    discard(e);
+                }
+            }
+        }
+    }
+
+    private Entry load(String key, NonXMLDocument doc, long stamp)
+        throws IOException, DataModelException
+    {
+        long size = doc.size();
+        Entry e = new Entry();
+        e.key = key;
+        e.size = size;
+        if(size <= memoryThreshold && size <= memoryLimit) {
+            e.buffer = ByteBuffer.allocateDirect((int) size);
+            InputStream in = doc.open();
+            try {
+                ReadableByteChannel channel = Channels.newChannel(in);
+                while(e.buffer.hasRemaining() && channel.read(e.buffer) >= 0)
+                    ;
+            }
+            finally {
+                in.close();
+            }
+            e.buffer.flip();
+        }
+        else if(directory != null && size <= diskLimit) {
+            e.file = File.createTempFile("blob", ".data", directory);
+            boolean copied = false;
+            try {
+                InputStream in = doc.open();
+                try {
+                    FileOutputStream out = new FileOutputStream(e.file);
+                    try {
+                        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                        int count;
+                        while((count = in.read(buffer)) > 0)
+                            out.write(buffer, 0, count);
+                    }
+                    finally {
+                        out.close();
+                    }
+                }
+                finally {
+                    in.close();
+                }
+                copied = true;
+            }
+            finally {
+                if(!copied)     // incomplete copy: not kept
+                    e.file.delete();
+            }
+        }
+        else
+            return null;
+
+        synchronized (this) {
+            if(stamp != this.stamp)
+                return e;   // modified meanwhile: use once but do not keep
+            e.shared = true;
+            Entry old = entries.put(key, e);
+            if(old != null)
+                discard(old);
+            if(e.buffer != null)
+                memoryUsed += size;
+            else
+                diskUsed += size;
+            evict();
+        }
+        return e;
+    }
+
+    // removes least recently used entries until limits are met
+    private void evict()
+    {
+        Iterator<Entry> it = entries.values().iterator();
+        while((memoryUsed > memoryLimit || diskUsed > diskLimit)
+              && it.hasNext())
+        {
+            Entry e = it.next();
+            if(e.buffer != null? memoryUsed > memoryLimit
+                               : diskUsed > diskLimit) {
+                it.remove();
+                discard(e);
+            }
+        }
+    }
+
+    private void discard(Entry e)
+    {
+        if(e.buffer != null)
+            memoryUsed -= e.size;
+        else {
+            diskUsed -= e.size;
+            // could be still in use by a request:
+            if(!e.file.delete())
+                e.file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.Expression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import javax.servlet.ServletOutputStream;
+
+/**
+ * Output stream of a response that detects the disconnection of the client
+ * and then cancels the evaluation of the attached expressions.
+ * <p>
+ * A disconnection is detected when a write or flush fails, either in the
+ * request thread or when the watchdog of the {@link QueryRegistry} calls
+ * {@link #probe()}, which pushes output pending in the container buffer.
+ * Nothing can be detected before the response has started: Servlet API
+ * offers no way to test a connection without writing to it.
+ * <p>
+ * Probing commits the part of the response already written, so that an
+ * error can no longer replace it. It is therefore enabled only for
+ * responses that are flushed anyway, by a {@link FlushPolicy}: other
+ * responses detect a disconnection only when the container buffer fills up
+ * or at the end of the response.
+ * <p>
+ * The number of bytes written can be limited: a write exceeding the limit
+ * fails and cancels the attached expressions. The limit is then removed,
+ * so that the error can be sent.
+ */
+public class ClientOutput extends ServletOutputStream
+{
+    private OutputStream out;
+    private boolean started;        // something has been written
+    private long byteCount;
+    private long byteLimit;
+    private volatile String exceededLimit;
+    private volatile boolean aborted;
+    private volatile boolean probing;
+    private ArrayList<Expression> expressions = new ArrayList<Expression>(1);
+
+    public ClientOutput(OutputStream out)
+    {
+        this.out = out;
+    }
+
+    public synchronized void write(int b)
+        throws IOException
+    {
+        checkAborted();
+        checkLimit(1);
+        try {
+            out.write(b);
+            started = true;
+            ++ byteCount;
+        }
+        catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    public synchronized void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        checkAborted();
+        checkLimit(len);
+        try {
+            out.write(b, off, len);
+            started = true;
+            byteCount += len;
+        }
+        catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    public synchronized void flush()
+        throws IOException
+    {
+        checkAborted();
+        try {
+            out.flush();
+        }
+        catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    public synchronized void close()
+        throws IOException
+    {
+        out.close();
+    }
+
+    /**
+     * Enables or disables {@link #probe()}.
+     */
+    public void setProbing(boolean probing)
+    {
+        this.probing = probing;
+    }
+
+    /**
+     * Flushes output pending in the buffer of the container, to detect a
+     * disconnection. Called periodically by the watchdog. Does nothing
+     * unless enabled by {@link #setProbing}, or before the response has
+     * started, as flushing would commit it.
+     */
+    public synchronized void probe()
+    {
+        if(!probing || !started || aborted)
+            return;
+        try {
+            out.flush();
+        }
+        catch (IOException e) {
+            abort();
+        }
+    }
+
+    /**
+     * Number of bytes written to the response.
+     */
+    public synchronized long getByteCount()
+    {
+        return byteCount;
+    }
+
+    /**
+     * Limits the total number of bytes written.
+     * @param max max number of bytes, 0 for no limit
+     */
+    public synchronized void setByteLimit(long max)
+    {
+        byteLimit = max;
+    }
+
+    /**
+     * Returns a description of the limit on bytes if exceeded, or null.
+     */
+    public String getExceededLimit()
+    {
+        return exceededLimit;
+    }
+
+    /**
+     * True if the client has disconnected: nothing more can be sent.
+     */
+    public boolean isAborted()
+    {
+        return aborted;
+    }
+
+    /**
+     * Attaches an expression being evaluated for this response.
+     */
+    public void attach(Expression expression)
+    {
+        synchronized (expressions) {
+            expressions.add(expression);
+        }
+        if(aborted)
+            expression.cancelEvaluation();
+    }
+
+    public void detach(Expression expression)
+    {
+        synchronized (expressions) {
+            expressions.remove(expression);
+        }
+    }
+
+    private void abort()
+    {
+        aborted = true;
+        synchronized (expressions) {
+            for(Expression expr : expressions)
+                expr.cancelEvaluation();
+        }
+    }
+
+    private void checkLimit(int len)
+        throws IOException
+    {
+        if(byteLimit <= 0 || byteCount + len <= byteLimit)
+            return;
+        exceededLimit = "result exceeds " + byteLimit + " bytes";
+        byteLimit = 0;
+        synchronized (expressions) {
+            for(Expression expr : expressions)
+                expr.cancelEvaluation();
+        }
+        throw new IOException(exceededLimit);
+    }
+
+    private void checkAborted()
+        throws IOException
+    {
+        if(aborted)
+            throw new IOException("client disconnected");
+    }
+}
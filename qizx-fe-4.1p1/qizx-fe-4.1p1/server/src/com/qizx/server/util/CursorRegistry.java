@@ -0,0 +1,253 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.Expression;
+import com.qizx.api.ItemSequence;
+import com.qizx.api.Library;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+/**
+ * Keeps query results (and their Library sessions) alive on the server, so
+ * that successive pages can be fetched without evaluating again.
+ * <p>
+ * A cursor is released when explicitly closed, when its results are
+ * exhausted, or when unused for longer than the time-to-live. The number of
+ * cursors per user is limited.
+ */
+public class CursorRegistry
+{
+    private QizxDriver driver;
+    private long ttl;
+    private int maxPerUser;
+    private HashMap<String, Cursor> cursors = new HashMap<String, Cursor>();
+    private Timer timer;
+
+    /**
+     * An open result sequence.
+     */
+    public static class Cursor
+    {
+        private String id;
+        private String user;
+        private Library session;
+        private Expression expression;
+        private ItemSequence items;
+        private long lastAccess;
+        private boolean busy;
+        private long totalCount = -1;
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public Library getSession()
+        {
+            return session;
+        }
+
+        public Expression getExpression()
+        {
+            return expression;
+        }
+
+        public ItemSequence getItems()
+        {
+            return items;
+        }
+
+        /**
+         * Total number of items, or -1 if not yet computed.
+         */
+        public long getTotalCount()
+        {
+            return totalCount;
+        }
+
+        public void setTotalCount(long totalCount)
+        {
+            this.totalCount = totalCount;
+        }
+    }
+
+    /**
+     * Cancels an evaluation after a delay.
+     */
+    public static class TimeLimit extends TimerTask
+    {
+        private Expression expression;
+        private volatile boolean expired;
+
+        TimeLimit(Expression expression)
+        {
+            this.expression = expression;
+        }
+
+        public void run()
+        {
+            expired = true;
+            expression.cancelEvaluation();
+        }
+
+        /**
+         * True if the evaluation has been cancelled by this time limit.
+         */
+        public boolean hasExpired()
+        {
+            return expired;
+        }
+    }
+
+    /**
+     * @param ttl maximum idle time of a cursor in milliseconds
+     * @param maxPerUser maximum number of open cursors for a user
+     */
+    public CursorRegistry(QizxDriver driver, long ttl, int maxPerUser)
+    {
+        this.driver = driver;
+        this.ttl = ttl;
+        this.maxPerUser = maxPerUser;
+        timer = new Timer("qizx-cursor-sweeper", true);
+        long period = Math.max(ttl / 4, 1000);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                sweep();
+            }
+        }, period, period);
+    }
+
+    /**
+     * Registers a result sequence. The session then belongs to the cursor:
+     * it must not be released by the request.
+     * @return the new cursor, in busy state
+     * @throws RequestException if the user has too many open cursors
+     */
+    public synchronized Cursor open(String user, Library session,
+                                    Expression expression, ItemSequence items)
+        throws RequestException
+    {
+        int count = 0;
+        for(Cursor c : cursors.values())
+            if(sameUser(c.user, user))
+                ++ count;
+        if(count >= maxPerUser)
+            throw new RequestException(Request.BAD_REQUEST,
+                               "too many open cursors (" + maxPerUser + ")");
+        Cursor cursor = new Cursor();
+        cursor.id = UUID.randomUUID().toString();
+        cursor.user = user;
+        cursor.session = session;
+        cursor.expression = expression;
+        cursor.items = items;
+        cursor.busy = true;
+        cursor.lastAccess = System.currentTimeMillis();
+        cursors.put(cursor.id, cursor);
+        return cursor;
+    }
+
+    /**
+     * Gets exclusive use of a cursor, for the duration of a request. Access
+     * rights of the session are then checked against this request.
+     * @throws RequestException if the cursor does not exist (or expired),
+     * belongs to another user, or is in use
+     */
+    public synchronized Cursor acquire(String id, String user,
+                                       QizxRequestBase request)
+        throws RequestException
+    {
+        Cursor cursor = cursors.get(id);
+        if(cursor == null || !sameUser(cursor.user, user))
+            throw new RequestException(Request.NOT_FOUND,
+                                       "unknown or expired cursor " + id);
+        if(cursor.busy)
+            throw new RequestException(Request.BAD_REQUEST,
+                                       "cursor " + id + " is in use");
+        cursor.busy = true;
+        driver.bindUser(cursor.session, request);
+        return cursor;
+    }
+
+    /**
+     * Ends the use of a cursor, which remains open.
+     */
+    public synchronized void release(Cursor cursor)
+    {
+        cursor.busy = false;
+        cursor.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Closes a cursor and releases its session.
+     */
+    public void close(Cursor cursor)
+    {
+        synchronized (this) {
+            if(cursors.remove(cursor.id) == null)
+                return;
+        }
+        driver.releaseSession(cursor.session);
+    }
+
+    /**
+     * Starts a time limit on the evaluation of a cursor's expression: must be
+     * cancelled after use.
+     * @param delay in milliseconds; no limit if 0 or negative
+     */
+    public TimeLimit limitTime(Cursor cursor, long delay)
+    {
+        TimeLimit limit = new TimeLimit(cursor.expression);
+        if(delay > 0)
+            timer.schedule(limit, delay);
+        return limit;
+    }
+
+    /**
+     * Closes all cursors and stops the sweeper.
+     */
+    public void shutdown()
+    {
+        timer.cancel();
+        ArrayList<Cursor> all;
+        synchronized (this) {
+            all = new ArrayList<Cursor>(cursors.values());
+        }
+        for(Cursor c : all)
+            close(c);
+    }
+
+    private void sweep()
+    {
+        ArrayList<Cursor> expired = new ArrayList<Cursor>();
+        long limit = System.currentTimeMillis() - ttl;
+        synchronized (this) {
+            for(Iterator<Cursor> it = cursors.values().iterator(); it.hasNext(); )
+            {
+                Cursor c = it.next();
+                if(!c.busy && c.lastAccess < limit) {
+                    it.remove();
+                    expired.add(c);
+                }
+            }
+        }
+        for(Cursor c : expired)
+            driver.releaseSession(c.session);
+    }
+
+    private static boolean sameUser(String user1, String user2)
+    {
+        return (user1 == null)? user2 == null : user1.equals(user2);
+    }
+}
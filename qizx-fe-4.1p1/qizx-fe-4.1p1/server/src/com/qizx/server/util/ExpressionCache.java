@@ -0,0 +1,310 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.CompilationException;
+import com.qizx.api.DataModelException;
+import com.qizx.api.Expression;
+import com.qizx.api.Library;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Cache of compiled XQuery expressions for the 'eval' request.
+ * <p>
+ * A compiled expression is bound to the session that compiled it, so the
+ * cache actually keeps a pool of idle sessions per Library and user, each
+ * with its own LRU set of expressions keyed by query text. The static
+ * context is the same for all sessions opened by the driver, so it needs
+ * not be part of the key.
+ * <p>
+ * The total number of idle sessions is bounded: beyond it, the least
+ * recently used idle session is closed. An idle session unused for some
+ * time is closed too.
+ * <p>
+ * The time-out of a reused expression must not be set by
+ * {@link Expression#setTimeOut}, whose timer is not cancelled at the end of
+ * an evaluation and could interrupt a later one: {@link #limitTime} should
+ * be used instead.
+ */
+public class ExpressionCache
+{
+    private int maxSessions;
+    private int maxExpressions;
+    private int maxIdle;
+    private long ttl;
+    private int idleCount;
+    // idle sessions by Library and user, most recently used last:
+    private HashMap<String, ArrayList<Library>> idle =
+        new HashMap<String, ArrayList<Library>>();
+    // all sessions belonging to the cache, idle or in use:
+    private IdentityHashMap<Library, PooledSession> sessions =
+        new IdentityHashMap<Library, PooledSession>();
+
+    private Timer timer = new Timer("qizx-eval-timer", true);
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private class PooledSession
+    {
+        String key;
+        long idleSince;
+        LinkedHashMap<String, Expression> expressions =
+            new LinkedHashMap<String, Expression>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, Expression> e)
+                {
+                    if(size() <= maxExpressions)
+                        return false;
+                    ++ evictions;
+                    return true;
+                }
+            };
+    }
+
+    /**
+     * @param maxSessions maximum number of idle sessions per Library and user
+     * @param maxExpressions maximum number of expressions per session
+     * @param maxIdle maximum total number of idle sessions (0 for no limit)
+     * @param ttl maximum idle time of a session in milliseconds (0 for no
+     * limit)
+     */
+    public ExpressionCache(int maxSessions, int maxExpressions,
+                           int maxIdle, long ttl)
+    {
+        this.maxSessions = maxSessions;
+        this.maxExpressions = maxExpressions;
+        this.maxIdle = maxIdle;
+        this.ttl = ttl;
+        if(ttl > 0) {
+            long period = Math.max(ttl / 4, 1000);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    sweep();
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * Takes an idle session, or returns null if there is none.
+     */
+    public synchronized Library acquire(String library, String user)
+    {
+        ArrayList<Library> list = idle.get(key(library, user));
+        if(list == null || list.isEmpty())
+            return null;
+        -- idleCount;
+        return list.remove(list.size() - 1);
+    }
+
+    /**
+     * Makes a new session belong to the cache: it will be recycled instead
+     * of closed when released.
+     */
+    public synchronized void adopt(Library session, String library, String user)
+    {
+        PooledSession pooled = new PooledSession();
+        pooled.key = key(library, user);
+        sessions.put(session, pooled);
+    }
+
+    /**
+     * Puts back a released session in the pool if possible.
+     * @return false if the session does not belong to the cache or cannot be
+     * reused: it must then be closed by the caller.
+     */
+    public synchronized boolean recycle(Library session)
+    {
+        PooledSession pooled = sessions.get(session);
+        if(pooled == null)
+            return false;
+        ArrayList<Library> list = idle.get(pooled.key);
+        if(list == null)
+            idle.put(pooled.key, list = new ArrayList<Library>());
+        if(session.isClosed() || session.isModified()
+           || list.size() >= maxSessions) {
+            sessions.remove(session);
+            evictions += pooled.expressions.size();
+            return false;
+        }
+        if(maxIdle > 0 && idleCount >= maxIdle)
+            close(removeOldest());
+        pooled.idleSince = System.currentTimeMillis();
+        list.add(session);
+        ++ idleCount;
+        return true;
+    }
+
+    /**
+     * Returns a compiled expression for a query, compiling it if needed.
+     * Only sessions adopted by the cache keep compiled expressions.
+     */
+    public Expression compile(Library session, String query)
+        throws CompilationException
+    {
+        PooledSession pooled;
+        synchronized (this) {
+            pooled = sessions.get(session);
+            Expression expr = (pooled == null)? null
+                                  : pooled.expressions.get(query);
+            if(expr != null) {
+                ++ hits;
+                return expr;
+            }
+            ++ misses;
+        }
+        Expression expr = session.compileExpression(query);
+        if(pooled != null)
+            synchronized (this) {
+                pooled.expressions.put(query, expr);
+            }
+        return expr;
+    }
+
+    /**
+     * Starts a time limit on the evaluation of an expression: must be
+     * cancelled after use.
+     * @param delay in milliseconds; no limit if 0 or negative
+     */
+    public synchronized CursorRegistry.TimeLimit limitTime(Expression expression,
+                                                           long delay)
+    {
+        CursorRegistry.TimeLimit limit = new CursorRegistry.TimeLimit(expression);
+        if(delay > 0 && timer != null)
+            timer.schedule(limit, delay);
+        return limit;
+    }
+
+    /**
+     * Removes all sessions from the cache and stops the timer.
+     * @return the idle sessions, which must be closed by the caller
+     */
+    public synchronized ArrayList<Library> clear()
+    {
+        ArrayList<Library> all = new ArrayList<Library>();
+        for(ArrayList<Library> list : idle.values())
+            all.addAll(list);
+        idle.clear();
+        idleCount = 0;
+        sessions.clear();
+        if(timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        return all;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Number of expressions dropped from the cache, either by LRU eviction
+     * or because their session was closed.
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Current number of cached expressions.
+     */
+    public synchronized int size()
+    {
+        int size = 0;
+        for(PooledSession pooled : sessions.values())
+            size += pooled.expressions.size();
+        return size;
+    }
+
+    /**
+     * Current number of idle sessions.
+     */
+    public synchronized int getIdleCount()
+    {
+        return idleCount;
+    }
+
+    // removes the least recently used idle session
+    private Library removeOldest()
+    {
+        ArrayList<Library> oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for(ArrayList<Library> list : idle.values()) {
+            if(list.isEmpty())
+                continue;
+            long time = sessions.get(list.get(0)).idleSince;
+            if(time < oldestTime) {
+                oldest = list;
+                oldestTime = time;
+            }
+        }
+        return discard(oldest.remove(0));
+    }
+
+    // makes an idle session no longer belong to the cache
+    private Library discard(Library session)
+    {
+        PooledSession pooled = sessions.remove(session);
+        evictions += pooled.expressions.size();
+        -- idleCount;
+        return session;
+    }
+
+    // closes idle sessions unused for longer than ttl
+    private void sweep()
+    {
+        ArrayList<Library> expired = new ArrayList<Library>();
+        long limit = System.currentTimeMillis() - ttl;
+        synchronized (this) {
+            for(ArrayList<Library> list : idle.values())
+                for(Iterator<Library> it = list.iterator(); it.hasNext(); ) {
+                    Library session = it.next();
+                    if(sessions.get(session).idleSince >= limit)
+                        break;  // following ones are more recent
+                    it.remove();
+                    expired.add(discard(session));
+                }
+        }
+        for(Library session : expired)
+            close(session);
+    }
+
+    // idle sessions have no uncommitted changes
+    private static void close(Library session)
+    {
+        try {
+            session.close();
+        }
+        catch (DataModelException e) {
+            ; // ignored
+        }
+    }
+
+    private static String key(String library, String user)
+    {
+        return library + "\u0000" + user;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+/**
+ * Policy of flushing of a result while its items are serialized, so that
+ * a client receives the first items without waiting for the end of the
+ * evaluation. The response then uses the chunked transfer encoding.
+ * <p>
+ * The first item is flushed, then output is flushed after a number of
+ * items, a number of bytes, or a delay since the last flush, whichever
+ * comes first. A value &lt;= 0 disables a criterion; the result is flushed
+ * only at the end if all are disabled.
+ * <p>
+ * Criteria are checked after each item: the delay does not cause a flush
+ * while the evaluation of the next item is in progress. Bytes are counted
+ * when they leave the buffer of the serializer.
+ */
+public class FlushPolicy
+{
+    public static final FlushPolicy NONE = new FlushPolicy(0, 0, 0);
+
+    private int maxItems;
+    private long maxBytes;
+    private long maxDelay;
+
+    /**
+     * @param maxItems number of items between two flushes
+     * @param maxBytes number of bytes between two flushes
+     * @param maxDelay time in milliseconds between two flushes
+     */
+    public FlushPolicy(int maxItems, long maxBytes, long maxDelay)
+    {
+        this.maxItems = Math.max(maxItems, 0);
+        this.maxBytes = Math.max(maxBytes, 0);
+        this.maxDelay = Math.max(maxDelay, 0);
+    }
+
+    public int getMaxItems()
+    {
+        return maxItems;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getMaxDelay()
+    {
+        return maxDelay;
+    }
+
+    public boolean isNone()
+    {
+        return maxItems == 0 && maxBytes == 0 && maxDelay == 0;
+    }
+
+    /**
+     * Returns a policy where the criteria of other replace these when
+     * specified (&gt;= 0; 0 disables a criterion).
+     */
+    public FlushPolicy override(int items, long bytes, long delay)
+    {
+        return new FlushPolicy((items >= 0)? items : maxItems,
+                               (bytes >= 0)? bytes : maxBytes,
+                               (delay >= 0)? delay : maxDelay);
+    }
+
+    /**
+     * Starts applying the policy to a response.
+     * @param output stream counting bytes, or null: the byte criterion is
+     * then ignored
+     */
+    public Monitor monitor(ClientOutput output)
+    {
+        return new Monitor(output);
+    }
+
+    public String toString()
+    {
+        return "items " + maxItems + ", bytes " + maxBytes
+               + ", delay " + maxDelay + " ms";
+    }
+
+    /**
+     * Applies the policy to a response.
+     */
+    public class Monitor
+    {
+        private ClientOutput output;
+        private boolean started;
+        private int items;
+        private long lastBytes;
+        private long lastTime;
+
+        Monitor(ClientOutput output)
+        {
+            this.output = output;
+            lastTime = System.currentTimeMillis();
+        }
+
+        /**
+         * Called after an item has been serialized.
+         * @return true if output should be flushed now
+         */
+        public boolean itemDone()
+        {
+            ++ items;
+            long bytes = (output == null)? 0 : output.getByteCount();
+            long now = (maxDelay > 0)? System.currentTimeMillis() : 0;
+            if(started
+               && (maxItems <= 0 || items < maxItems)
+               && (maxBytes <= 0 || output == null
+                   || bytes - lastBytes < maxBytes)
+               && (maxDelay <= 0 || now - lastTime < maxDelay))
+                return false;
+            started = true;
+            items = 0;
+            lastBytes = bytes;
+            lastTime = now;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.Library;
+import com.qizx.api.QizxException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Applies small concurrent updates of a Library in groups, with a single
+ * commit per group.
+ * <p>
+ * The first request arriving opens a group and becomes its leader: it waits
+ * for other writes during a short time window (or until the group is full),
+ * then applies all the writes through its own session and commits once.
+ * The other requests just wait for the commit. Groups are separate for
+ * each Library and each user, so that access control is unchanged.
+ * <p>
+ * Errors are isolated: if a write fails, the session is rolled back and the
+ * other writes are applied again without it.
+ */
+public class GroupCommitter
+{
+    /**
+     * An update performed on behalf of a request. It can be applied more than
+     * once (after a rollback), so it must not consume its input.
+     */
+    public interface Write
+    {
+        /**
+         * Applies the update, without committing.
+         * @return a result sent back to the request (typically a path)
+         */
+        String apply(Library lib)
+            throws QizxException, RequestException, IOException;
+    }
+
+    private HashSet<String> libraries;  // null means all
+    private long window;
+    private int maxCount;
+    // groups open for new writes:
+    private HashMap<String, Group> openGroups = new HashMap<String, Group>();
+
+    private static class Group
+    {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+    }
+
+    private static class Entry
+    {
+        Write write;
+        String result;
+        Exception error;
+        boolean done;
+
+        Entry(Write write)
+        {
+            this.write = write;
+        }
+    }
+
+    /**
+     * @param libraries names of the Libraries using group commit, null for all
+     * @param window time in milliseconds the leader waits for other writes
+     * @param maxCount maximum number of writes in a group
+     */
+    public GroupCommitter(HashSet<String> libraries, long window, int maxCount)
+    {
+        this.libraries = libraries;
+        this.window = window;
+        this.maxCount = Math.max(maxCount, 1);
+    }
+
+    public boolean isEnabled(String library)
+    {
+        return libraries == null || libraries.contains(library);
+    }
+
+    /**
+     * Applies a write in a group and waits for the commit.
+     * @param library name of the library, as given to acquireLibSession
+     * @param request the request performing the write: its session is used
+     * if it becomes the leader of the group.
+     * @return the result of the write
+     */
+    public String execute(String library, QizxRequestBase request, Write write)
+        throws QizxException, RequestException, IOException
+    {
+        String key = library + "\u0000" + request.getUserName();
+        Entry entry = new Entry(write);
+        Group group;
+        boolean leader = false;
+        synchronized (this) {
+            group = openGroups.get(key);
+            if(group == null) {
+                group = new Group();
+                openGroups.put(key, group);
+                leader = true;
+            }
+            group.entries.add(entry);
+            if(group.entries.size() >= maxCount) {
+                openGroups.remove(key);     // full: closed
+                notifyAll();
+            }
+        }
+
+        if(leader)
+            lead(key, group, library, request);
+
+        boolean interrupted = false;
+        synchronized (this) {
+            while(!entry.done) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true; // cannot abandon: the write may be applied
+                }
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+
+        Exception error = entry.error;
+        if(error == null)
+            return entry.result;
+        if(error instanceof QizxException)
+            throw (QizxException) error;
+        if(error instanceof RequestException)
+            throw (RequestException) error;
+        if(error instanceof IOException)
+            throw (IOException) error;
+        throw (RuntimeException) error;
+    }
+
+    private void lead(String key, Group group, String library,
+                      QizxRequestBase request)
+    {
+        // wait for more writes:
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + window;
+            for(long delay = window; openGroups.get(key) == group && delay > 0;
+                delay = deadline - System.currentTimeMillis())
+            {
+                try {
+                    wait(delay);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if(openGroups.get(key) == group)
+                openGroups.remove(key);
+        }
+        // now the group is closed: its list of entries cannot change
+
+        try {
+            Library lib = request.acquireLibSession(library);
+            commitGroup(lib, group.entries, request);
+            request.log("group commit of " + group.entries.size() + " writes");
+        }
+        catch (Exception e) {
+            // commit failed: all writes fail
+            for(Entry entry : group.entries)
+                if(entry.error == null) {
+                    entry.error = e;
+                    entry.result = null;
+                }
+        }
+        finally {
+            synchronized (this) {
+                for(Entry entry : group.entries)
+                    entry.done = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private void commitGroup(Library lib, ArrayList<Entry> entries,
+                             QizxRequestBase request)
+        throws QizxException, RequestException
+    {
+        for(;;) {
+            boolean failed = false;
+            for(Entry entry : entries) {
+                if(entry.error != null)
+                    continue;
+                try {
+                    entry.result = entry.write.apply(lib);
+                }
+                catch (Exception e) {
+                    entry.error = e;
+                    failed = true;
+                }
+            }
+            if(!failed)
+                break;
+            // the failed write may have left partial changes:
+            // start again without it
+            request.rollback(lib);
+        }
+        if(lib.isModified())
+            request.commit(lib);
+    }
+}
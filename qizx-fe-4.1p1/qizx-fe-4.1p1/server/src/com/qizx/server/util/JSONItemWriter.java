@@ -0,0 +1,198 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Item;
+import com.qizx.api.ItemType;
+import com.qizx.api.Node;
+import com.qizx.api.QName;
+import com.qizx.api.QizxException;
+import com.qizx.api.util.XMLSerializer;
+
+import java.io.IOException;
+
+/**
+ * Writes XQuery items in JSON.
+ * <p>
+ * An item is written as an object with members "type" and "value". Atomic
+ * values are converted to JSON numbers or booleans when possible, otherwise
+ * to strings. Nodes are written in JsonML: an element is an array made of
+ * its name, an object containing its attributes (if any), then its
+ * children; text is a string; a document is an array of its children,
+ * starting with "#document". Nodes can also be written as XML text.
+ * Nodes are traversed, not copied, so a large node does not need to be
+ * loaded in memory.
+ */
+public class JSONItemWriter
+{
+    /** Node mapping: JsonML arrays. */
+    public static final String JSONML = "jsonml";
+    /** Node mapping: serialized XML in a string. */
+    public static final String XML = "xml";
+
+    private JSONWriter out;
+    private boolean jsonML;
+    private XMLSerializer xmlSerializer;
+
+    /**
+     * @param nodeMapping JSONML or XML
+     */
+    public JSONItemWriter(JSONWriter out, String nodeMapping)
+    {
+        this.out = out;
+        this.jsonML = !XML.equalsIgnoreCase(nodeMapping);
+    }
+
+    /**
+     * Returns true if the name is a known node mapping.
+     */
+    public static boolean isNodeMapping(String name)
+    {
+        return JSONML.equalsIgnoreCase(name) || XML.equalsIgnoreCase(name);
+    }
+
+    public JSONWriter getWriter()
+    {
+        return out;
+    }
+
+    /**
+     * Writes an item with its type.
+     */
+    public void putItem(Item item)
+        throws QizxException, IOException
+    {
+        out.startObject();
+        out.name("type").value(item.getType().toString());
+        out.name("value");
+        putValue(item);
+        out.endObject();
+    }
+
+    /**
+     * Writes an error as an object with members "code" and "message":
+     * unlike items, it has no member "type".
+     */
+    public void putError(String code, String message)
+        throws IOException
+    {
+        out.startObject();
+        out.name("code").value(code);
+        out.name("message").value(message);
+        out.endObject();
+    }
+
+    /**
+     * Writes the value of an item without its type.
+     */
+    public void putValue(Item item)
+        throws QizxException, IOException
+    {
+        if(item.isNode()) {
+            if(jsonML)
+                putNode(item.getNode());
+            else {
+                if(xmlSerializer == null)
+                    xmlSerializer = new XMLSerializer();
+                xmlSerializer.reset();
+                out.value(xmlSerializer.serializeToString(item.getNode()));
+            }
+            return;
+        }
+        for(ItemType type = item.getType(); type != null;
+            type = type.getSuperType()) {
+            String name = type.getShortName();
+            if("integer".equals(name)) {
+                out.value(item.getInteger());
+                return;
+            }
+            if("decimal".equals(name)) {
+                out.value(item.getDecimal());
+                return;
+            }
+            if("double".equals(name) || "float".equals(name)) {
+                out.value(item.getDouble());
+                return;
+            }
+            if("boolean".equals(name)) {
+                out.value(item.getBoolean());
+                return;
+            }
+        }
+        out.value(item.getString());
+    }
+
+    private void putNode(Node node)
+        throws DataModelException, IOException
+    {
+        switch(node.getNodeNature()) {
+        case Node.DOCUMENT:
+            out.startArray();
+            out.value("#document");
+            putChildren(node);
+            out.endArray();
+            break;
+        case Node.ELEMENT:
+            out.startArray();
+            out.value(nodeName(node));
+            Node[] attributes = node.getAttributes();
+            if(attributes != null && attributes.length > 0) {
+                out.startObject();
+                for(Node attr : attributes)
+                    out.name(nodeName(attr)).value(attr.getStringValue());
+                out.endObject();
+            }
+            putChildren(node);
+            out.endArray();
+            break;
+        case Node.ATTRIBUTE:
+            out.startObject();
+            out.name(nodeName(node)).value(node.getStringValue());
+            out.endObject();
+            break;
+        case Node.TEXT:
+            out.value(node.getStringValue());
+            break;
+        case Node.COMMENT:
+            out.startArray().value("#comment").value(node.getStringValue())
+               .endArray();
+            break;
+        case Node.PROCESSING_INSTRUCTION:
+            out.startArray().value("?" + node.getNodeName().getLocalPart())
+               .value(node.getStringValue()).endArray();
+            break;
+        default:
+            out.value(node.getStringValue());
+        }
+    }
+
+    private void putChildren(Node node)
+        throws DataModelException, IOException
+    {
+        for(Node child = node.getFirstChild(); child != null;
+            child = child.getNextSibling())
+            putNode(child);
+    }
+
+    // prefixed name if a prefix is in scope
+    private static String nodeName(Node node)
+        throws DataModelException
+    {
+        QName name = node.getNodeName();
+        String uri = name.getNamespaceURI();
+        if(uri == null || uri.length() == 0)
+            return name.getLocalPart();
+        String prefix = node.getNamespacePrefix(uri);
+        if(prefix == null)
+            return "{" + uri + "}" + name.getLocalPart();
+        return (prefix.length() == 0)? name.getLocalPart()
+                                     : prefix + ":" + name.getLocalPart();
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser for request parameters.
+ * <p>
+ * Objects are returned as Map (in document order), arrays as List, numbers
+ * as Long or Double, and true/false/null as Boolean or null.
+ */
+public class JSONReader
+{
+    private String text;
+    private int pos;
+
+    public JSONReader(String text)
+    {
+        this.text = text;
+    }
+
+    /**
+     * Parses a complete JSON text.
+     * @throws RequestException with code BAD_REQUEST on syntax error
+     */
+    public static Object parse(String text)
+        throws RequestException
+    {
+        JSONReader reader = new JSONReader(text);
+        Object value = reader.parseValue();
+        reader.skipSpace();
+        if(reader.pos < text.length())
+            reader.syntaxError("unexpected trailing characters");
+        return value;
+    }
+
+    /**
+     * Returns true if the text looks like JSON rather than XML.
+     */
+    public static boolean isJSON(String text)
+    {
+        for(int i = 0, len = text.length(); i < len; i++) {
+            char c = text.charAt(i);
+            if(!Character.isWhitespace(c))
+                return c == '{' || c == '[';
+        }
+        return false;
+    }
+
+    public Object parseValue()
+        throws RequestException
+    {
+        skipSpace();
+        if(pos >= text.length())
+            syntaxError("unexpected end of text");
+        char c = text.charAt(pos);
+        switch(c) {
+        case '{':
+            return parseObject();
+        case '[':
+            return parseArray();
+        case '"':
+            return parseString();
+        case 't':
+            expect("true");
+            return Boolean.TRUE;
+        case 'f':
+            expect("false");
+            return Boolean.FALSE;
+        case 'n':
+            expect("null");
+            return null;
+        default:
+            return parseNumber();
+        }
+    }
+
+    private Map<String, Object> parseObject()
+        throws RequestException
+    {
+        LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+        ++ pos;
+        skipSpace();
+        if(peek() == '}') {
+            ++ pos;
+            return map;
+        }
+        for(;;) {
+            skipSpace();
+            if(peek() != '"')
+                syntaxError("string expected as object key");
+            String key = parseString();
+            skipSpace();
+            if(peek() != ':')
+                syntaxError("':' expected");
+            ++ pos;
+            map.put(key, parseValue());
+            skipSpace();
+            char c = peek();
+            ++ pos;
+            if(c == '}')
+                return map;
+            if(c != ',')
+                syntaxError("',' or '}' expected");
+        }
+    }
+
+    private List<Object> parseArray()
+        throws RequestException
+    {
+        ArrayList<Object> list = new ArrayList<Object>();
+        ++ pos;
+        skipSpace();
+        if(peek() == ']') {
+            ++ pos;
+            return list;
+        }
+        for(;;) {
+            list.add(parseValue());
+            skipSpace();
+            char c = peek();
+            ++ pos;
+            if(c == ']')
+                return list;
+            if(c != ',')
+                syntaxError("',' or ']' expected");
+        }
+    }
+
+    private String parseString()
+        throws RequestException
+    {
+        StringBuilder buf = new StringBuilder();
+        ++ pos;
+        for(;;) {
+            if(pos >= text.length())
+                syntaxError("unterminated string");
+            char c = text.charAt(pos++);
+            if(c == '"')
+                return buf.toString();
+            if(c != '\\') {
+                buf.append(c);
+                continue;
+            }
+            if(pos >= text.length())
+                syntaxError("unterminated string");
+            c = text.charAt(pos++);
+            switch(c) {
+            case 'b': buf.append('\b'); break;
+            case 'f': buf.append('\f'); break;
+            case 'n': buf.append('\n'); break;
+            case 'r': buf.append('\r'); break;
+            case 't': buf.append('\t'); break;
+            case 'u':
+                if(pos + 4 > text.length())
+                    syntaxError("invalid unicode escape");
+                try {
+                    buf.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                }
+                catch (NumberFormatException e) {
+                    syntaxError("invalid unicode escape");
+                }
+                pos += 4;
+                break;
+            default:
+                buf.append(c);  // " \ /
+            }
+        }
+    }
+
+    private Object parseNumber()
+        throws RequestException
+    {
+        int start = pos;
+        boolean integer = true;
+        for(; pos < text.length(); pos++) {
+            char c = text.charAt(pos);
+            if(c == '.' || c == 'e' || c == 'E')
+                integer = false;
+            else if(!(c >= '0' && c <= '9' || c == '-' || c == '+'))
+                break;
+        }
+        String num = text.substring(start, pos);
+        try {
+            if(integer)
+                return Long.valueOf(num);
+            return Double.valueOf(num);
+        }
+        catch (NumberFormatException e) {
+            syntaxError("invalid value '" + num + "'");
+            return null;
+        }
+    }
+
+    private void expect(String word)
+        throws RequestException
+    {
+        if(!text.startsWith(word, pos))
+            syntaxError("invalid token");
+        pos += word.length();
+    }
+
+    private char peek()
+    {
+        return pos < text.length()? text.charAt(pos) : 0;
+    }
+
+    private void skipSpace()
+    {
+        while(pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+            ++ pos;
+    }
+
+    private void syntaxError(String message)
+        throws RequestException
+    {
+        throw new RequestException(Request.BAD_REQUEST,
+                                   "JSON syntax error at offset " + pos
+                                   + ": " + message);
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+
+/**
+ * Streaming JSON output. Commas between members and items are inserted
+ * automatically.
+ */
+public class JSONWriter
+{
+    public static final String MIME_JSON = "application/json";
+
+    private Writer out;
+    // for each open object or array: true until the first member is written
+    private boolean[] first = new boolean[16];
+    // for each open object or array: the closing bracket
+    private char[] closing = new char[16];
+    private int depth;
+    private boolean afterName;
+
+    public JSONWriter(Writer out)
+    {
+        this.out = out;
+    }
+
+    public JSONWriter startObject()
+        throws IOException
+    {
+        return open('{');
+    }
+
+    public JSONWriter endObject()
+        throws IOException
+    {
+        return close('}');
+    }
+
+    public JSONWriter startArray()
+        throws IOException
+    {
+        return open('[');
+    }
+
+    public JSONWriter endArray()
+        throws IOException
+    {
+        return close(']');
+    }
+
+    /**
+     * Writes the name of an object member: must be followed by a value.
+     */
+    public JSONWriter name(String name)
+        throws IOException
+    {
+        separate();
+        quote(name, out);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    public JSONWriter value(String value)
+        throws IOException
+    {
+        separate();
+        if(value == null)
+            out.write("null");
+        else
+            quote(value, out);
+        return this;
+    }
+
+    public JSONWriter value(long value)
+        throws IOException
+    {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    public JSONWriter value(double value)
+        throws IOException
+    {
+        separate();
+        // no representation of NaN and infinities in JSON
+        if(Double.isNaN(value) || Double.isInfinite(value))
+            quote(Double.toString(value), out);
+        else if(value == Math.rint(value) && Math.abs(value) < 1e15)
+            out.write(Long.toString((long) value));
+        else
+            out.write(Double.toString(value));
+        return this;
+    }
+
+    public JSONWriter value(BigDecimal value)
+        throws IOException
+    {
+        separate();
+        out.write(value.toPlainString());
+        return this;
+    }
+
+    public JSONWriter value(boolean value)
+        throws IOException
+    {
+        separate();
+        out.write(value? "true" : "false");
+        return this;
+    }
+
+    public JSONWriter nullValue()
+        throws IOException
+    {
+        separate();
+        out.write("null");
+        return this;
+    }
+
+    /**
+     * Number of objects and arrays currently open.
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * Closes the objects and arrays open beyond a depth, for example when
+     * an error has interrupted the output of a value. A member name without
+     * value gets null.
+     */
+    public JSONWriter closeTo(int level)
+        throws IOException
+    {
+        if(afterName)
+            nullValue();
+        while(depth > level)
+            close(closing[depth - 1]);
+        return this;
+    }
+
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+    }
+
+    /**
+     * Writes a string with JSON quoting.
+     */
+    public static void quote(String s, Writer out)
+        throws IOException
+    {
+        out.write('"');
+        for(int i = 0, len = s.length(); i < len; i++) {
+            char c = s.charAt(i);
+            switch(c) {
+            case '"':
+                out.write("\\\"");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\t':
+                out.write("\\t");
+                break;
+            default:
+                if(c < 0x20 || c == 0x2028 || c == 0x2029) {
+                    String hex = Integer.toHexString(c);
+                    out.write("\\u0000", 0, 6 - hex.length());
+                    out.write(hex);
+                }
+                else
+                    out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    private JSONWriter open(char bracket)
+        throws IOException
+    {
+        separate();
+        out.write(bracket);
+        if(depth == first.length) {
+            boolean[] old = first;
+            first = new boolean[2 * old.length];
+            System.arraycopy(old, 0, first, 0, depth);
+            char[] oldClosing = closing;
+            closing = new char[2 * oldClosing.length];
+            System.arraycopy(oldClosing, 0, closing, 0, depth);
+        }
+        closing[depth] = (bracket == '{')? '}' : ']';
+        first[depth++] = true;
+        return this;
+    }
+
+    private JSONWriter close(char bracket)
+        throws IOException
+    {
+        if(depth == 0)
+            throw new IllegalStateException("no open object or array");
+        -- depth;
+        out.write(bracket);
+        return this;
+    }
+
+    // writes a comma if needed before a value or a name
+    private void separate()
+        throws IOException
+    {
+        if(afterName) {
+            afterName = false;
+            return;
+        }
+        if(depth > 0) {
+            if(first[depth - 1])
+                first[depth - 1] = false;
+            else
+                out.write(',');
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.Library;
+import com.qizx.api.LibraryMember;
+import com.qizx.api.LibraryMemberObserver;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Observes updates on all XML Libraries of the engine and dispatches them
+ * to server-side caches.
+ * <p>
+ * LibraryMemberObserver events are generated before commit, so a cache
+ * could be refilled with the old state of a member between the event and
+ * the commit. Therefore modified paths are remembered per modifying session
+ * and notified a second time when this session commits (see
+ * {@link #sessionCommitted}), or when it is released, in case it has been
+ * committed another way. They are discarded if the session rolls back.
+ */
+public class LibraryChangeMonitor implements LibraryMemberObserver
+{
+    // above this number of pending paths, the whole Library is invalidated
+    private static final int MAX_PENDING = 1000;
+    private static final String ROOT = "/";
+
+    /**
+     * Receives notifications of modified Library members.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when a member has been created, modified or deleted.
+         * @param library name of the XML Library
+         * @param path path of the member: if it is a Collection, all
+         * the members it contains are also concerned.
+         */
+        void memberChanged(String library, String path);
+    }
+
+    private CopyOnWriteArrayList<Listener> listeners =
+        new CopyOnWriteArrayList<Listener>();
+    // paths modified by a session and not yet committed:
+    private IdentityHashMap<Library, HashSet<String>> pending =
+        new IdentityHashMap<Library, HashSet<String>>();
+
+    public void addListener(Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    public void memberCreated(LibraryMember member)
+    {
+        changed(member.getLibrary(), member.getPath());
+    }
+
+    public void memberRenamed(LibraryMember member, String oldPath)
+    {
+        changed(member.getLibrary(), oldPath);
+        changed(member.getLibrary(), member.getPath());
+    }
+
+    public void memberDeleted(LibraryMember member)
+    {
+        changed(member.getLibrary(), member.getPath());
+    }
+
+    public void propertyModified(LibraryMember member, String propertyName)
+    {
+        changed(member.getLibrary(), member.getPath());
+    }
+
+    /**
+     * Notifies again the paths modified by a session, once it has
+     * committed.
+     */
+    public void sessionCommitted(Library session)
+    {
+        HashSet<String> paths;
+        synchronized (pending) {
+            paths = pending.remove(session);
+        }
+        if(paths != null)
+            for(String path : paths)
+                notifyListeners(session.getName(), path);
+    }
+
+    /**
+     * Forgets the paths modified by a session that has rolled back: the
+     * first notification was enough.
+     */
+    public void sessionRolledBack(Library session)
+    {
+        synchronized (pending) {
+            pending.remove(session);
+        }
+    }
+
+    /**
+     * Called when a session is closed or returned to a pool: its remaining
+     * modified paths are notified again, in case it has been committed
+     * without {@link #sessionCommitted} (e.g. by an updating query).
+     */
+    public void sessionReleased(Library session)
+    {
+        sessionCommitted(session);
+    }
+
+    private void changed(Library session, String path)
+    {
+        synchronized (pending) {
+            HashSet<String> paths = pending.get(session);
+            if(paths == null) {
+                paths = new HashSet<String>();
+                pending.put(session, paths);
+            }
+            if(!paths.contains(ROOT)) {
+                if(paths.size() >= MAX_PENDING) {
+                    paths.clear();
+                    paths.add(ROOT);
+                }
+                else
+                    paths.add(path);
+            }
+        }
+        notifyListeners(session.getName(), path);
+    }
+
+    private void notifyListeners(String library, String path)
+    {
+        for(Listener listener : listeners)
+            listener.memberChanged(library, path);
+    }
+
+    /**
+     * Returns true if path is equal to or contained in the member changed.
+     */
+    public static boolean isAffected(String path, String changedPath)
+    {
+        if(path.equals(changedPath) || ROOT.equals(changedPath))
+            return true;
+        return path.startsWith(changedPath)
+               && path.length() > changedPath.length()
+               && path.charAt(changedPath.length()) == '/';
+    }
+}
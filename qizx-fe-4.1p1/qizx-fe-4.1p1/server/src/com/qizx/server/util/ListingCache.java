@@ -0,0 +1,125 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of sorted listings of large Collections, used by the 'get' request.
+ * <p>
+ * A listing is identified by Library, user, Collection path and filter
+ * (members visible depend on the access rights of the user). It is
+ * invalidated when a member of the Collection is created, renamed or
+ * deleted (or when the Collection itself or an ancestor is modified).
+ * Size is limited by the total number of paths held.
+ */
+public class ListingCache
+    implements LibraryChangeMonitor.Listener
+{
+    private long maxPaths;
+    private int minSize;
+    private long pathCount;
+    private long stamp;
+    private LinkedHashMap<String, Listing> listings =
+        new LinkedHashMap<String, Listing>(16, 0.75f, true);
+
+    private static class Listing
+    {
+        String library;
+        String collection;
+        String[] paths;
+    }
+
+    /**
+     * @param maxPaths maximum total number of paths in cached listings
+     * @param minSize smaller listings are not cached
+     */
+    public ListingCache(long maxPaths, int minSize)
+    {
+        this.maxPaths = maxPaths;
+        this.minSize = minSize;
+    }
+
+    /**
+     * Current version of cache contents: must be obtained before the
+     * Library session used to build a listing is opened.
+     */
+    public synchronized long getStamp()
+    {
+        return stamp;
+    }
+
+    /**
+     * Returns a cached sorted listing, or null.
+     * @param user name of the user listing the Collection
+     * @param filter description of the filter applied to members
+     */
+    public synchronized String[] get(String library, String user,
+                                     String collection, String filter)
+    {
+        Listing listing = listings.get(key(library, user, collection, filter));
+        return (listing == null)? null : listing.paths;
+    }
+
+    /**
+     * Stores a listing, unless it is small or a member of the Library
+     * has been modified since stamp was obtained.
+     */
+    public synchronized void put(String library, String user,
+                                 String collection, String filter,
+                                 String[] paths, long stamp)
+    {
+        if(stamp != this.stamp || paths.length < minSize
+           || paths.length > maxPaths)
+            return;
+        Listing listing = new Listing();
+        listing.library = library;
+        listing.collection = collection;
+        listing.paths = paths;
+        Listing old = listings.put(key(library, user, collection, filter),
+                                   listing);
+        if(old != null)
+            pathCount -= old.paths.length;
+        pathCount += paths.length;
+        // evict least recently used:
+        for(Iterator<Listing> it = listings.values().iterator();
+            pathCount > maxPaths && it.hasNext(); )
+        {
+            Listing lru = it.next();
+            pathCount -= lru.paths.length;
+            it.remove();
+        }
+    }
+
+    public synchronized void memberChanged(String library, String path)
+    {
+        ++ stamp;
+        int slash = path.lastIndexOf('/');
+        String parent = (slash <= 0)? "/" : path.substring(0, slash);
+        for(Iterator<Listing> it = listings.values().iterator(); it.hasNext(); )
+        {
+            Listing listing = it.next();
+            if(listing.library.equals(library)
+               && (listing.collection.equals(parent)
+                   || LibraryChangeMonitor.isAffected(listing.collection, path)))
+            {
+                pathCount -= listing.paths.length;
+                it.remove();
+            }
+        }
+    }
+
+    private static String key(String library, String user,
+                              String collection, String filter)
+    {
+        return library + "\u0000" + user + "\u0000" + collection
+               + "\u0000" + filter;
+    }
+}
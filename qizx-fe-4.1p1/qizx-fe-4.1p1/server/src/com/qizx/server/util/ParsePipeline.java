@@ -0,0 +1,137 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.xdm.DocumentParser;
+
+import org.apache.xml.resolver.CatalogManager;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Parses XML documents in parallel on a pool of threads, and delivers the
+ * results in submission order to a single consumer (which typically replays
+ * them into a Library).
+ * <p>
+ * At most 'window' documents are parsed or waiting to be consumed: the
+ * caller must check {@link #isFull()} before submitting, so that memory
+ * stays bounded.
+ */
+public class ParsePipeline
+{
+    private static final String LEXICAL_HANDLER =
+        "http://xml.org/sax/properties/lexical-handler";
+
+    private ExecutorService executor;
+    private int window;
+    private CatalogManager catalogs;
+    private LinkedList<Future<SAXEventBuffer>> pending =
+        new LinkedList<Future<SAXEventBuffer>>();
+
+    public ParsePipeline(ExecutorService executor, int window,
+                         CatalogManager catalogs)
+    {
+        this.executor = executor;
+        this.window = Math.max(window, 1);
+        this.catalogs = catalogs;
+    }
+
+    public boolean isFull()
+    {
+        return pending.size() >= window;
+    }
+
+    public boolean isEmpty()
+    {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Starts parsing a document. The source is closed when parsed.
+     */
+    public void submit(final InputSource source)
+    {
+        pending.add(executor.submit(new Callable<SAXEventBuffer>() {
+            public SAXEventBuffer call()
+                throws Exception
+            {
+                try {
+                    return parse(source);
+                }
+                finally {
+                    InputStream in = source.getByteStream();
+                    if(in != null)
+                        in.close();
+                    else if(source.getCharacterStream() != null)
+                        source.getCharacterStream().close();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Waits for the oldest submitted document.
+     * @throws SAXException or IOException if parsing failed.
+     */
+    public SAXEventBuffer next()
+        throws SAXException, IOException
+    {
+        Future<SAXEventBuffer> result = pending.removeFirst();
+        try {
+            return result.get();
+        }
+        catch (InterruptedException e) {
+            result.cancel(true);
+            throw new IOException("import interrupted");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof SAXException)
+                throw (SAXException) cause;
+            if(cause instanceof IOException)
+                throw (IOException) cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new SAXException(cause.toString());
+        }
+    }
+
+    /**
+     * Abandons all documents not yet consumed.
+     */
+    public void cancel()
+    {
+        for(Future<SAXEventBuffer> f : pending)
+            f.cancel(true);
+        pending.clear();
+    }
+
+    private SAXEventBuffer parse(InputSource source)
+        throws SAXException, IOException
+    {
+        DocumentParser parser = new DocumentParser();
+        parser.setLocalCatalogManager(catalogs);
+        XMLReader reader = parser.newParser();
+        SAXEventBuffer events = new SAXEventBuffer();
+        reader.setContentHandler(events);
+        reader.setErrorHandler(events);     // fatal errors only
+        reader.setProperty(LEXICAL_HANDLER, events);
+        reader.parse(source);
+        return events;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.Collection;
+import com.qizx.api.DataModelException;
+import com.qizx.api.Library;
+import com.qizx.api.LibraryMember;
+import com.qizx.api.LibraryMemberIterator;
+import com.qizx.api.util.GlobFilter;
+import com.qizx.util.basic.PathUtil;
+
+import java.util.List;
+
+/**
+ * Pattern matching paths of Library members, like '/books/*&#47;ch*.xml'.
+ * <p>
+ * Each step of the path is a shell-like pattern applied to member names
+ * (through {@link GlobFilter}, so that filtering is done by
+ * Collection.getChildren). The step '**' matches any number of
+ * collections.
+ */
+public class PathGlob
+{
+    private static final String ANY_DEPTH = "**";
+
+    private String root;
+    private String[] steps;
+
+    public PathGlob(String pattern)
+    {
+        pattern = PathUtil.normalizePath(pattern, true);
+        String[] parts = pattern.substring(1).split("/");
+        // leading steps without wildcards form the root collection:
+        int fixed = 0;
+        StringBuilder rootPath = new StringBuilder();
+        for(; fixed < parts.length - 1 && !isPattern(parts[fixed]); fixed++)
+            rootPath.append('/').append(parts[fixed]);
+        root = rootPath.length() == 0? "/" : rootPath.toString();
+        steps = new String[parts.length - fixed];
+        System.arraycopy(parts, fixed, steps, 0, steps.length);
+    }
+
+    /**
+     * Returns true if the string contains wildcard characters.
+     */
+    public static boolean isPattern(String s)
+    {
+        return s.indexOf('*') >= 0 || s.indexOf('?') >= 0
+               || s.indexOf('[') >= 0;
+    }
+
+    /**
+     * Path of the deepest collection containing all possible matches.
+     */
+    public String getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Appends the non-collection members matching the pattern to a list.
+     */
+    public void expand(Library lib, List<LibraryMember> result)
+        throws DataModelException
+    {
+        Collection col = lib.getCollection(root);
+        if(col != null)
+            expand(col, 0, result);
+    }
+
+    private void expand(Collection col, int step, List<LibraryMember> result)
+        throws DataModelException
+    {
+        String pattern = steps[step];
+        boolean last = (step == steps.length - 1);
+        if(ANY_DEPTH.equals(pattern)) {
+            if(last)
+                pattern = "*";
+            else {
+                // zero collection:
+                expand(col, step + 1, result);
+                LibraryMemberIterator iter = col.getChildren();
+                for( ; iter.moveToNextMember(); ) {
+                    LibraryMember member = iter.getCurrentMember();
+                    if(member.isCollection())
+                        expand((Collection) member, step, result);
+                }
+                return;
+            }
+        }
+        if(!isPattern(pattern)) {
+            LibraryMember member = col.getChild(pattern);
+            if(member != null)
+                visit(member, step, last, result);
+            return;
+        }
+        LibraryMemberIterator iter = col.getChildren(new GlobFilter(pattern));
+        for( ; iter.moveToNextMember(); )
+            visit(iter.getCurrentMember(), step, last, result);
+    }
+
+    private void visit(LibraryMember member, int step, boolean last,
+                       List<LibraryMember> result)
+        throws DataModelException
+    {
+        if(last) {
+            if(!member.isCollection())
+                result.add(member);
+            else if(ANY_DEPTH.equals(steps[step]))
+                expand((Collection) member, step, result);
+        }
+        else if(member.isCollection())
+            expand((Collection) member, step + 1, result);
+    }
+}
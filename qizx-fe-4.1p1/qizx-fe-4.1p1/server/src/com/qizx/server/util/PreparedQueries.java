@@ -0,0 +1,269 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Expression;
+import com.qizx.api.Library;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+/**
+ * Compiled expressions kept on the server by the 'prepare' request, and
+ * executed any number of times by the 'execute' request.
+ * <p>
+ * A prepared expression keeps its own Library session, which is refreshed
+ * before each execution. The number of prepared expressions per user and
+ * the total number are limited: when a limit is reached, the least recently
+ * used one (of the user, or of all users) is discarded. A prepared
+ * expression unused for some time is discarded too.
+ */
+public class PreparedQueries
+{
+    private QizxDriver driver;
+    private int maxPerUser;
+    private int maxTotal;
+    private long ttl;
+    private HashMap<String, Prepared> prepared = new HashMap<String, Prepared>();
+    private Timer timer;
+    private long clock;     // for LRU order
+
+    /**
+     * A prepared expression.
+     */
+    public static class Prepared
+    {
+        private String id;
+        private String user;
+        private Library session;
+        private Expression expression;
+        private long lastAccess;
+        private long lastUse;   // time, for expiry
+        private boolean busy;
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public Library getSession()
+        {
+            return session;
+        }
+
+        public Expression getExpression()
+        {
+            return expression;
+        }
+    }
+
+    /**
+     * @param maxPerUser maximum number of prepared expressions for a user
+     * @param maxTotal maximum number of prepared expressions (0 for no
+     * limit)
+     * @param ttl maximum idle time of a prepared expression in milliseconds
+     * (0 for no limit)
+     */
+    public PreparedQueries(QizxDriver driver, int maxPerUser, int maxTotal,
+                           long ttl)
+    {
+        this.driver = driver;
+        this.maxPerUser = maxPerUser;
+        this.maxTotal = maxTotal;
+        this.ttl = ttl;
+        timer = new Timer("qizx-prepared-timer", true);
+        if(ttl > 0) {
+            long period = Math.max(ttl / 4, 1000);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    sweep();
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * Registers a compiled expression. The session then belongs to the
+     * registry: it must not be released by the request.
+     * @return the new prepared expression, not in use
+     * @throws RequestException if the user has too many prepared expressions
+     * in use
+     */
+    public Prepared add(String user, Library session, Expression expression)
+        throws RequestException
+    {
+        Prepared evicted = null;
+        Prepared p = new Prepared();
+        synchronized (this) {
+            int count = 0;
+            Prepared oldest = null;
+            for(Prepared old : prepared.values()) {
+                boolean mine = sameUser(old.user, user);
+                if(mine)
+                    ++ count;
+                if(old.busy)
+                    continue;
+                if(oldest == null || old.lastAccess < oldest.lastAccess)
+                    oldest = old;
+                if(mine && (evicted == null
+                            || old.lastAccess < evicted.lastAccess))
+                    evicted = old;
+            }
+            if(count >= maxPerUser) {
+                if(evicted == null)
+                    throw new RequestException(Request.BAD_REQUEST,
+                             "too many prepared expressions (" + maxPerUser + ")");
+            }
+            else if(maxTotal > 0 && prepared.size() >= maxTotal) {
+                if(oldest == null)
+                    throw new RequestException(Request.BAD_REQUEST,
+                             "too many prepared expressions on the server ("
+                             + maxTotal + ")");
+                evicted = oldest;
+            }
+            else
+                evicted = null;
+            if(evicted != null)
+                prepared.remove(evicted.id);
+            p.id = UUID.randomUUID().toString();
+            p.user = user;
+            p.session = session;
+            p.expression = expression;
+            p.lastAccess = ++ clock;
+            p.lastUse = System.currentTimeMillis();
+            prepared.put(p.id, p);
+        }
+        if(evicted != null)
+            driver.releaseSession(evicted.session);
+        return p;
+    }
+
+    /**
+     * Gets exclusive use of a prepared expression, for the duration of a
+     * request. The session is refreshed, so that it sees the latest
+     * committed changes.
+     * @throws RequestException if the handle does not exist (or has been
+     * discarded), belongs to another user, or is in use
+     */
+    public Prepared acquire(String id, String user, QizxRequestBase request)
+        throws RequestException, DataModelException
+    {
+        Prepared p;
+        synchronized (this) {
+            p = prepared.get(id);
+            if(p == null || !sameUser(p.user, user))
+                throw new RequestException(Request.NOT_FOUND,
+                                   "unknown or discarded prepared query " + id);
+            if(p.busy)
+                throw new RequestException(Request.BAD_REQUEST,
+                                   "prepared query " + id + " is in use");
+            p.busy = true;
+            p.lastAccess = ++ clock;
+        }
+        try {
+            driver.refreshSession(p.session, request);
+        }
+        catch (DataModelException e) {
+            discard(p);
+            throw e;
+        }
+        return p;
+    }
+
+    /**
+     * Ends the use of a prepared expression. Updates not committed by the
+     * execution are rolled back.
+     */
+    public void release(Prepared p)
+    {
+        if(p.session.isModified()) {
+            try {
+                driver.rollback(p.session);
+            }
+            catch (DataModelException e) {
+                discard(p);
+                return;
+            }
+        }
+        synchronized (this) {
+            p.busy = false;
+            p.lastUse = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Discards a prepared expression and releases its session.
+     */
+    public void discard(Prepared p)
+    {
+        synchronized (this) {
+            if(prepared.remove(p.id) == null)
+                return;
+        }
+        driver.releaseSession(p.session);
+    }
+
+    /**
+     * Starts a time limit on an execution: must be cancelled after use.
+     * The time-out of the expression itself is not used because its timer
+     * would not be cancelled at the end of the execution.
+     * @param delay in milliseconds; no limit if 0 or negative
+     */
+    public synchronized CursorRegistry.TimeLimit limitTime(Prepared p, long delay)
+    {
+        CursorRegistry.TimeLimit limit = new CursorRegistry.TimeLimit(p.expression);
+        if(delay > 0)
+            timer.schedule(limit, delay);
+        return limit;
+    }
+
+    /**
+     * Discards all prepared expressions and stops the timer.
+     */
+    public void shutdown()
+    {
+        ArrayList<Prepared> all;
+        synchronized (this) {
+            timer.cancel();
+            all = new ArrayList<Prepared>(prepared.values());
+        }
+        for(Prepared p : all)
+            discard(p);
+    }
+
+    // discards prepared expressions unused for longer than ttl
+    private void sweep()
+    {
+        ArrayList<Prepared> expired = new ArrayList<Prepared>();
+        long limit = System.currentTimeMillis() - ttl;
+        synchronized (this) {
+            for(Iterator<Prepared> it = prepared.values().iterator();
+                it.hasNext(); )
+            {
+                Prepared p = it.next();
+                if(!p.busy && p.lastUse < limit) {
+                    it.remove();
+                    expired.add(p);
+                }
+            }
+        }
+        for(Prepared p : expired)
+            driver.releaseSession(p.session);
+    }
+
+    private static boolean sameUser(String user1, String user2)
+    {
+        return (user1 == null)? user2 == null : user1.equals(user2);
+    }
+}
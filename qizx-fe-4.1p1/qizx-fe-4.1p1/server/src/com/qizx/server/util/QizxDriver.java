@@ -28,11 +28,16 @@ import java.io.StringWriter;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -107,6 +112,90 @@ public class QizxDriver
     // Config: 
     static final String CF_EVAL_TIME_OUT = "eval_time_out";
 
+    // Config: cache of non-XML documents: memory tier size in Mb,
+    // size limit in Kb of documents kept in memory, directory and size in Mb
+    // of the file tier
+    static final String CF_BLOB_CACHE_MEMORY = "blob_cache_memory";
+    static final String CF_BLOB_CACHE_THRESHOLD = "blob_cache_threshold";
+    static final String CF_BLOB_CACHE_DIR = "blob_cache_dir";
+    static final String CF_BLOB_CACHE_DISK = "blob_cache_disk";
+
+    // Config: cache of sorted Collection listings: max total number of
+    // paths, min number of members of a cached listing
+    static final String CF_LISTING_CACHE_SIZE = "listing_cache_size";
+    static final String CF_LISTING_CACHE_MIN = "listing_cache_min";
+
+    // Config: eval cursors: idle time-to-live in seconds, max number of
+    // open cursors per user (0 to disable cursors)
+    static final String CF_CURSOR_TTL = "cursor_ttl";
+    static final String CF_CURSOR_MAX = "cursor_max";
+
+    // Config: number of threads parsing documents of a put request in
+    // parallel (0 = parsing in the request thread), max number of parsed
+    // documents waiting for import, per request
+    static final String CF_PARSE_THREADS = "parse_threads";
+    static final String CF_PARSE_WINDOW = "parse_window";
+
+    // Config: Libraries using group commit for small updates ('*' for all),
+    // time window in ms, max number of updates in a group
+    static final String CF_GROUP_COMMIT = "group_commit";
+    static final String CF_GROUP_COMMIT_WINDOW = "group_commit_window";
+    static final String CF_GROUP_COMMIT_SIZE = "group_commit_size";
+
+    // Config: cache of compiled eval expressions: max number of idle
+    // sessions per Library and user (0 to disable), max number of
+    // expressions per session, replacement of literals by variables, max
+    // total number of idle sessions, idle time-to-live in seconds
+    static final String CF_EVAL_CACHE_SESSIONS = "eval_cache_sessions";
+    static final String CF_EVAL_CACHE_SIZE = "eval_cache_size";
+    static final String CF_EVAL_CACHE_NORMALIZE = "eval_cache_normalize";
+    static final String CF_EVAL_CACHE_MAX_IDLE = "eval_cache_max_idle";
+    static final String CF_EVAL_CACHE_TTL = "eval_cache_ttl";
+
+    // Config: cache of query results: size in Mb (0 to disable), size limit
+    // in Kb of a cached result
+    static final String CF_RESULT_CACHE_MEMORY = "result_cache_memory";
+    static final String CF_RESULT_CACHE_ENTRY = "result_cache_entry";
+
+    // Config: max number of prepared queries per user (0 to disable), max
+    // total number, idle time-to-live in seconds
+    static final String CF_PREPARED_MAX = "prepared_max";
+    static final String CF_PREPARED_MAX_TOTAL = "prepared_max_total";
+    static final String CF_PREPARED_TTL = "prepared_ttl";
+
+    // Config: evalbatch: number of threads evaluating queries of batches
+    // (0 = sequential evaluation in the request thread), max number of
+    // queries in a batch
+    static final String CF_EVAL_BATCH_THREADS = "eval_batch_threads";
+    static final String CF_EVAL_BATCH_MAX = "eval_batch_max";
+
+    // Config: interval in ms between two checks of the connection of
+    // clients of running queries (0 to disable)
+    static final String CF_CLIENT_CHECK_INTERVAL = "client_check_interval";
+
+    // Config: slow-query log: min duration in ms of logged queries (0 to
+    // disable), log file, logging of the compilation trace
+    static final String CF_SLOW_QUERY_THRESHOLD = "slow_query_threshold";
+    static final String CF_SLOW_QUERY_LOG = "slow_query_log";
+    static final String CF_SLOW_QUERY_TRACE = "slow_query_trace";
+
+    // Config: resource limits of queries: max number of result items, max
+    // size of response in Kb, max memory allocated in Mb. Roles having
+    // specific limits, defined by the same keys suffixed by '.' and the role
+    static final String CF_QUERY_MAX_ITEMS = "query_max_items";
+    static final String CF_QUERY_MAX_OUTPUT = "query_max_output";
+    static final String CF_QUERY_MAX_MEMORY = "query_max_memory";
+    static final String CF_QUERY_LIMIT_ROLES = "query_limit_roles";
+
+    // Config: flushing of results: number of items, size in Kb, time in ms
+    // between two flushes (0 to disable each; all disabled by default)
+    static final String CF_FLUSH_ITEMS = "flush_items";
+    static final String CF_FLUSH_OUTPUT = "flush_output";
+    static final String CF_FLUSH_INTERVAL = "flush_interval";
+
+    // Config: max number of query fingerprints in statistics (0 to disable)
+    static final String CF_QUERY_STATS_SIZE = "query_stats_size";
+
 
     // -----------------------------------------------------------------------
     
@@ -146,6 +235,26 @@ public class QizxDriver
 
     private String[] adminUsers;
 
+    private LibraryChangeMonitor changeMonitor;
+    private BlobCache blobCache;
+    private ListingCache listingCache;
+    private ExecutorService parseExecutor;
+    private int parseWindow;
+    private ExecutorService evalBatchExecutor;
+    private int evalBatchMax;
+    private GroupCommitter groupCommitter;
+    private CursorRegistry cursorRegistry;
+    private ExpressionCache expressionCache;
+    private PreparedQueries preparedQueries;
+    private ResultCache resultCache;
+    private boolean normalizeQueries;
+    private QueryRegistry queryRegistry = new QueryRegistry(0);
+    private SlowQueryLog slowQueryLog;
+    private ResourceLimits queryLimits = ResourceLimits.NONE;
+    private String[] limitRoles;
+    private HashMap<String, ResourceLimits> roleLimits;
+    private FlushPolicy flushPolicy = FlushPolicy.NONE;
+    private QueryStats queryStats;
     
 
     public QizxDriver(ServletContext webApp, File serverRootPath)
@@ -341,6 +450,23 @@ public class QizxDriver
         servicesRoot = getFileProperty(CF_SERVICES_DIR);
         servicesDefaultLibrary = getProperty(CF_SERVICES_LIB, null);
         
+        changeMonitor = new LibraryChangeMonitor();
+        libManager.addLibraryObserver(changeMonitor);
+        initBlobCache();
+        initListingCache();
+        initResultCache();
+        initParseExecutor();
+        initEvalBatch();
+        initQueryRegistry();
+        initSlowQueryLog();
+        initQueryLimits();
+        initFlushPolicy();
+        initQueryStats();
+        initGroupCommit();
+        initCursors();
+        initExpressionCache();
+        initPreparedQueries();
+        
         context.log("Qizx server started");
         
         changedLibraryList();
@@ -352,6 +478,32 @@ public class QizxDriver
         if(libManager == null)
             return;
         context.log("stopping Qizx engine... ");
+        if(cursorRegistry != null) {
+            cursorRegistry.shutdown();
+            cursorRegistry = null;
+        }
+        if(parseExecutor != null) {
+            parseExecutor.shutdownNow();
+            parseExecutor = null;
+        }
+        if(evalBatchExecutor != null) {
+            evalBatchExecutor.shutdownNow();
+            evalBatchExecutor = null;
+        }
+        queryRegistry.shutdown();
+        if(slowQueryLog != null) {
+            slowQueryLog.close();
+            slowQueryLog = null;
+        }
+        if(preparedQueries != null) {
+            preparedQueries.shutdown();
+            preparedQueries = null;
+        }
+        if(expressionCache != null) {
+            for(Library session : expressionCache.clear())
+                releaseSession(session);
+            expressionCache = null;
+        }
         boolean graceful = libManager.closeAllLibraries(0);
         changedLibraryList();
         libManager = null;
@@ -530,7 +682,11 @@ public class QizxDriver
      */
     public synchronized void releaseSession(Library session)
     {
-        // no pooling for now
+        if(expressionCache != null && expressionCache.recycle(session)) {
+            if(changeMonitor != null)
+                changeMonitor.sessionReleased(session);
+            return;
+        }
         try {
             session.close();
         }
@@ -538,14 +694,439 @@ public class QizxDriver
             // close can throw an exception if modifications occurred:
             // wants a rollback before closing
             try {
-                session.rollback();
+                rollback(session);
             }
             catch (DataModelException e1) {
                 context.log("session close", e1);
             }
         }
+        if(changeMonitor != null)
+            changeMonitor.sessionReleased(session);
+    }
+
+    /**
+     * Commits a session and notifies the server caches of the members it
+     * has modified.
+     */
+    public void commit(Library session)
+        throws DataModelException
+    {
+        session.commit();
+        if(changeMonitor != null)
+            changeMonitor.sessionCommitted(session);
+    }
+
+    /**
+     * Rolls back a session.
+     */
+    public void rollback(Library session)
+        throws DataModelException
+    {
+        session.rollback();
+        if(changeMonitor != null)
+            changeMonitor.sessionRolledBack(session);
     }
     
+    /**
+     * Gets a session able to keep compiled expressions, taken from the pool
+     * of the expression cache if possible. Returns a plain session if the
+     * cache is disabled.
+     */
+    public synchronized Library acquireCachingSession(String libraryName,
+                                                      String userName,
+                                                      QizxRequestBase request)
+        throws RequestException, DataModelException
+    {
+        requireEngine();
+        if(expressionCache == null)
+            return acquireSession(libraryName, userName, request);
+        if(libraryName == null || libraryName.length() == 0)
+            libraryName = singleLibName();
+        Library lib = expressionCache.acquire(libraryName, userName);
+        if(lib != null) {
+            refreshSession(lib, request);
+            return lib;
+        }
+        lib = acquireSession(libraryName, userName, request);
+        expressionCache.adopt(lib, lib.getName(), userName);
+        return lib;
+    }
+
+    /**
+     * Prepares a session kept between requests for use by a new request:
+     * makes it see the changes committed since its last use, and checks
+     * access rights against the new request.
+     */
+    void refreshSession(Library session, QizxRequestBase request)
+        throws DataModelException
+    {
+        session.refresh();
+        bindUser(session, request);
+    }
+
+    /**
+     * Makes access rights of a session kept between requests be checked
+     * against a new request, without refreshing its view of the Library
+     * (used by cursors, whose results come from the initial snapshot).
+     */
+    void bindUser(Library session, QizxRequestBase request)
+    {
+        if(session.getUser() instanceof ServerUser)
+            ((ServerUser) session.getUser()).request = request.request;
+    }
+
+    private void initQueryRegistry()
+    {
+        long interval = getIntProperty(CF_CLIENT_CHECK_INTERVAL, 1000);
+        queryRegistry.shutdown();
+        queryRegistry = new QueryRegistry(interval);
+    }
+
+    private void initSlowQueryLog()
+    {
+        long threshold = getIntProperty(CF_SLOW_QUERY_THRESHOLD, 0);
+        if(threshold <= 0)
+            return;
+        File file = getFileProperty(CF_SLOW_QUERY_LOG);
+        if(file == null)
+            file = new File(serverRootDir, "slow-queries.log");
+        boolean trace = "true".equalsIgnoreCase(
+                              getProperty(CF_SLOW_QUERY_TRACE, "false"));
+        try {
+            slowQueryLog = new SlowQueryLog(threshold, file, trace);
+            context.log(" slow-query log: " + file + ", queries over "
+                        + threshold + " ms");
+        }
+        catch (IOException e) {
+            context.log("ERROR: cannot open slow-query log " + file, e);
+        }
+    }
+
+    private void initQueryLimits()
+    {
+        queryLimits = readLimits("");
+        roleLimits = new HashMap<String, ResourceLimits>();
+        String roles = getProperty(CF_QUERY_LIMIT_ROLES, null);
+        limitRoles = (roles == null)? new String[0] : roles.split("[ \t,;]+");
+        for(String role : limitRoles)
+            roleLimits.put(role, queryLimits.override(readLimits("." + role)));
+        if(!queryLimits.isNone() || limitRoles.length > 0)
+            context.log(" query limits: " + queryLimits
+                        + ((limitRoles.length > 0)? ", roles " + roles : ""));
+    }
+
+    private ResourceLimits readLimits(String suffix)
+    {
+        return new ResourceLimits(
+                     getIntProperty(CF_QUERY_MAX_ITEMS + suffix, 0),
+                     getIntProperty(CF_QUERY_MAX_OUTPUT + suffix, 0) * 1024,
+                     getIntProperty(CF_QUERY_MAX_MEMORY + suffix, 0) * MB);
+    }
+
+    private void initFlushPolicy()
+    {
+        flushPolicy = new FlushPolicy(
+                          (int) getIntProperty(CF_FLUSH_ITEMS, 0),
+                          getIntProperty(CF_FLUSH_OUTPUT, 0) * 1024,
+                          getIntProperty(CF_FLUSH_INTERVAL, 0));
+        if(!flushPolicy.isNone())
+            context.log(" flushing results: " + flushPolicy);
+    }
+
+    private void initQueryStats()
+    {
+        int size = (int) getIntProperty(CF_QUERY_STATS_SIZE, 1000);
+        queryStats = (size > 0)? new QueryStats(size) : null;
+    }
+
+    /**
+     * Returns the statistics of queries, or null if disabled.
+     */
+    public QueryStats getQueryStats()
+    {
+        return queryStats;
+    }
+
+    /**
+     * Returns the default policy of flushing of results.
+     */
+    public FlushPolicy getFlushPolicy()
+    {
+        return flushPolicy;
+    }
+
+    /**
+     * Returns the resource limits of queries for the user of a request: the
+     * limits of the first configured role of the user, else the default
+     * limits.
+     */
+    public ResourceLimits getQueryLimits(QizxRequestBase request)
+    {
+        for(String role : limitRoles)
+            if(request.isInRole(role, null))
+                return roleLimits.get(role);
+        return queryLimits;
+    }
+
+    /**
+     * Returns the log of slow queries, or null if disabled.
+     */
+    public SlowQueryLog getSlowQueryLog()
+    {
+        return slowQueryLog;
+    }
+
+    /**
+     * Returns the registry of queries being evaluated.
+     */
+    public QueryRegistry getQueryRegistry()
+    {
+        return queryRegistry;
+    }
+
+    /**
+     * Returns the cache of compiled eval expressions, or null if disabled.
+     */
+    public ExpressionCache getExpressionCache()
+    {
+        return expressionCache;
+    }
+
+    /**
+     * True if literals of eval queries are replaced by variables before
+     * lookup in the expression cache.
+     */
+    public boolean isNormalizingQueries()
+    {
+        return normalizeQueries;
+    }
+
+    private void initExpressionCache()
+    {
+        expressionCache = null;
+        int sessions = (int) getIntProperty(CF_EVAL_CACHE_SESSIONS, 0);
+        if(sessions <= 0)
+            return;
+        int size = (int) getIntProperty(CF_EVAL_CACHE_SIZE, 100);
+        normalizeQueries = "true".equalsIgnoreCase(
+                              getProperty(CF_EVAL_CACHE_NORMALIZE, "false"));
+        int maxIdle = (int) getIntProperty(CF_EVAL_CACHE_MAX_IDLE, 64);
+        long ttl = getIntProperty(CF_EVAL_CACHE_TTL, 300);
+        expressionCache = new ExpressionCache(sessions, Math.max(size, 1),
+                                              maxIdle, ttl * 1000);
+        context.log(" expression cache: " + sessions + " sessions, "
+                    + size + " expressions per session"
+                    + (normalizeQueries? ", normalized" : "")
+                    + ", " + maxIdle + " idle sessions max, ttl " + ttl + " s");
+    }
+
+    private void initPreparedQueries()
+    {
+        int max = (int) getIntProperty(CF_PREPARED_MAX, 20);
+        if(max <= 0)
+            return;
+        int maxTotal = (int) getIntProperty(CF_PREPARED_MAX_TOTAL, 500);
+        long ttl = getIntProperty(CF_PREPARED_TTL, 1800);
+        preparedQueries = new PreparedQueries(this, max, maxTotal, ttl * 1000);
+    }
+
+    /**
+     * Returns the registry of prepared queries, or null if disabled.
+     */
+    public PreparedQueries getPreparedQueries()
+    {
+        return preparedQueries;
+    }
+
+    private void initBlobCache()
+    {
+        blobCache = null;
+        long memSize = getIntProperty(CF_BLOB_CACHE_MEMORY, 0);
+        File dir = getFileProperty(CF_BLOB_CACHE_DIR);
+        if(memSize <= 0 && dir == null)
+            return;
+        long threshold = getIntProperty(CF_BLOB_CACHE_THRESHOLD, 256);
+        long diskSize = getIntProperty(CF_BLOB_CACHE_DISK, 1024);
+        try {
+            blobCache = new BlobCache(Math.max(memSize, 0) * MB,
+                                      (int) threshold * 1024,
+                                      dir, Math.max(diskSize, 0) * MB);
+            changeMonitor.addListener(blobCache);
+            context.log(" blob cache: " + memSize + " Mb in memory, "
+                        + (dir == null? "no file tier" : "file tier " + dir));
+        }
+        catch (IOException e) {
+            context.log("ERROR: cannot create blob cache in " + dir, e);
+        }
+    }
+
+    /**
+     * Returns the cache of non-XML documents, or null if not configured.
+     */
+    public BlobCache getBlobCache()
+    {
+        return blobCache;
+    }
+
+    private void initListingCache()
+    {
+        listingCache = null;
+        long size = getIntProperty(CF_LISTING_CACHE_SIZE, 0);
+        if(size <= 0)
+            return;
+        int min = (int) getIntProperty(CF_LISTING_CACHE_MIN, 1000);
+        listingCache = new ListingCache(size, min);
+        changeMonitor.addListener(listingCache);
+        context.log(" listing cache: " + size + " paths");
+    }
+
+    /**
+     * Returns the cache of Collection listings, or null if not configured.
+     */
+    public ListingCache getListingCache()
+    {
+        return listingCache;
+    }
+
+    public LibraryChangeMonitor getChangeMonitor()
+    {
+        return changeMonitor;
+    }
+
+    private void initResultCache()
+    {
+        resultCache = null;
+        long memSize = getIntProperty(CF_RESULT_CACHE_MEMORY, 0);
+        if(memSize <= 0)
+            return;
+        long entrySize = getIntProperty(CF_RESULT_CACHE_ENTRY, 1024);
+        resultCache = new ResultCache(memSize * MB, (int) entrySize * 1024);
+        changeMonitor.addListener(resultCache);
+        context.log(" result cache: " + memSize + " Mb");
+    }
+
+    /**
+     * Returns the cache of query results, or null if not configured.
+     */
+    public ResultCache getResultCache()
+    {
+        return resultCache;
+    }
+
+    private void initCursors()
+    {
+        long ttl = getIntProperty(CF_CURSOR_TTL, 300);
+        int max = (int) getIntProperty(CF_CURSOR_MAX, 10);
+        if(ttl <= 0 || max <= 0)
+            return;
+        cursorRegistry = new CursorRegistry(this, ttl * 1000, max);
+    }
+
+    /**
+     * Returns the registry of open eval cursors, or null if disabled.
+     */
+    public CursorRegistry getCursorRegistry()
+    {
+        return cursorRegistry;
+    }
+
+    private void initGroupCommit()
+    {
+        groupCommitter = null;
+        String libs = getProperty(CF_GROUP_COMMIT, null);
+        if(libs == null)
+            return;
+        HashSet<String> names = null;
+        if(!"*".equals(libs))
+            names = new HashSet<String>(Arrays.asList(libs.split("[ \t,;]+")));
+        long window = getIntProperty(CF_GROUP_COMMIT_WINDOW, 10);
+        int size = (int) getIntProperty(CF_GROUP_COMMIT_SIZE, 100);
+        groupCommitter = new GroupCommitter(names, window, size);
+        context.log(" group commit on " + libs + ": " + window + " ms, "
+                    + size + " updates max");
+    }
+
+    /**
+     * Returns the group committer if the Library is configured for group
+     * commit, otherwise null.
+     * @param libraryName if null, the single Library of the server
+     */
+    public GroupCommitter getGroupCommitter(String libraryName)
+    {
+        GroupCommitter committer = groupCommitter;
+        if(committer == null || libManager == null)
+            return null;
+        if(libraryName == null || libraryName.length() == 0)
+            libraryName = singleLibName();
+        return (libraryName != null && committer.isEnabled(libraryName))?
+                committer : null;
+    }
+
+    private void initParseExecutor()
+    {
+        int threads = (int) getIntProperty(CF_PARSE_THREADS, 0);
+        if(threads <= 0)
+            return;
+        parseWindow = (int) getIntProperty(CF_PARSE_WINDOW, 2 * threads);
+        parseExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            int count;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "qizx-parser-" + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        context.log(" parse pipeline: " + threads + " threads, window "
+                    + parseWindow);
+    }
+
+    /**
+     * Returns a pipeline for parsing documents in parallel, or null if not
+     * configured. Threads are shared by all requests.
+     */
+    public ParsePipeline newParsePipeline()
+    {
+        ExecutorService executor = parseExecutor;
+        if(executor == null)
+            return null;
+        return new ParsePipeline(executor, parseWindow, catManager);
+    }
+
+    private void initEvalBatch()
+    {
+        evalBatchMax = (int) getIntProperty(CF_EVAL_BATCH_MAX, 50);
+        int threads = (int) getIntProperty(CF_EVAL_BATCH_THREADS, 8);
+        if(threads <= 0)
+            return;
+        evalBatchExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            int count;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "qizx-evalbatch-" + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        context.log(" evalbatch: " + threads + " threads, max "
+                    + evalBatchMax + " queries");
+    }
+
+    /**
+     * Returns the threads evaluating the queries of 'evalbatch' requests,
+     * or null if queries are evaluated in the request thread.
+     */
+    public ExecutorService getEvalBatchExecutor()
+    {
+        return evalBatchExecutor;
+    }
+
+    /**
+     * Maximum number of queries in an 'evalbatch' request.
+     */
+    public int getEvalBatchMax()
+    {
+        return evalBatchMax;
+    }
+
     private void initCatalogs()
     {
         catManager = new CatalogManager();
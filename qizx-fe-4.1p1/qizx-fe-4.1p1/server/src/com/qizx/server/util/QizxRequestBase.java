@@ -10,14 +10,24 @@ package com.qizx.server.util;
 
 import com.qizx.api.*;
 
+import com.qizx.util.basic.FileUtil;
+import com.qizx.xdm.DocumentParser;
+import com.qizx.xquery.ExpressionImpl;
+
 import com.xmlmind.multipartreq.Part;
 
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.InputStream;
 import java.io.StringReader;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -28,6 +38,11 @@ import javax.servlet.http.HttpServletResponse;
 public abstract class QizxRequestBase extends Request
 {    
     public static final String MIME_QIZX_ERROR = "text/x-qizx-error; charset=UTF-8";
+    // line preceding the error message when part of the response has
+    // already been sent (results flushed): status and content-type can no
+    // longer be changed, so the error is marked in the body, unless the
+    // format has its own error record (see putErrorRecord)
+    public static final String ERROR_MARKER = "--qizx-error--";
     
     // Qizx specific error codes
     protected static final String ACCESS = "AccessControl";
@@ -35,12 +50,26 @@ public abstract class QizxRequestBase extends Request
     protected static final String COMPILATION = "Compilation";
     protected static final String EVALUATION = "Evaluation";
     protected static final String TIMEOUT = "TimeOut";
+    protected static final String CANCELLED = "Cancelled";
+    protected static final String RESOURCE_LIMIT = "ResourceLimit";
     
     public    static final String MIME_PROPERTY = "content-type";
+    // prefix of request parameters giving the value of external variables
+    protected static final String VARIABLE_PREFIX = "$";
+    // declaration of an external variable without default value
+    private static final Pattern REQUIRED_VARIABLE = Pattern.compile(
+        "declare\\s+variable\\s+\\$([\\w.-]+)(\\s+as\\s+[^;{}]*?)?\\s+external\\s*;");
 
     protected QizxDriver driver;
     protected Library libSession;
     protected Part currentPart;
+    protected ClientOutput clientOutput;
+    protected SlowQueryLog.Entry slowEntry;
+    private QueryStats.Sample statSample;
+    protected ResourceLimits serviceLimits;
+    private QueryRegistry.RunningQuery currentQuery;
+    private FlushPolicy.Monitor flushMonitor;
+    private ExpressionImpl tracedExpression;
 
     
     protected QizxDriver getDriver()
@@ -55,10 +84,17 @@ public abstract class QizxRequestBase extends Request
     {
         driver = getDriver();
         libSession = null;
+        clientOutput = null;
+        slowEntry = null;
+        statSample = null;
+        serviceLimits = null;
+        currentQuery = null;
+        flushMonitor = null;
     }
     
     public void cleanup()
     {
+        endQueryLog();
         if(libSession != null) {
             driver.releaseSession(libSession);
             libSession = null;
@@ -68,7 +104,21 @@ public abstract class QizxRequestBase extends Request
     protected void sendError(RequestException he)
         throws IOException
     {
-        if(!response.isCommitted())
+        if(slowEntry != null)
+            slowEntry.setError(he.code);
+        if(statSample != null)
+            statSample.setError(he.code);
+        if(clientOutput != null && clientOutput.isAborted()) {
+            log("client disconnected, " + he.code + ": " + he.getMessage());
+            return;
+        }
+        if(response.isCommitted()) {
+            if(putErrorRecord(errorCode(he), errorMessage(he)))
+                return;
+            println("");
+            println(ERROR_MARKER);
+        }
+        else
             response.reset();
 
         // for best compatibility with broken clients (eg Flex), no HTTP error
@@ -92,7 +142,7 @@ public abstract class QizxRequestBase extends Request
         }
         else if(cause instanceof EvaluationException) {
             EvaluationException ee = (EvaluationException) cause;
-            print(EVALUATION + ": ");
+            print(errorCode(he) + ": ");
             QName code = ee.getErrorCode();
             print(code != null? code.getLocalPart() : "<unknown code>");
             println(" " + ee.getMessage());
@@ -111,11 +161,11 @@ public abstract class QizxRequestBase extends Request
         }
         else if(cause instanceof AccessControlException) {
             AccessControlException dme = (AccessControlException) cause;
-            print((he.code == null? ACCESS : he.code) + ": " + dme.getMessage());
+            print(errorCode(he) + ": " + dme.getMessage());
         }
         else if(cause instanceof DataModelException) {
             DataModelException dme = (DataModelException) cause;
-            print((he.code == null? XML_DATA : he.code) + ": " + dme.getMessage());
+            print(errorCode(he) + ": " + dme.getMessage());
         }
         else {  // standard error
             println(he.code + ": " + he.getMessage());
@@ -124,6 +174,50 @@ public abstract class QizxRequestBase extends Request
         }
     }
 
+    /**
+     * Appends an error to a response already committed, in a format where
+     * the text following {@link #ERROR_MARKER} would corrupt the data
+     * (JSON, binary items).
+     * @return false if the format has no error record (default): the error
+     * is then appended as text
+     */
+    protected boolean putErrorRecord(String code, String message)
+        throws IOException
+    {
+        return false;
+    }
+
+    // code of the error reported for a request exception
+    private static String errorCode(RequestException he)
+    {
+        Throwable cause = he.getCause();
+        if(cause instanceof CompilationException)
+            return COMPILATION;
+        if(cause instanceof EvaluationException)
+            // time limit and cancellation both stop evaluation the same way
+            return (TIMEOUT.equals(he.code) || CANCELLED.equals(he.code))?
+                       he.code : EVALUATION;
+        if(cause instanceof AccessControlException)
+            return (he.code == null)? ACCESS : he.code;
+        if(cause instanceof DataModelException)
+            return (he.code == null)? XML_DATA : he.code;
+        return he.code;
+    }
+
+    // first line of the error message, without code
+    private static String errorMessage(RequestException he)
+    {
+        Throwable cause = he.getCause();
+        if(cause instanceof EvaluationException) {
+            QName code = ((EvaluationException) cause).getErrorCode();
+            return (code != null? code.getLocalPart() : "<unknown code>")
+                   + " " + cause.getMessage();
+        }
+        if(cause instanceof QizxException)
+            return cause.getMessage();
+        return he.getMessage();
+    }
+
     protected QizxDriver requireQizxDriver()
         throws RequestException
     {
@@ -159,16 +253,226 @@ public abstract class QizxRequestBase extends Request
         return session;
     }
 
+    /**
+     * Commits a session of this request, notifying the server caches.
+     */
+    protected void commit(Library lib)
+        throws RequestException, DataModelException
+    {
+        requireQizxDriver().commit(lib);
+    }
+
+    /**
+     * Rolls back a session of this request.
+     */
+    protected void rollback(Library lib)
+        throws RequestException, DataModelException
+    {
+        requireQizxDriver().rollback(lib);
+    }
+
     protected void checkAdminRole(QizxDriver driver)
         throws RequestException
     {
-        String adminRole = driver.getAdminRoleName();
-        if(adminRole != null && !request.isUserInRole(adminRole)
-           && !driver.isAdminUser(getUserName()))
+        if(!isAdmin(driver))
             throw new RequestException(ACCESS,
                          "administrator privilege required for this operation");
     }
 
+    protected boolean isAdmin(QizxDriver driver)
+    {
+        String adminRole = driver.getAdminRoleName();
+        return adminRole == null || request.isUserInRole(adminRole)
+               || driver.isAdminUser(getUserName());
+    }
+
+    /**
+     * Registers a query in the registry of running queries, before its
+     * evaluation. {@link #endQuery} must be called when finished.
+     */
+    protected QueryRegistry.RunningQuery startQuery(String library,
+                                                    Expression expr)
+        throws RequestException
+    {
+        QueryRegistry registry = requireQizxDriver().getQueryRegistry();
+        QueryRegistry.RunningQuery running =
+            registry.register(getName(), getUserName(), library,
+                              expr.getSource(), expr);
+        if(clientOutput != null)
+            registry.watch(running, clientOutput);
+        registry.limit(running, getQueryLimits());
+        currentQuery = running;
+        if(statSample != null)
+            statSample.evaluating();
+        FlushPolicy flush = getFlushPolicy();
+        flushMonitor = flush.isNone()? null : flush.monitor(clientOutput);
+        // probing would commit responses that are not flushed otherwise
+        if(clientOutput != null)
+            clientOutput.setProbing(flushMonitor != null);
+        if(slowEntry != null) {
+            slowEntry.setLibrary(library);
+            slowEntry.phase("prepare");
+            PrintWriter trace = slowEntry.getTraceWriter();
+            if(trace != null && expr instanceof ExpressionImpl) {
+                tracedExpression = (ExpressionImpl) expr;
+                tracedExpression.setCompilationTrace(trace);
+            }
+        }
+        return running;
+    }
+
+    /**
+     * Returns the resource limits of a query of this request: limits of the
+     * user (by role), replaced by those of the XQuery Service if any, and
+     * lowered by parameters maxitems, maxoutput (Kb) and maxmemory (Mb).
+     */
+    protected ResourceLimits getQueryLimits()
+        throws RequestException
+    {
+        ResourceLimits limits = requireQizxDriver().getQueryLimits(this);
+        if(serviceLimits != null)
+            limits = limits.override(serviceLimits);
+        long items = getIntParameter("maxitems", -1);
+        long output = getIntParameter("maxoutput", -1);
+        long memory = getIntParameter("maxmemory", -1);
+        return limits.restrict(new ResourceLimits(items, output * 1024,
+                                                  memory * 1048576L));
+    }
+
+    /**
+     * Returns the policy of flushing of results: the configured policy,
+     * modified by parameters flushitems, flushoutput (Kb) and flushinterval
+     * (ms).
+     */
+    protected FlushPolicy getFlushPolicy()
+        throws RequestException
+    {
+        long output = getIntParameter("flushoutput", -1);
+        return requireQizxDriver().getFlushPolicy().override(
+                   getIntParameter("flushitems", -1),
+                   (output < 0)? -1 : output * 1024,
+                   getIntParameter("flushinterval", -1));
+    }
+
+    /**
+     * Called after an item of the result of the current query has been
+     * serialized.
+     * @return true if the output should be flushed, according to the
+     * flush policy
+     */
+    protected boolean flushDue()
+    {
+        return flushMonitor != null && flushMonitor.itemDone();
+    }
+
+    /**
+     * Counts an item of the result of the current query, checking the limit
+     * on result items.
+     * @throws EvaluationException if a resource limit is exceeded
+     */
+    protected void countItem()
+        throws EvaluationException
+    {
+        if(currentQuery != null)
+            currentQuery.countItem();
+    }
+
+    /**
+     * Called on an error during the evaluation or serialization of a query:
+     * throws the appropriate error if the query has been cancelled, or
+     * stopped by a resource limit.
+     */
+    protected void checkStopped(QueryRegistry.RunningQuery running,
+                                Exception e)
+        throws RequestException
+    {
+        if(running == null)
+            return;
+        String exceeded = running.getExceededLimit();
+        if(exceeded != null)
+            throw new RequestException(RESOURCE_LIMIT, exceeded);
+        if(running.isCancelled())
+            throw new RequestException(CANCELLED, e);
+    }
+
+    /**
+     * Starts collecting information for the slow-query log and the query
+     * statistics, if enabled. Both are updated by {@link #cleanup()}.
+     * @param query text of the query or path of the service
+     * @param normalize true if query is a text whose literals are ignored
+     * by statistics
+     */
+    protected void startQueryLog(String query, boolean normalize)
+    {
+        SlowQueryLog log = (driver == null)? null : driver.getSlowQueryLog();
+        if(log != null)
+            slowEntry = log.start(getName(), getUserName(), query);
+        QueryStats stats = (driver == null)? null : driver.getQueryStats();
+        if(stats != null)
+            statSample = stats.start(getName(), query, normalize);
+    }
+
+    /**
+     * Records the number of items returned by the query.
+     */
+    protected void setItemCount(long count)
+    {
+        if(slowEntry != null)
+            slowEntry.setItemCount(count);
+        if(statSample != null)
+            statSample.setItemCount(count);
+    }
+
+    /**
+     * Marks the end of a phase of the request in the slow-query log.
+     */
+    protected void slowLogPhase(String name)
+    {
+        if(slowEntry != null)
+            slowEntry.phase(name);
+    }
+
+    private void endQueryLog()
+    {
+        if(tracedExpression != null) {  // can be cached
+            tracedExpression.setCompilationTrace(null);
+            tracedExpression = null;
+        }
+        SlowQueryLog log = (driver == null)? null : driver.getSlowQueryLog();
+        if(slowEntry != null && log != null)
+            log.finish(slowEntry, (clientOutput == null)? -1
+                                      : clientOutput.getByteCount());
+        slowEntry = null;
+        QueryStats stats = (driver == null)? null : driver.getQueryStats();
+        if(statSample != null && stats != null)
+            stats.finish(statSample, TIMEOUT.equals(statSample.error));
+        statSample = null;
+    }
+
+    /**
+     * Replaces the output of the response by a stream detecting the
+     * disconnection of the client: queries registered afterwards by
+     * {@link #startQuery} are then cancelled if the client disconnects.
+     * Must be called before output is used.
+     */
+    protected void watchClient()
+    {
+        if(clientOutput == null)
+            output = clientOutput = new ClientOutput(output);
+    }
+
+    protected void endQuery(QueryRegistry.RunningQuery running)
+    {
+        if(running == currentQuery) {
+            currentQuery = null;
+            flushMonitor = null;
+            if(clientOutput != null)
+                clientOutput.setProbing(false);
+        }
+        if(running != null && driver != null)
+            driver.getQueryRegistry().unregister(running);
+    }
+
     public boolean isInRole(String roleName, User user)
     {
         //  user param is supposed to correpond to request user
@@ -212,11 +516,11 @@ public abstract class QizxRequestBase extends Request
         return member;
     }
     
-    protected HashSet parseNameList(String names)
+    protected HashSet<String> parseNameList(String names)
     {
         if(names == null)
             return null;
-        HashSet set = new HashSet();
+        HashSet<String> set = new HashSet<String>();
         String[] nm = names.split("[ \t\n,;:]+");
         for (int i = 0; i < nm.length; i++)
             set.add(nm[i]);
@@ -248,4 +552,112 @@ public abstract class QizxRequestBase extends Request
             throw new RequestException(SERVER, e);
         }
     }
+
+    /**
+     * Binds a variable of an expression to the value of a request parameter
+     * or part, converted to the type of the variable. Does nothing if there
+     * is no such parameter.
+     * @return true if the variable has been bound
+     */
+    protected boolean bindParameter(Expression expr, QName name, ItemType type,
+                                    String paramName)
+        throws QizxException, IOException, ServletException, SAXException
+    {
+        if(type.getNodeKind() != ItemType.ATOMIC_TYPE) {
+            InputSource data = openXMLSource(paramName);
+            if(data == null)
+                return false;
+            Node node = DocumentParser.parse(data);
+            if(type.getNodeKind() == Node.ELEMENT)   // must be document
+                node = node.getFirstChild(); // fails if leading PI comment
+            expr.bindVariable(name, node);
+            logVariable(name, type, -1);
+            return true;
+        }
+        Part part = getPart(paramName);
+        if(part != null) {
+            if("hexBinary".equals(type.getShortName())
+                 || "base64Binary".equals(type.getShortName())) {
+                InputStream in = part.getInputStream();
+                byte[] data = FileUtil.loadBytes(in);
+                in.close();
+                expr.bindVariable(name, data, type);
+                logVariable(name, type, data.length);
+            }
+            else if(!"anyType".equals(type.getShortName())) {
+                String charset = getTextPartCharset(part);
+                
+                InputStream in = part.getInputStream();
+                String value = FileUtil.loadString(in, charset);
+                in.close();
+                expr.bindVariable(name, value, type);
+                logVariable(name, type, value.length());
+            }
+            else    // do nothing:
+                return false; // TODO lazy access through specialized XQ ext functions
+            return true;
+        }
+        
+        String value = getParameter(paramName);            
+        if(value == null)
+            return false;
+        expr.bindVariable(name, value, type);
+        logVariable(name, type, value.length());
+        return true;
+    }
+
+    /**
+     * Binds the external variables of an expression to request parameters:
+     * variable $name to parameter '$name', converted to the declared type
+     * (see {@link #bindParameter}).
+     * @throws RequestException if a parameter '$name' has no matching
+     * variable, or if an external variable without default value has no
+     * parameter: an expression reused across requests would otherwise keep
+     * the value bound by a previous request
+     */
+    protected void bindVariables(Expression expr)
+        throws QizxException, IOException, ServletException, SAXException
+    {
+        XQueryContext xctx = expr.getContext();
+        HashMap<String, QName> variables = new HashMap<String, QName>();
+        for(QName varName : xctx.getVariableNames())
+            if(varName.getNamespaceURI().length() == 0)
+                variables.put(VARIABLE_PREFIX + varName.getLocalPart(), varName);
+
+        for(Enumeration<?> params = request.getParameterNames();
+            params.hasMoreElements(); ) {
+            String param = (String) params.nextElement();
+            if(param.startsWith(VARIABLE_PREFIX) && !variables.containsKey(param))
+                throw new RequestException(BAD_REQUEST,
+                                           "no variable declared for " + param);
+        }
+        HashSet<String> required = new HashSet<String>();
+        Matcher m = REQUIRED_VARIABLE.matcher(expr.getSource());
+        while(m.find())
+            required.add(VARIABLE_PREFIX + m.group(1));
+        for(String param : variables.keySet()) {
+            QName varName = variables.get(param);
+            SequenceType type = xctx.getVariableType(varName);
+            if(!bindParameter(expr, varName, type.getItemType(), param)
+               && required.contains(param))
+                throw new RequestException(BAD_REQUEST,
+                                   "no value for external variable " + param);
+        }
+    }
+
+    // in the slow-query log, without the value
+    private void logVariable(QName name, ItemType type, long size)
+    {
+        if(slowEntry != null)
+            slowEntry.addVariable(name.getLocalPart(), type.toString(), size);
+    }
+
+    private String getTextPartCharset(Part part)
+    {
+        String contentType = part.getContentType();
+        String PLAIN_TEXT_TYPE = "text/plain; charset=";
+        if(contentType.startsWith(PLAIN_TEXT_TYPE))
+            return contentType.substring(PLAIN_TEXT_TYPE.length());
+        return "UTF-8";
+    }
 }
@@ -0,0 +1,267 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Finds which Library members the result of a query depends on, by a
+ * lexical analysis of the query text.
+ * <p>
+ * The dependencies are the literal arguments of functions doc() and
+ * collection(). If a query uses a path from the implicit collection (like
+ * //item) or xlib: functions, it depends on the whole Library. A query is
+ * not cacheable if its result depends on the current time, on documents
+ * outside the Library (or a computed argument of doc() or collection()), or
+ * on Java or dynamic evaluation functions. Direct XML constructors and
+ * pragmas are not analyzed: queries using them are not cacheable.
+ * <p>
+ * Only functions whose body is in the query text can be analyzed: a query
+ * importing a module, declaring an external function or a default function
+ * namespace, or calling a function whose prefix is neither predefined nor
+ * used by a function declared in the query, is not cacheable.
+ */
+public class QueryDependencies
+{
+    public static final String ROOT = "/";
+
+    // functions giving a different result at each evaluation
+    private static final String[] VOLATILE_FUNCTIONS = {
+        "current-dateTime", "current-date", "current-time", "implicit-timezone",
+        "unparsed-text", "unparsed-text-available", "eval"
+    };
+    private static final HashSet<String> volatileFunctions =
+        new HashSet<String>(Arrays.asList(VOLATILE_FUNCTIONS));
+
+    // tokens after which '/' starts a path from the implicit collection
+    private static final String[] EXPRESSION_KEYWORDS = {
+        "return", "in", "satisfies", "then", "else", "and", "or", "where",
+        "by", "at", "to", "div", "idiv", "mod", "union", "intersect", "except",
+        "eq", "ne", "lt", "le", "gt", "ge", "is"
+    };
+    private static final HashSet<String> expressionKeywords =
+        new HashSet<String>(Arrays.asList(EXPRESSION_KEYWORDS));
+
+    // prefixes of built-in functions
+    private static final String[] BUILTIN_PREFIXES = {
+        "fn", "xs", "xdt", "local", "xlib"
+    };
+
+    private QueryDependencies()
+    {
+    }
+
+    /**
+     * Returns the paths of the Library members (documents or Collections)
+     * whose modification can change the result of a query.
+     * @return "/" alone if the query depends on the whole Library; null if
+     * the result of the query must not be cached.
+     */
+    public static String[] getRoots(String query)
+    {
+        ArrayList<String> tokens = tokenize(query);
+        if(tokens == null)
+            return null;
+        HashSet<String> prefixes = functionPrefixes(tokens);
+        if(prefixes == null)
+            return null;
+        ArrayList<String> roots = new ArrayList<String>();
+        boolean whole = false;
+        for(int t = 0, size = tokens.size(); t < size; t++) {
+            String token = tokens.get(t);
+            String next = (t + 1 < size)? tokens.get(t + 1) : "";
+            String prev = (t > 0)? tokens.get(t - 1) : null;
+            if(token.startsWith("\"")) {   // string literal
+                if(token.startsWith("\"java:"))
+                    return null;    // namespace of Java binding
+                continue;
+            }
+            String local = token.substring(token.indexOf(':') + 1);
+            boolean call = next.equals("(");
+
+            if(call && volatileFunctions.contains(local))
+                return null;
+            int colon = token.indexOf(':');
+            if(call && colon > 0
+               && !prefixes.contains(token.substring(0, colon)))
+                return null;    // function not defined in the query
+            if(call && (local.equals("doc") || local.equals("collection")
+                        || local.equals("doc-available"))) {
+                String arg = (t + 2 < size)? tokens.get(t + 2) : "";
+                String after = (t + 3 < size)? tokens.get(t + 3) : "";
+                if(arg.startsWith("\"") && after.equals(")")) {
+                    String path = arg.substring(1);
+                    if(!path.startsWith(ROOT))
+                        return null;    // URL or file outside the Library
+                    roots.add(path);
+                }
+                else if(arg.equals(")"))
+                    whole = true;   // default collection
+                else
+                    return null;    // computed: may be outside the Library
+            }
+            else if(token.startsWith("xlib:"))
+                whole = true;
+            else if((token.equals("/") || token.equals("//"))
+                    && (prev == null || isExpressionStart(prev)))
+                whole = true;
+        }
+        if(whole || roots.isEmpty())
+            return new String[] { ROOT };
+        return roots.toArray(new String[roots.size()]);
+    }
+
+    /**
+     * Returns true if a cached result depending on the given roots is
+     * invalidated by a change of member changedPath.
+     */
+    public static boolean isAffected(String[] roots, String changedPath)
+    {
+        for(String root : roots)
+            if(LibraryChangeMonitor.isAffected(root, changedPath)
+               || LibraryChangeMonitor.isAffected(changedPath, root))
+                return true;
+        return false;
+    }
+
+    // Prefixes of the functions whose body is visible: built-in functions and
+    // functions declared in the query. Returns null if the query can use
+    // functions defined elsewhere (module, external function, default
+    // function namespace).
+    private static HashSet<String> functionPrefixes(ArrayList<String> tokens)
+    {
+        HashSet<String> prefixes =
+            new HashSet<String>(Arrays.asList(BUILTIN_PREFIXES));
+        for(int t = 0, size = tokens.size(); t + 2 < size; t++) {
+            String token = tokens.get(t);
+            String next = tokens.get(t + 1);
+            if(token.equals("import") && next.equals("module"))
+                return null;
+            if(token.equals("declare") && next.equals("default")
+               && tokens.get(t + 2).equals("function"))
+                return null;
+            if(!token.equals("function") || t == 0
+               || !tokens.get(t - 1).equals("declare")
+                  && !tokens.get(t - 1).equals("updating"))
+                continue;
+            // function declaration: external if no body before ';'
+            for(int b = t + 1; ; b++) {
+                if(b >= size || tokens.get(b).equals(";"))
+                    return null;
+                if(tokens.get(b).equals("{"))
+                    break;
+            }
+            int colon = next.indexOf(':');
+            if(colon > 0)
+                prefixes.add(next.substring(0, colon));
+        }
+        return prefixes;
+    }
+
+    private static boolean isExpressionStart(String prev)
+    {
+        if(prev.startsWith("\"") || prev.startsWith("$"))
+            return false;
+        char c = prev.charAt(0);
+        if(Character.isLetter(c) || c == '_')
+            return expressionKeywords.contains(prev);
+        if(Character.isDigit(c))
+            return false;
+        return !prev.equals(")") && !prev.equals("]") && !prev.equals("}")
+               && !prev.equals(".") && !prev.equals("*")
+               && !prev.equals("..");
+    }
+
+    // Splits into names (with prefix), $variables, numbers, string literals
+    // (a double quote followed by the unescaped value), and punctuation.
+    // Returns null if the query cannot be analyzed.
+    private static ArrayList<String> tokenize(String query)
+    {
+        ArrayList<String> tokens = new ArrayList<String>();
+        int length = query.length();
+        for(int pos = 0; pos < length; ) {
+            char c = query.charAt(pos);
+            int start = pos;
+            if(Character.isWhitespace(c))
+                ++ pos;
+            else if(query.startsWith("(:", pos)) {
+                int level = 0;
+                for(;;) {
+                    if(pos + 1 >= length)
+                        return null;
+                    if(query.startsWith("(:", pos)) {
+                        ++ level;
+                        pos += 2;
+                    }
+                    else if(query.startsWith(":)", pos)) {
+                        pos += 2;
+                        if(--level == 0)
+                            break;
+                    }
+                    else
+                        ++ pos;
+                }
+            }
+            else if(c == '"' || c == '\'') {
+                StringBuilder value = new StringBuilder("\"");
+                for(++pos; ; ++pos) {
+                    if(pos >= length)
+                        return null;
+                    char q = query.charAt(pos);
+                    if(q == c) {
+                        if(pos + 1 < length && query.charAt(pos + 1) == c) {
+                            value.append(c);
+                            ++ pos;
+                            continue;
+                        }
+                        ++ pos;
+                        break;
+                    }
+                    value.append(q);
+                }
+                tokens.add(value.toString());
+            }
+            else if(Character.isLetter(c) || c == '_' || c == '$') {
+                for(++pos; pos < length; ++pos) {
+                    char n = query.charAt(pos);
+                    if(!Character.isLetterOrDigit(n) && n != '_' && n != '-'
+                       && n != '.' && !(n == ':' && pos + 1 < length
+                                        && query.charAt(pos + 1) != '='
+                                        && query.charAt(pos + 1) != ':'))
+                        break;
+                }
+                tokens.add(query.substring(start, pos));
+            }
+            else if(Character.isDigit(c)) {
+                while(pos < length && (Character.isLetterOrDigit(query.charAt(pos))
+                                       || query.charAt(pos) == '.'))
+                    ++ pos;
+                tokens.add(query.substring(start, pos));
+            }
+            else if(c == '<' && pos + 1 < length
+                    && (Character.isLetter(query.charAt(pos + 1))
+                        || "_!?/".indexOf(query.charAt(pos + 1)) >= 0))
+                return null;    // direct constructor: content is not code
+            else if(query.startsWith("(#", pos))
+                return null;    // pragma
+            else if(query.startsWith("//", pos) || query.startsWith("..", pos)
+                    || query.startsWith(":=", pos)) {
+                pos += 2;
+                tokens.add(query.substring(start, pos));
+            }
+            else {
+                ++ pos;
+                tokens.add(String.valueOf(c));
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces string and number literals of a XQuery query by external
+ * variables, so that queries differing only by literal values have the same
+ * text, and can share a compiled expression.
+ * <p>
+ * The transformation is conservative: queries with constructs where a
+ * literal cannot be replaced by a variable, or that are difficult to analyze
+ * without a full parser (direct XML constructors, pragmas, full-text
+ * expressions), are left unchanged. Literals in the prolog, collation URIs,
+ * processing-instruction tests and positional predicates like [1] are kept.
+ */
+public class QueryNormalizer
+{
+    /** Prefix of the generated variable names. */
+    public static final String VARIABLE_PREFIX = "_lit";
+
+    private static final String STRING = "string";
+    private static final String INTEGER = "integer";
+    private static final String DECIMAL = "decimal";
+    private static final String DOUBLE = "double";
+
+    /**
+     * A literal replaced by a variable.
+     */
+    public static class Literal
+    {
+        int start, end;     // in original query
+        private String name;
+        private String value;
+        private String type;
+        boolean kept;
+
+        /** Local name of the variable. */
+        public String getName()
+        {
+            return name;
+        }
+
+        /** Value of the literal, unescaped. */
+        public String getValue()
+        {
+            return value;
+        }
+
+        /** Name of the XML Schema type: string, integer, decimal or double. */
+        public String getType()
+        {
+            return type;
+        }
+    }
+
+    private String query;
+    private int pos;
+    private String text;
+    private ArrayList<Literal> literals = new ArrayList<Literal>();
+
+    private QueryNormalizer(String query)
+    {
+        this.query = query;
+    }
+
+    /**
+     * Normalizes a query.
+     * @return null if the query has no replaceable literal or cannot be
+     * safely analyzed.
+     */
+    public static QueryNormalizer normalize(String query)
+    {
+        QueryNormalizer norm = new QueryNormalizer(query);
+        return norm.analyze()? norm : null;
+    }
+
+    /**
+     * Returns the normalized query: variable declarations are added at the
+     * end of the prolog.
+     */
+    public String getText()
+    {
+        return text;
+    }
+
+    /**
+     * Returns the replaced literals, in order of appearance.
+     */
+    public List<Literal> getLiterals()
+    {
+        return literals;
+    }
+
+    private boolean analyze()
+    {
+        if(query.indexOf(VARIABLE_PREFIX) >= 0)
+            return false;   // possible clash with generated names
+        int depth = 0;
+        int prologEnd = 0;
+        String statementStart = null;   // first token of top-level statement
+        String prev = null, prev2 = null;
+        Literal lastNumber = null;      // to detect [N]
+
+        for(int length = query.length(); ; ) {
+            skipSpaceAndComments();
+            if(pos < 0)
+                return false;   // unterminated comment
+            if(pos >= length)
+                break;
+            int start = pos;
+            char c = query.charAt(pos);
+            String token;
+            Literal literal = null;
+
+            if(c == '"' || c == '\'') {
+                literal = scanString(c);
+                if(literal == null)
+                    return false;
+                token = "\"";
+            }
+            else if(isDigit(c) || (c == '.' && pos + 1 < length
+                                   && isDigit(query.charAt(pos + 1)))) {
+                literal = scanNumber();
+                if(literal == null)
+                    return false;
+                token = "0";
+            }
+            else if(isNameStart(c)) {
+                while(pos < length && isNameChar(query.charAt(pos)))
+                    ++ pos;
+                token = query.substring(start, pos);
+                if(token.equals("ftcontains")
+                   || token.equals("text") && "contains".equals(prev))
+                    return false;   // full-text: literals are not expressions
+            }
+            else if(c == '<') {
+                char next = (pos + 1 < length)? query.charAt(pos + 1) : ' ';
+                if(isNameStart(next) || next == '!' || next == '?' || next == '/')
+                    return false;   // direct constructor
+                ++ pos;
+                token = "<";
+            }
+            else if(c == '(' && pos + 1 < length && query.charAt(pos + 1) == '#')
+                return false;       // pragma
+            else if(c == '&')
+                return false;
+            else {
+                ++ pos;
+                token = String.valueOf(c);
+                if(c == '(' || c == '[' || c == '{')
+                    ++ depth;
+                else if(c == ')' || c == ']' || c == '}')
+                    -- depth;
+                else if(c == ';' && depth == 0) {
+                    if(!"declare".equals(statementStart)
+                       && !"import".equals(statementStart)
+                       && !"xquery".equals(statementStart))
+                        return false;   // sequence of statements
+                    prologEnd = pos;
+                    statementStart = null;
+                    prev = prev2 = null;
+                    continue;
+                }
+            }
+
+            if(statementStart == null && depth == 0)
+                statementStart = token;
+            if(lastNumber != null && token.equals("]"))
+                lastNumber.kept = true;     // positional predicate
+            lastNumber = null;
+            if(literal != null) {
+                literal.start = start;
+                literal.end = pos;
+                if("collation".equals(prev)
+                   || "(".equals(prev) && "processing-instruction".equals(prev2))
+                    literal.kept = true;
+                if(literal.type != STRING && "[".equals(prev))
+                    lastNumber = literal;
+                literals.add(literal);
+            }
+            prev2 = prev;
+            prev = token;
+        }
+
+        // literals in the prolog are kept:
+        ArrayList<Literal> replaced = new ArrayList<Literal>();
+        for(Literal lit : literals)
+            if(!lit.kept && lit.start >= prologEnd)
+                replaced.add(lit);
+        literals = replaced;
+        if(literals.isEmpty())
+            return false;
+
+        StringBuilder decl = new StringBuilder();
+        StringBuilder body = new StringBuilder();
+        int last = prologEnd;
+        for(int i = 0; i < literals.size(); i++) {
+            Literal lit = literals.get(i);
+            lit.name = VARIABLE_PREFIX + (i + 1);
+            decl.append("declare variable $").append(lit.name)
+                .append(" as xs:").append(lit.type).append(" external;\n");
+            body.append(query, last, lit.start).append('$').append(lit.name);
+            last = lit.end;
+        }
+        body.append(query.substring(last));
+        String prolog = query.substring(0, prologEnd);
+        text = prolog + (prologEnd > 0? "\n" : "") + decl + body;
+        return true;
+    }
+
+    private void skipSpaceAndComments()
+    {
+        int length = query.length();
+        while(pos < length) {
+            char c = query.charAt(pos);
+            if(Character.isWhitespace(c))
+                ++ pos;
+            else if(c == '(' && pos + 1 < length && query.charAt(pos + 1) == ':') {
+                // comments can be nested
+                int level = 0;
+                for(;;) {
+                    if(pos + 1 >= length) {
+                        pos = -1;
+                        return;
+                    }
+                    if(query.startsWith("(:", pos)) {
+                        ++ level;
+                        pos += 2;
+                    }
+                    else if(query.startsWith(":)", pos)) {
+                        pos += 2;
+                        if(--level == 0)
+                            break;
+                    }
+                    else
+                        ++ pos;
+                }
+            }
+            else
+                break;
+        }
+    }
+
+    // returns null if invalid or with unsupported references
+    private Literal scanString(char delimiter)
+    {
+        StringBuilder value = new StringBuilder();
+        int length = query.length();
+        for(++pos; ; ++pos) {
+            if(pos >= length)
+                return null;
+            char c = query.charAt(pos);
+            if(c == delimiter) {
+                if(pos + 1 < length && query.charAt(pos + 1) == delimiter) {
+                    value.append(c);
+                    ++ pos;
+                    continue;
+                }
+                ++ pos;
+                break;
+            }
+            if(c == '&') {
+                int semi = query.indexOf(';', pos);
+                if(semi < 0)
+                    return null;
+                String ref = query.substring(pos + 1, semi);
+                if(ref.equals("lt"))
+                    value.append('<');
+                else if(ref.equals("gt"))
+                    value.append('>');
+                else if(ref.equals("amp"))
+                    value.append('&');
+                else if(ref.equals("quot"))
+                    value.append('"');
+                else if(ref.equals("apos"))
+                    value.append('\'');
+                else if(ref.startsWith("#")) {
+                    try {
+                        int code = ref.startsWith("#x")?
+                                Integer.parseInt(ref.substring(2), 16)
+                                : Integer.parseInt(ref.substring(1));
+                        value.appendCodePoint(code);
+                    }
+                    catch (IllegalArgumentException e) {
+                        return null;
+                    }
+                }
+                else
+                    return null;
+                pos = semi;
+                continue;
+            }
+            value.append(c);
+        }
+        Literal lit = new Literal();
+        lit.value = value.toString();
+        lit.type = STRING;
+        return lit;
+    }
+
+    private Literal scanNumber()
+    {
+        int start = pos, length = query.length();
+        String type = INTEGER;
+        while(pos < length && isDigit(query.charAt(pos)))
+            ++ pos;
+        if(pos < length && query.charAt(pos) == '.') {
+            type = DECIMAL;
+            ++ pos;
+            while(pos < length && isDigit(query.charAt(pos)))
+                ++ pos;
+        }
+        if(pos < length && (query.charAt(pos) == 'e' || query.charAt(pos) == 'E')) {
+            type = DOUBLE;
+            ++ pos;
+            if(pos < length && (query.charAt(pos) == '+' || query.charAt(pos) == '-'))
+                ++ pos;
+            int exp = pos;
+            while(pos < length && isDigit(query.charAt(pos)))
+                ++ pos;
+            if(pos == exp)
+                return null;
+        }
+        if(pos < length && isNameChar(query.charAt(pos)))
+            return null;    // not a valid token
+        Literal lit = new Literal();
+        lit.value = query.substring(start, pos);
+        lit.type = type;
+        return lit;
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isNameStart(char c)
+    {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    // includes ':' for QNames
+    private static boolean isNameChar(char c)
+    {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.'
+               || c == ':';
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.EvaluationException;
+import com.qizx.api.Expression;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Registry of the queries currently evaluated by requests (eval, XQuery
+ * Services...), so that they can be listed and cancelled.
+ * <p>
+ * A query is registered just before its evaluation and unregistered when
+ * its results have been sent. Cancelling a query calls
+ * {@link Expression#cancelEvaluation()}: the request then fails with the
+ * error code 'Cancelled'.
+ * <p>
+ * A watchdog periodically probes the clients of the running queries (see
+ * {@link ClientOutput}), so that evaluation stops soon after a client has
+ * disconnected, and checks the memory allocated by queries having
+ * {@link ResourceLimits}. A query exceeding a limit is cancelled: the
+ * request then fails with the error code 'ResourceLimit'.
+ */
+public class QueryRegistry
+{
+    private LinkedHashMap<String, RunningQuery> queries =
+        new LinkedHashMap<String, RunningQuery>();
+    private long idCounter;
+    private Timer watchdog;
+
+    // null if allocated memory cannot be measured
+    private static com.sun.management.ThreadMXBean threadBean =
+        initThreadBean();
+
+    /**
+     * A query being evaluated.
+     */
+    public static class RunningQuery
+    {
+        private String id;
+        private String operation;
+        private String user;
+        private String library;
+        private String queryHash;
+        private long startTime;
+        private Expression expression;
+        private ClientOutput client;
+        private volatile String cancelledBy;
+        private ResourceLimits limits = ResourceLimits.NONE;
+        private long threadId;
+        private long allocationBase;
+        private long itemCount;
+        private volatile String exceededLimit;
+
+        public String getId()
+        {
+            return id;
+        }
+
+        /**
+         * Name of the request: eval, xqs...
+         */
+        public String getOperation()
+        {
+            return operation;
+        }
+
+        public String getUser()
+        {
+            return user;
+        }
+
+        public String getLibrary()
+        {
+            return library;
+        }
+
+        /**
+         * Hash of the query text, identifying the query without showing it.
+         */
+        public String getQueryHash()
+        {
+            return queryHash;
+        }
+
+        public long getStartTime()
+        {
+            return startTime;
+        }
+
+        public Expression getExpression()
+        {
+            return expression;
+        }
+
+        /**
+         * True if the evaluation has been cancelled through the registry.
+         */
+        public boolean isCancelled()
+        {
+            return cancelledBy != null;
+        }
+
+        /**
+         * User who cancelled the query, or null.
+         */
+        public String getCancelledBy()
+        {
+            return cancelledBy;
+        }
+
+        public ResourceLimits getLimits()
+        {
+            return limits;
+        }
+
+        /**
+         * Returns a description of the resource limit exceeded by the
+         * query, or null.
+         */
+        public String getExceededLimit()
+        {
+            if(exceededLimit == null && client != null)
+                return client.getExceededLimit();
+            return exceededLimit;
+        }
+
+        /**
+         * Counts a result item, and stops the query if it exceeds the limit
+         * on items. Also checks the allocated memory from time to time.
+         * @throws EvaluationException if a limit is exceeded
+         */
+        public void countItem()
+            throws EvaluationException
+        {
+            ++ itemCount;
+            if(limits.getMaxItems() > 0 && itemCount > limits.getMaxItems())
+                exceed("result exceeds " + limits.getMaxItems() + " items");
+            else if((itemCount & 0x3f) == 0)
+                checkMemory();
+            if(exceededLimit != null)
+                throw new EvaluationException(exceededLimit);
+        }
+
+        /**
+         * Number of bytes allocated by the evaluating thread since the
+         * query has been limited, or -1 if not measured.
+         */
+        public long getAllocatedBytes()
+        {
+            if(threadBean == null || limits.getMaxMemory() <= 0)
+                return -1;
+            long allocated = threadBean.getThreadAllocatedBytes(threadId);
+            return (allocated < 0)? -1 : allocated - allocationBase;
+        }
+
+        void checkMemory()
+        {
+            long allocated = getAllocatedBytes();
+            if(allocated > limits.getMaxMemory())
+                exceed("evaluation allocates more than "
+                       + limits.getMaxMemory() + " bytes");
+        }
+
+        void exceed(String limit)
+        {
+            if(exceededLimit == null)
+                exceededLimit = limit;
+            expression.cancelEvaluation();
+        }
+    }
+
+    /**
+     * @param checkInterval interval in milliseconds between two probes of
+     * clients and checks of allocated memory, 0 to disable the watchdog
+     */
+    public QueryRegistry(long checkInterval)
+    {
+        if(checkInterval <= 0)
+            return;
+        watchdog = new Timer("qizx-client-watchdog", true);
+        watchdog.schedule(new TimerTask() {
+            public void run() {
+                probeClients();
+                checkLimits();
+            }
+        }, checkInterval, checkInterval);
+    }
+
+    /**
+     * Registers a query about to be evaluated.
+     * @param operation name of the request
+     * @param user can be null if no authentication
+     * @param library name of the Library, or null
+     * @param query text of the query
+     */
+    public synchronized RunningQuery register(String operation, String user,
+                                              String library, String query,
+                                              Expression expression)
+    {
+        RunningQuery q = new RunningQuery();
+        q.id = Long.toString(++idCounter);
+        q.operation = operation;
+        q.user = user;
+        q.library = library;
+        q.queryHash = hash(query);
+        q.startTime = System.currentTimeMillis();
+        q.expression = expression;
+        queries.put(q.id, q);
+        return q;
+    }
+
+    /**
+     * Removes a query when its evaluation is finished.
+     */
+    public synchronized void unregister(RunningQuery query)
+    {
+        if(query == null)
+            return;
+        queries.remove(query.id);
+        if(query.client != null)
+            query.client.detach(query.expression);
+    }
+
+    /**
+     * Cancels the evaluation of a query if its client disconnects.
+     */
+    public synchronized void watch(RunningQuery query, ClientOutput client)
+    {
+        query.client = client;
+        client.attach(query.expression);
+    }
+
+    /**
+     * Applies resource limits to a query. The query must be evaluated by the
+     * current thread, where its allocated memory is measured.
+     */
+    public void limit(RunningQuery query, ResourceLimits limits)
+    {
+        query.limits = limits;
+        if(limits.getMaxBytes() > 0 && query.client != null)
+            query.client.setByteLimit(limits.getMaxBytes());
+        if(limits.getMaxMemory() > 0 && threadBean != null) {
+            query.threadId = Thread.currentThread().getId();
+            query.allocationBase =
+                threadBean.getThreadAllocatedBytes(query.threadId);
+        }
+    }
+
+    /**
+     * Returns a running query, or null if it does not exist or is finished.
+     */
+    public synchronized RunningQuery get(String id)
+    {
+        return queries.get(id);
+    }
+
+    /**
+     * Returns the running queries, in order of start time.
+     * @param user if not null, only queries of this user
+     */
+    public synchronized List<RunningQuery> list(String user)
+    {
+        ArrayList<RunningQuery> list = new ArrayList<RunningQuery>();
+        for(RunningQuery q : queries.values())
+            if(user == null || user.equals(q.user))
+                list.add(q);
+        return list;
+    }
+
+    /**
+     * Cancels the evaluation of a query.
+     * @param by name of the user cancelling the query
+     */
+    public void cancel(RunningQuery query, String by)
+    {
+        query.cancelledBy = (by == null)? "" : by;
+        query.expression.cancelEvaluation();
+    }
+
+    public synchronized int size()
+    {
+        return queries.size();
+    }
+
+    /**
+     * Stops the watchdog.
+     */
+    public void shutdown()
+    {
+        if(watchdog != null)
+            watchdog.cancel();
+    }
+
+    private void probeClients()
+    {
+        ArrayList<ClientOutput> clients = new ArrayList<ClientOutput>();
+        synchronized (this) {
+            for(RunningQuery q : queries.values())
+                if(q.client != null && !clients.contains(q.client))
+                    clients.add(q.client);
+        }
+        // outside the lock: a probe can block on a slow client
+        for(ClientOutput client : clients)
+            client.probe();
+    }
+
+    private void checkLimits()
+    {
+        ArrayList<RunningQuery> limited = new ArrayList<RunningQuery>();
+        synchronized (this) {
+            for(RunningQuery q : queries.values())
+                if(q.limits.getMaxMemory() > 0)
+                    limited.add(q);
+        }
+        for(RunningQuery q : limited)
+            q.checkMemory();
+    }
+
+    private static com.sun.management.ThreadMXBean initThreadBean()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean sunBean =
+            (com.sun.management.ThreadMXBean) bean;
+        try {
+            if(!sunBean.isThreadAllocatedMemorySupported())
+                return null;
+            if(!sunBean.isThreadAllocatedMemoryEnabled())
+                sunBean.setThreadAllocatedMemoryEnabled(true);
+            return sunBean;
+        }
+        catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hash of a query text: 16 hex digits of its SHA-1 digest.
+     */
+    public static String hash(String query)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(query.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(16);
+            for(int i = 0; i < 8; i++) {
+                hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(bytes[i] & 0xf, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(query.hashCode());
+        }
+        catch (UnsupportedEncodingException e) {
+            return Integer.toHexString(query.hashCode());
+        }
+    }
+}
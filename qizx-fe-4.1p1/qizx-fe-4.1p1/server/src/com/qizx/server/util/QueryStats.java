@@ -0,0 +1,297 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics of queries aggregated per fingerprint: the hash of the
+ * operation and of the query text where literals are replaced by variables
+ * (see {@link QueryNormalizer}), or of the path of an XQuery Service.
+ * <p>
+ * The table is bounded: when full, the least recently executed fingerprint
+ * is dropped. The 95th percentile of the time is computed on the last
+ * {@link #RECENT_TIMES} executions of a fingerprint.
+ */
+public class QueryStats
+{
+    public static final int RECENT_TIMES = 100;
+    private static final int MAX_TEXT = 2000;
+
+    private int maxSize;
+    private long evicted;
+    private long resetTime = System.currentTimeMillis();
+    private LinkedHashMap<String, Stat> stats;
+
+    /**
+     * Aggregated statistics of a fingerprint.
+     */
+    public static class Stat
+    {
+        private String fingerprint;
+        private String operation;
+        private String text;
+        private long calls;
+        private long totalTime;
+        private long maxTime;
+        private long compileTime;
+        private long items;
+        private long errors;
+        private long timeouts;
+        private long[] recentTimes = new long[RECENT_TIMES];
+
+        public String getFingerprint()
+        {
+            return fingerprint;
+        }
+
+        public String getOperation()
+        {
+            return operation;
+        }
+
+        /**
+         * Normalized text of the query (truncated) or path of the service.
+         */
+        public String getText()
+        {
+            return text;
+        }
+
+        public long getCalls()
+        {
+            return calls;
+        }
+
+        /**
+         * Total time of the requests in milliseconds.
+         */
+        public long getTotalTime()
+        {
+            return totalTime;
+        }
+
+        public long getMeanTime()
+        {
+            return (calls == 0)? 0 : totalTime / calls;
+        }
+
+        public long getMaxTime()
+        {
+            return maxTime;
+        }
+
+        /**
+         * 95th percentile of the time of the recent requests.
+         */
+        public long getP95Time()
+        {
+            int count = (int) Math.min(calls, RECENT_TIMES);
+            if(count == 0)
+                return 0;
+            long[] times = new long[count];
+            System.arraycopy(recentTimes, 0, times, 0, count);
+            Arrays.sort(times);
+            return times[(int) Math.ceil(count * 0.95) - 1];
+        }
+
+        /**
+         * Total time spent before evaluation: compilation (or lookup of a
+         * cached expression) and binding of variables.
+         */
+        public long getCompileTime()
+        {
+            return compileTime;
+        }
+
+        /**
+         * Total number of items returned.
+         */
+        public long getItems()
+        {
+            return items;
+        }
+
+        public long getErrors()
+        {
+            return errors;
+        }
+
+        public long getTimeouts()
+        {
+            return timeouts;
+        }
+
+        private Stat copy()
+        {
+            Stat s = new Stat();
+            s.fingerprint = fingerprint;
+            s.operation = operation;
+            s.text = text;
+            s.calls = calls;
+            s.totalTime = totalTime;
+            s.maxTime = maxTime;
+            s.compileTime = compileTime;
+            s.items = items;
+            s.errors = errors;
+            s.timeouts = timeouts;
+            s.recentTimes = recentTimes.clone();
+            return s;
+        }
+    }
+
+    /**
+     * Information about one execution, collected during a request.
+     */
+    public static class Sample
+    {
+        String operation;
+        String text;
+        long startTime;
+        long compileTime = -1;
+        long itemCount;
+        String error;
+
+        /**
+         * Marks the start of the evaluation.
+         */
+        public void evaluating()
+        {
+            if(compileTime < 0)
+                compileTime = System.currentTimeMillis() - startTime;
+        }
+
+        public void setItemCount(long itemCount)
+        {
+            this.itemCount = itemCount;
+        }
+
+        /**
+         * Records the error code of a failed request.
+         */
+        public void setError(String error)
+        {
+            this.error = error;
+        }
+    }
+
+    /**
+     * @param maxSize max number of fingerprints
+     */
+    public QueryStats(int maxSize)
+    {
+        this.maxSize = maxSize;
+        stats = new LinkedHashMap<String, Stat>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Stat> e) {
+                if(size() <= QueryStats.this.maxSize)
+                    return false;
+                ++ evicted;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Starts the information about a query execution.
+     * @param text text of the query or path of the service
+     * @param normalize true if text is a query whose literals are replaced
+     */
+    public Sample start(String operation, String text, boolean normalize)
+    {
+        Sample s = new Sample();
+        s.operation = operation;
+        s.text = text;
+        if(normalize) {
+            QueryNormalizer norm = QueryNormalizer.normalize(text);
+            if(norm != null)
+                s.text = norm.getText();
+        }
+        s.startTime = System.currentTimeMillis();
+        return s;
+    }
+
+    /**
+     * Ends a query execution and aggregates it.
+     * @param timeout true if the request failed by a time limit
+     */
+    public void finish(Sample sample, boolean timeout)
+    {
+        long time = System.currentTimeMillis() - sample.startTime;
+        String fingerprint = QueryRegistry.hash(sample.operation + "\u0000"
+                                                + sample.text);
+        synchronized (this) {
+            Stat s = stats.get(fingerprint);
+            if(s == null) {
+                s = new Stat();
+                s.fingerprint = fingerprint;
+                s.operation = sample.operation;
+                s.text = (sample.text.length() > MAX_TEXT)?
+                        sample.text.substring(0, MAX_TEXT) + "..." : sample.text;
+                stats.put(fingerprint, s);
+            }
+            s.recentTimes[(int) (s.calls % RECENT_TIMES)] = time;
+            ++ s.calls;
+            s.totalTime += time;
+            s.maxTime = Math.max(s.maxTime, time);
+            if(sample.compileTime > 0)
+                s.compileTime += sample.compileTime;
+            s.items += sample.itemCount;
+            if(timeout)
+                ++ s.timeouts;
+            else if(sample.error != null)
+                ++ s.errors;
+        }
+    }
+
+    /**
+     * Returns a copy of the statistics, in no specific order.
+     */
+    public synchronized List<Stat> list()
+    {
+        ArrayList<Stat> list = new ArrayList<Stat>(stats.size());
+        for(Stat s : stats.values())
+            list.add(s.copy());
+        return list;
+    }
+
+    /**
+     * Removes all statistics.
+     */
+    public synchronized void reset()
+    {
+        stats.clear();
+        evicted = 0;
+        resetTime = System.currentTimeMillis();
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Number of fingerprints dropped since the last reset.
+     */
+    public synchronized long getEvicted()
+    {
+        return evicted;
+    }
+
+    /**
+     * Time of start or of the last reset.
+     */
+    public synchronized long getResetTime()
+    {
+        return resetTime;
+    }
+}
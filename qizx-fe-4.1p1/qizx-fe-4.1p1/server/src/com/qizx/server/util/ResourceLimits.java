@@ -0,0 +1,98 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+/**
+ * Limits on the resources used by a query, besides time: number of result
+ * items, number of bytes sent, memory allocated by the evaluating thread.
+ * A value &lt;= 0 means no limit.
+ * <p>
+ * Limits are defined by the configuration (globally and per user role),
+ * can be replaced by an XQuery Service, and can be lowered by the
+ * parameters of a request.
+ */
+public class ResourceLimits
+{
+    public static final ResourceLimits NONE = new ResourceLimits(0, 0, 0);
+
+    private long maxItems;
+    private long maxBytes;
+    private long maxMemory;
+
+    /**
+     * @param maxItems max number of result items
+     * @param maxBytes max number of bytes sent in response
+     * @param maxMemory max number of bytes allocated by the thread
+     * evaluating the query (approximate)
+     */
+    public ResourceLimits(long maxItems, long maxBytes, long maxMemory)
+    {
+        this.maxItems = Math.max(maxItems, 0);
+        this.maxBytes = Math.max(maxBytes, 0);
+        this.maxMemory = Math.max(maxMemory, 0);
+    }
+
+    public long getMaxItems()
+    {
+        return maxItems;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getMaxMemory()
+    {
+        return maxMemory;
+    }
+
+    /**
+     * True if there is no limit at all.
+     */
+    public boolean isNone()
+    {
+        return maxItems == 0 && maxBytes == 0 && maxMemory == 0;
+    }
+
+    /**
+     * Returns limits where the defined values of other replace these.
+     */
+    public ResourceLimits override(ResourceLimits other)
+    {
+        return new ResourceLimits(
+                         (other.maxItems > 0)? other.maxItems : maxItems,
+                         (other.maxBytes > 0)? other.maxBytes : maxBytes,
+                         (other.maxMemory > 0)? other.maxMemory : maxMemory);
+    }
+
+    /**
+     * Returns limits where the defined values of other apply if lower than
+     * these: a request cannot raise the limits set by the server.
+     */
+    public ResourceLimits restrict(ResourceLimits other)
+    {
+        return new ResourceLimits(lower(maxItems, other.maxItems),
+                                  lower(maxBytes, other.maxBytes),
+                                  lower(maxMemory, other.maxMemory));
+    }
+
+    public String toString()
+    {
+        return "items " + maxItems + ", bytes " + maxBytes
+               + ", memory " + maxMemory;
+    }
+
+    private static long lower(long limit, long other)
+    {
+        if(other <= 0)
+            return limit;
+        return (limit <= 0)? other : Math.min(limit, other);
+    }
+}
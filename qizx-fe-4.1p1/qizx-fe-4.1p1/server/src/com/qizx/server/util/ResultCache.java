@@ -0,0 +1,333 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+
+/**
+ * Cache of serialized query results, for read-only queries of 'eval' and
+ * XQuery Services.
+ * <p>
+ * An entry is identified by a key built by the request from Library, user,
+ * query and its parameters. It records the Library members the query
+ * depends on (see {@link QueryDependencies}), and is invalidated when one
+ * of them is modified. Size is limited by the total number of bytes held.
+ * <p>
+ * An entry can also have a maximum age. After it, the entry is stale: it
+ * can still be returned during a grace period while one request refreshes
+ * it (see {@link #startRefresh}), then it expires.
+ */
+public class ResultCache
+    implements LibraryChangeMonitor.Listener
+{
+    private long maxBytes;
+    private int maxEntryBytes;
+    private long byteCount;
+    private long stamp;
+    private LinkedHashMap<String, Result> results =
+        new LinkedHashMap<String, Result>(16, 0.75f, true);
+
+    private long hits;
+    private long misses;
+    private long staleHits;
+
+    /**
+     * A cached result.
+     */
+    public static class Result
+    {
+        String library;
+        String[] roots;
+        private String contentType;
+        private byte[] data;
+        long created;
+        long maxAge = -1;
+        long staleTime;
+        boolean refreshing;
+
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        /**
+         * True if the maximum age of the result is passed: it should be
+         * refreshed.
+         */
+        public boolean isStale()
+        {
+            return maxAge >= 0
+                   && System.currentTimeMillis() - created > maxAge;
+        }
+
+        boolean isExpired(long now)
+        {
+            return maxAge >= 0 && now - created > maxAge + staleTime;
+        }
+
+        int size(String key)
+        {
+            return data.length + 2 * key.length();
+        }
+    }
+
+    /**
+     * @param maxBytes maximum total size of cached results
+     * @param maxEntryBytes larger results are not cached
+     */
+    public ResultCache(long maxBytes, int maxEntryBytes)
+    {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * Current version of cache contents: must be obtained before the
+     * Library session used to evaluate a query is opened.
+     */
+    public synchronized long getStamp()
+    {
+        return stamp;
+    }
+
+    /**
+     * Returns a cached result, possibly stale, or null.
+     */
+    public synchronized Result get(String key)
+    {
+        Result result = results.get(key);
+        if(result != null && result.isExpired(System.currentTimeMillis())) {
+            results.remove(key);
+            byteCount -= result.size(key);
+            result = null;
+        }
+        if(result == null)
+            ++ misses;
+        else if(result.isStale())
+            ++ staleHits;
+        else
+            ++ hits;
+        return result;
+    }
+
+    /**
+     * Called when a stale result is returned: returns true if the caller
+     * must refresh it, false if it is already being refreshed.
+     * {@link #endRefresh} must then be called when finished.
+     */
+    public synchronized boolean startRefresh(Result result)
+    {
+        if(result.refreshing)
+            return false;
+        result.refreshing = true;
+        return true;
+    }
+
+    /**
+     * Ends the refresh of a result, successful (a new result has been put)
+     * or not (another request can then refresh it).
+     */
+    public synchronized void endRefresh(Result result)
+    {
+        result.refreshing = false;
+    }
+
+    /**
+     * Stores a result, unless a member of a Library has been modified since
+     * stamp was obtained.
+     * @param roots paths of the members the result depends on
+     */
+    public void put(String key, String library, String[] roots,
+                    String contentType, byte[] data, long stamp)
+    {
+        put(key, library, roots, contentType, data, stamp, -1, 0);
+    }
+
+    /**
+     * Stores a result with a maximum age.
+     * @param maxAge time in milliseconds after which the result is stale,
+     * -1 if unlimited
+     * @param staleTime time in milliseconds during which a stale result can
+     * be returned while being refreshed
+     */
+    public synchronized void put(String key, String library, String[] roots,
+                                 String contentType, byte[] data, long stamp,
+                                 long maxAge, long staleTime)
+    {
+        if(stamp != this.stamp || data.length > maxEntryBytes)
+            return;
+        Result result = new Result();
+        result.library = library;
+        result.roots = roots;
+        result.contentType = contentType;
+        result.data = data;
+        result.created = System.currentTimeMillis();
+        result.maxAge = maxAge;
+        result.staleTime = staleTime;
+        Result old = results.put(key, result);
+        if(old != null)
+            byteCount -= old.size(key);
+        byteCount += result.size(key);
+        // evict least recently used:
+        for(Iterator<Map.Entry<String, Result>> it =
+                results.entrySet().iterator();
+            byteCount > maxBytes && it.hasNext(); )
+        {
+            Map.Entry<String, Result> lru = it.next();
+            byteCount -= lru.getValue().size(lru.getKey());
+            it.remove();
+        }
+    }
+
+    public synchronized void memberChanged(String library, String path)
+    {
+        ++ stamp;
+        for(Iterator<Map.Entry<String, Result>> it =
+                results.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<String, Result> e = it.next();
+            Result result = e.getValue();
+            if(result.library.equals(library)
+               && QueryDependencies.isAffected(result.roots, path)) {
+                byteCount -= result.size(e.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns a stream that copies the output of a request and keeps the
+     * first bytes for caching.
+     */
+    public Capture capture(ServletOutputStream output)
+    {
+        return new Capture(output, maxEntryBytes);
+    }
+
+    /**
+     * Returns a stream that only keeps output for caching: used when a
+     * result is refreshed after the response has been sent.
+     */
+    public Capture capture()
+    {
+        return new Capture(null, maxEntryBytes);
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Number of stale results returned.
+     */
+    public synchronized long getStaleHits()
+    {
+        return staleHits;
+    }
+
+    /**
+     * Current number of cached results.
+     */
+    public synchronized int size()
+    {
+        return results.size();
+    }
+
+    /**
+     * Current size in bytes of cached results.
+     */
+    public synchronized long getByteCount()
+    {
+        return byteCount;
+    }
+
+    /**
+     * Copies output to the response, and to a buffer until a size limit.
+     */
+    public static class Capture extends ServletOutputStream
+    {
+        private OutputStream out;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private int limit;
+
+        Capture(OutputStream out, int limit)
+        {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        public void write(int b)
+            throws IOException
+        {
+            if(out != null)
+                out.write(b);
+            if(copy != null) {
+                copy.write(b);
+                checkLimit();
+            }
+        }
+
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            if(out != null)
+                out.write(b, off, len);
+            if(copy != null) {
+                copy.write(b, off, len);
+                checkLimit();
+            }
+        }
+
+        public void flush()
+            throws IOException
+        {
+            if(out != null)
+                out.flush();
+        }
+
+        public void close()
+            throws IOException
+        {
+            if(out != null)
+                out.close();
+        }
+
+        /**
+         * Returns the captured output, or null if it exceeded the size limit.
+         */
+        public byte[] getData()
+        {
+            return (copy == null)? null : copy.toByteArray();
+        }
+
+        private void checkLimit()
+        {
+            if(copy.size() > limit)
+                copy = null;
+        }
+    }
+}
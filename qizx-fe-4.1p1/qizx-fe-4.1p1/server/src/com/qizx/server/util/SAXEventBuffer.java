@@ -0,0 +1,266 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Records the SAX events of a parsed document in compact arrays, so that
+ * they can be replayed later, possibly in another thread.
+ * <p>
+ * Only events relevant to the XML data model are kept: CDATA sections and
+ * entity boundaries are ignored.
+ */
+public class SAXEventBuffer extends DefaultHandler
+    implements LexicalHandler
+{
+    private static final byte START_DOCUMENT = 1;
+    private static final byte END_DOCUMENT = 2;
+    private static final byte START_PREFIX = 3;
+    private static final byte END_PREFIX = 4;
+    private static final byte START_ELEMENT = 5;
+    private static final byte END_ELEMENT = 6;
+    private static final byte CHARACTERS = 7;
+    private static final byte IGNORABLE_SPACE = 8;
+    private static final byte PI = 9;
+    private static final byte COMMENT = 10;
+    private static final byte START_DTD = 11;
+    private static final byte END_DTD = 12;
+
+    private byte[] codes = new byte[256];
+    private int codeCount;
+    private Object[] objects = new Object[256];  // names, attributes
+    private int objectCount;
+    private int[] lengths = new int[64];         // of text chunks
+    private int lengthCount;
+    private char[] chars = new char[4096];       // all text, concatenated
+    private int charCount;
+
+    /**
+     * Sends the recorded events to a handler.
+     * @param handler if it is also a LexicalHandler, receives comments and
+     * DTD events.
+     */
+    public void replay(ContentHandler handler)
+        throws SAXException
+    {
+        LexicalHandler lexical = (handler instanceof LexicalHandler)?
+                (LexicalHandler) handler : null;
+        int obj = 0, len = 0, text = 0;
+        for(int c = 0; c < codeCount; c++) {
+            switch(codes[c]) {
+            case START_DOCUMENT:
+                handler.startDocument();
+                break;
+            case END_DOCUMENT:
+                handler.endDocument();
+                break;
+            case START_PREFIX:
+                handler.startPrefixMapping((String) objects[obj],
+                                           (String) objects[obj + 1]);
+                obj += 2;
+                break;
+            case END_PREFIX:
+                handler.endPrefixMapping((String) objects[obj++]);
+                break;
+            case START_ELEMENT:
+                handler.startElement((String) objects[obj],
+                                     (String) objects[obj + 1],
+                                     (String) objects[obj + 2],
+                                     (Attributes) objects[obj + 3]);
+                obj += 4;
+                break;
+            case END_ELEMENT:
+                handler.endElement((String) objects[obj],
+                                   (String) objects[obj + 1],
+                                   (String) objects[obj + 2]);
+                obj += 3;
+                break;
+            case CHARACTERS:
+                handler.characters(chars, text, lengths[len]);
+                text += lengths[len++];
+                break;
+            case IGNORABLE_SPACE:
+                handler.ignorableWhitespace(chars, text, lengths[len]);
+                text += lengths[len++];
+                break;
+            case PI:
+                handler.processingInstruction((String) objects[obj],
+                                              (String) objects[obj + 1]);
+                obj += 2;
+                break;
+            case COMMENT:
+                if(lexical != null)
+                    lexical.comment(chars, text, lengths[len]);
+                text += lengths[len++];
+                break;
+            case START_DTD:
+                if(lexical != null)
+                    lexical.startDTD((String) objects[obj],
+                                     (String) objects[obj + 1],
+                                     (String) objects[obj + 2]);
+                obj += 3;
+                break;
+            case END_DTD:
+                if(lexical != null)
+                    lexical.endDTD();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Approximate memory footprint in bytes.
+     */
+    public long size()
+    {
+        return codeCount + 8L * objectCount + 4L * lengthCount + 2L * charCount;
+    }
+
+    // ---- recording:
+
+    public void startDocument()
+    {
+        code(START_DOCUMENT);
+    }
+
+    public void endDocument()
+    {
+        code(END_DOCUMENT);
+    }
+
+    public void startPrefixMapping(String prefix, String uri)
+    {
+        code(START_PREFIX);
+        object(prefix);
+        object(uri);
+    }
+
+    public void endPrefixMapping(String prefix)
+    {
+        code(END_PREFIX);
+        object(prefix);
+    }
+
+    public void startElement(String uri, String localName, String qName,
+                             Attributes attributes)
+    {
+        code(START_ELEMENT);
+        object(uri);
+        object(localName);
+        object(qName);
+        // the parser reuses its Attributes object:
+        object(new AttributesImpl(attributes));
+    }
+
+    public void endElement(String uri, String localName, String qName)
+    {
+        code(END_ELEMENT);
+        object(uri);
+        object(localName);
+        object(qName);
+    }
+
+    public void characters(char[] ch, int start, int length)
+    {
+        // merge consecutive chunks:
+        if(codeCount > 0 && codes[codeCount - 1] == CHARACTERS)
+            lengths[lengthCount - 1] += length;
+        else
+            code(CHARACTERS, length);
+        text(ch, start, length);
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length)
+    {
+        code(IGNORABLE_SPACE, length);
+        text(ch, start, length);
+    }
+
+    public void processingInstruction(String target, String data)
+    {
+        code(PI);
+        object(target);
+        object(data);
+    }
+
+    public void comment(char[] ch, int start, int length)
+    {
+        code(COMMENT, length);
+        text(ch, start, length);
+    }
+
+    public void startDTD(String name, String publicId, String systemId)
+    {
+        code(START_DTD);
+        object(name);
+        object(publicId);
+        object(systemId);
+    }
+
+    public void endDTD()
+    {
+        code(END_DTD);
+    }
+
+    public void startCDATA() { }
+
+    public void endCDATA() { }
+
+    public void startEntity(String name) { }
+
+    public void endEntity(String name) { }
+
+    private void code(byte code)
+    {
+        if(codeCount == codes.length) {
+            byte[] old = codes;
+            codes = new byte[2 * old.length];
+            System.arraycopy(old, 0, codes, 0, codeCount);
+        }
+        codes[codeCount++] = code;
+    }
+
+    private void code(byte code, int length)
+    {
+        code(code);
+        if(lengthCount == lengths.length) {
+            int[] old = lengths;
+            lengths = new int[2 * old.length];
+            System.arraycopy(old, 0, lengths, 0, lengthCount);
+        }
+        lengths[lengthCount++] = length;
+    }
+
+    private void object(Object value)
+    {
+        if(objectCount == objects.length) {
+            Object[] old = objects;
+            objects = new Object[2 * old.length];
+            System.arraycopy(old, 0, objects, 0, objectCount);
+        }
+        objects[objectCount++] = value;
+    }
+
+    private void text(char[] ch, int start, int length)
+    {
+        if(charCount + length > chars.length) {
+            char[] old = chars;
+            chars = new char[Math.max(2 * old.length, charCount + length)];
+            System.arraycopy(old, 0, chars, 0, charCount);
+        }
+        System.arraycopy(ch, start, chars, charCount, length);
+        charCount += length;
+    }
+}
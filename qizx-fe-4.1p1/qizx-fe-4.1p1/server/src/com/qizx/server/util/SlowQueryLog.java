@@ -0,0 +1,198 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Log of queries (eval, queryprop, XQuery Services...) slower than a
+ * threshold, written to a dedicated file.
+ * <p>
+ * A request creates an {@link Entry} when it starts, marks the end of each
+ * phase (compile, evaluate...), and calls {@link #finish} at the end. The
+ * entry is written only if the total time is over the threshold. Values of
+ * bound variables are not logged, only their type and size.
+ */
+public class SlowQueryLog
+{
+    private long threshold;
+    private boolean tracing;
+    private File file;
+    private PrintWriter out;
+    private long loggedCount;
+    private SimpleDateFormat dateFormat =
+        new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    /**
+     * Information about a query, collected during a request.
+     */
+    public static class Entry
+    {
+        String operation;
+        String user;
+        String library;
+        String query;
+        long startTime;
+        long lastMark;
+        StringBuilder phases = new StringBuilder();
+        ArrayList<String> variables = new ArrayList<String>();
+        long itemCount = -1;
+        String error;
+        StringWriter trace;
+
+        /**
+         * Marks the end of a phase of the request.
+         */
+        public void phase(String name)
+        {
+            long now = System.currentTimeMillis();
+            if(phases.length() > 0)
+                phases.append(", ");
+            phases.append(name).append(' ').append(now - lastMark).append(" ms");
+            lastMark = now;
+        }
+
+        public void setLibrary(String library)
+        {
+            this.library = library;
+        }
+
+        /**
+         * Records a bound variable, without its value.
+         * @param name local name of the variable, without '$'
+         * @param type name of the type
+         * @param size length of the value in characters or bytes, -1 if
+         * not relevant (node)
+         */
+        public void addVariable(String name, String type, long size)
+        {
+            variables.add("$" + name + " as " + type
+                          + ((size >= 0)? " (length " + size + ")" : ""));
+        }
+
+        public void setItemCount(long itemCount)
+        {
+            this.itemCount = itemCount;
+        }
+
+        /**
+         * Records the error code of a failed request.
+         */
+        public void setError(String error)
+        {
+            this.error = error;
+        }
+
+        /**
+         * Returns a writer receiving the compilation trace, or null if the
+         * trace is not logged.
+         */
+        public PrintWriter getTraceWriter()
+        {
+            return (trace == null)? null : new PrintWriter(trace, true);
+        }
+    }
+
+    /**
+     * @param threshold minimum time in ms of a logged query
+     * @param file log file, appended
+     * @param tracing true if the compilation trace is logged
+     */
+    public SlowQueryLog(long threshold, File file, boolean tracing)
+        throws IOException
+    {
+        this.threshold = threshold;
+        this.tracing = tracing;
+        this.file = file;
+        out = new PrintWriter(new OutputStreamWriter(
+                                  new FileOutputStream(file, true), "UTF-8"));
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Starts the information about a query.
+     * @param query text of the query or path of the service
+     */
+    public Entry start(String operation, String user, String query)
+    {
+        Entry e = new Entry();
+        e.operation = operation;
+        e.user = user;
+        e.query = query;
+        e.startTime = e.lastMark = System.currentTimeMillis();
+        if(tracing)
+            e.trace = new StringWriter();
+        return e;
+    }
+
+    /**
+     * Ends a query and logs it if slow.
+     * @param byteCount number of bytes sent, -1 if unknown
+     */
+    public void finish(Entry e, long byteCount)
+    {
+        long time = System.currentTimeMillis() - e.startTime;
+        if(time < threshold)
+            return;
+        StringBuilder b = new StringBuilder();
+        b.append(' ').append(e.operation).append(' ').append(time).append(" ms");
+        b.append("\n  user: ").append(e.user);
+        b.append(", library: ").append(e.library);
+        b.append("\n  status: ").append(e.error == null? "ok" : e.error);
+        if(e.itemCount >= 0)
+            b.append(", items: ").append(e.itemCount);
+        if(byteCount >= 0)
+            b.append(", bytes: ").append(byteCount);
+        if(e.phases.length() > 0)
+            b.append("\n  phases: ").append(e.phases);
+        for(String v : e.variables)
+            b.append("\n  variable: ").append(v);
+        b.append("\n  query: ").append(indent(e.query));
+        if(e.trace != null && e.trace.getBuffer().length() > 0)
+            b.append("\n  trace: ").append(indent(e.trace.toString()));
+        synchronized (this) {
+            out.print("# " + dateFormat.format(new Date(e.startTime)));
+            out.println(b);
+            out.flush();
+            ++ loggedCount;
+        }
+    }
+
+    /**
+     * Number of queries logged since start.
+     */
+    public synchronized long getLoggedCount()
+    {
+        return loggedCount;
+    }
+
+    public synchronized void close()
+    {
+        out.close();
+    }
+
+    private static String indent(String text)
+    {
+        if(text == null)
+            return null;
+        return text.trim().replace("\n", "\n    ");
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads a TAR archive (ustar, GNU long names and pax extended headers) from a
+ * stream.
+ * <p>
+ * Like ZipInputStream, after {@link #getNextEntry()} the stream returns the
+ * contents of the current entry.
+ */
+public class TarInputStream extends FilterInputStream
+{
+    // maximum size of a long name or extended header entry: a larger one is
+    // a corrupted archive
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final byte TYPE_PAX_HEADER = 'x';
+
+    private long remaining;     // bytes left in the current entry
+    private long padding;       // bytes up to the next header
+
+    /**
+     * Description of an archive entry.
+     */
+    public static class Entry
+    {
+        private String name;
+        private long size;
+        private boolean directory;
+        private long time;
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public boolean isDirectory()
+        {
+            return directory;
+        }
+
+        public long getTime()
+        {
+            return time;
+        }
+    }
+
+    public TarInputStream(InputStream in)
+    {
+        super(in);
+    }
+
+    /**
+     * Skips the rest of the current entry and reads the next header.
+     * @return the next file or directory entry, or null at end of archive.
+     * Other kinds of entries (links, devices) are skipped.
+     */
+    public Entry getNextEntry()
+        throws IOException
+    {
+        String longName = null;
+        long longSize = -1;     // from a pax header
+        for(;;) {
+            skipFully(remaining + padding);
+            remaining = padding = 0;
+
+            byte[] h = new byte[TarOutputStream.BLOCK];
+            if(!readBlock(h) || h[0] == 0)
+                return null;    // end of archive
+
+            Entry e = new Entry();
+            e.size = (longSize >= 0)? longSize : octal(h, 124, 12);
+            e.time = octal(h, 136, 12) * 1000;
+            byte type = h[156];
+            if(type == TarOutputStream.TYPE_LONG_NAME || type == TYPE_PAX_HEADER)
+                e.size = octal(h, 124, 12);     // size of the header itself
+            remaining = e.size;
+            long rest = e.size % TarOutputStream.BLOCK;
+            padding = (rest == 0)? 0 : TarOutputStream.BLOCK - rest;
+
+            if(type == TarOutputStream.TYPE_LONG_NAME) {
+                longName = string(readHeader(e.size), 0, (int) e.size);
+                continue;
+            }
+            if(type == TYPE_PAX_HEADER) {
+                byte[] data = readHeader(e.size);
+                String path = paxRecord(data, "path");
+                if(path != null)
+                    longName = path;
+                String size = paxRecord(data, "size");
+                if(size != null) {
+                    try {
+                        longSize = Long.parseLong(size);
+                    }
+                    catch (NumberFormatException ex) {
+                        throw new IOException("invalid tar size " + size);
+                    }
+                }
+                continue;
+            }
+            if(longName != null)
+                e.name = longName;
+            else {
+                e.name = string(h, 0, TarOutputStream.NAME_LENGTH);
+                String prefix = string(h, 345, 155);  // ustar
+                if(prefix.length() > 0 && h[257] == 'u')
+                    e.name = prefix + "/" + e.name;
+            }
+            longName = null;
+            longSize = -1;
+            if(type == TarOutputStream.TYPE_DIRECTORY || e.name.endsWith("/")) {
+                e.directory = true;
+                return e;
+            }
+            if(type == TarOutputStream.TYPE_FILE || type == 0 || type == '7')
+                return e;
+            // other types, including pax global headers: ignored
+        }
+    }
+
+    public int read()
+        throws IOException
+    {
+        if(remaining <= 0)
+            return -1;
+        int b = in.read();
+        if(b >= 0)
+            -- remaining;
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len)
+        throws IOException
+    {
+        if(remaining <= 0)
+            return -1;
+        int count = in.read(b, off, (int) Math.min(len, remaining));
+        if(count > 0)
+            remaining -= count;
+        return count;
+    }
+
+    public long skip(long n)
+        throws IOException
+    {
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    public int available()
+        throws IOException
+    {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    private boolean readBlock(byte[] block)
+        throws IOException
+    {
+        int count = 0;
+        while(count < block.length) {
+            int n = in.read(block, count, block.length - count);
+            if(n < 0) {
+                if(count == 0)
+                    return false;
+                throw new EOFException("truncated tar header");
+            }
+            count += n;
+        }
+        return true;
+    }
+
+    // contents of a long name or extended header entry
+    private byte[] readHeader(long size)
+        throws IOException
+    {
+        if(size < 0 || size > MAX_HEADER_SIZE)
+            throw new IOException("invalid tar header size " + size);
+        byte[] data = new byte[(int) size];
+        readFully(data);
+        remaining = 0;
+        return data;
+    }
+
+    // value of a record "length key=value\n" of a pax extended header
+    private static String paxRecord(byte[] data, String key)
+        throws IOException
+    {
+        String value = null;
+        for(int pos = 0; pos < data.length && data[pos] != 0; ) {
+            int length = 0, p = pos;
+            for( ; p < data.length && data[p] >= '0' && data[p] <= '9'
+                   && length <= data.length; p++)
+                length = length * 10 + (data[p] - '0');
+            int end = pos + length;
+            if(p == pos || p >= data.length || data[p] != ' '
+               || end <= p + 1 || end > data.length || data[end - 1] != '\n')
+                throw new IOException("invalid tar extended header");
+            String record = string(data, p + 1, end - 1 - (p + 1));
+            int eq = record.indexOf('=');
+            if(eq < 0)
+                throw new IOException("invalid tar extended header");
+            if(record.substring(0, eq).equals(key))
+                value = record.substring(eq + 1);   // last one wins
+            pos = end;
+        }
+        return value;
+    }
+
+    private void readFully(byte[] data)
+        throws IOException
+    {
+        int count = 0;
+        while(count < data.length) {
+            int n = in.read(data, count, data.length - count);
+            if(n < 0)
+                throw new EOFException("truncated tar entry");
+            count += n;
+        }
+    }
+
+    private void skipFully(long n)
+        throws IOException
+    {
+        byte[] buffer = null;
+        while(n > 0) {
+            long skipped = in.skip(n);
+            if(skipped <= 0) {  // some streams do not skip: read instead
+                if(buffer == null)
+                    buffer = new byte[TarOutputStream.BLOCK];
+                skipped = in.read(buffer, 0, (int) Math.min(n, buffer.length));
+                if(skipped < 0)
+                    throw new EOFException("truncated tar entry");
+            }
+            n -= skipped;
+        }
+    }
+
+    // octal number, or GNU base-256 if the high bit of the first byte is set
+    private static long octal(byte[] h, int offset, int length)
+    {
+        int end = offset + length;
+        if((h[offset] & 0x80) != 0) {
+            long value = ((h[offset] & 0x40) != 0)? -1 : 0;
+            for(int i = offset + 1; i < end; i++)
+                value = (value << 8) | (h[i] & 0xff);
+            return value;
+        }
+        long value = 0;
+        for(int i = offset; i < end; i++) {
+            byte b = h[i];
+            if(b >= '0' && b <= '7')
+                value = value * 8 + (b - '0');
+            else if(b == 0 || (b == ' ' && value > 0))
+                break;
+        }
+        return value;
+    }
+
+    // zero-terminated string
+    private static String string(byte[] h, int offset, int length)
+    {
+        int end = offset;
+        while(end < offset + length && h[end] != 0)
+            ++ end;
+        try {
+            return new String(h, offset, end - offset, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            return new String(h, offset, end - offset);  // cannot happen
+        }
+    }
+}
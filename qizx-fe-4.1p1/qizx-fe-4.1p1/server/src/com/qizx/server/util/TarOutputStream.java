@@ -0,0 +1,196 @@
+/*
+ *    Qizx Free_Engine-4.1p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Writes a TAR archive (ustar format, with GNU long names) to a stream.
+ * Sizes and times too large for the octal fields (entries of 8 Gb or more)
+ * use the base-256 encoding of GNU tar.
+ * <p>
+ * The size of an entry must be known when the entry is started.
+ */
+public class TarOutputStream extends FilterOutputStream
+{
+    static final int BLOCK = 512;
+    static final int NAME_LENGTH = 100;
+    static final byte TYPE_FILE = '0';
+    static final byte TYPE_DIRECTORY = '5';
+    static final byte TYPE_LONG_NAME = 'L';
+    static final String LONG_NAME = "././@LongLink";
+
+    private long remaining;     // bytes to write in the current entry
+    private long written;       // bytes written in the current entry
+
+    public TarOutputStream(OutputStream out)
+    {
+        super(out);
+    }
+
+    /**
+     * Starts a file entry.
+     * @param name relative path of the entry, with '/' as separator
+     * @param size exact number of bytes that will be written
+     * @param modified last modification time in milliseconds
+     */
+    public void putNextEntry(String name, long size, long modified)
+        throws IOException
+    {
+        putHeader(name, size, modified, TYPE_FILE);
+        remaining = size;
+        written = 0;
+    }
+
+    /**
+     * Adds a directory entry.
+     */
+    public void putDirectoryEntry(String name, long modified)
+        throws IOException
+    {
+        if(!name.endsWith("/"))
+            name += "/";
+        putHeader(name, 0, modified, TYPE_DIRECTORY);
+        remaining = written = 0;
+    }
+
+    /**
+     * Terminates the current entry: pads to a block boundary.
+     */
+    public void closeEntry()
+        throws IOException
+    {
+        if(remaining != 0)
+            throw new IOException("tar entry: " + remaining + " bytes missing");
+        pad(written);
+        written = 0;
+    }
+
+    public void write(int b)
+        throws IOException
+    {
+        if(remaining < 1)
+            throw new IOException("tar entry: size exceeded");
+        out.write(b);
+        -- remaining;
+        ++ written;
+    }
+
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        if(len > remaining)
+            throw new IOException("tar entry: size exceeded");
+        out.write(b, off, len);
+        remaining -= len;
+        written += len;
+    }
+
+    /**
+     * Writes the end-of-archive marker, without closing the stream.
+     */
+    public void finish()
+        throws IOException
+    {
+        out.write(new byte[2 * BLOCK]);
+        out.flush();
+    }
+
+    public void close()
+        throws IOException
+    {
+        finish();
+        super.close();
+    }
+
+    private void putHeader(String name, long size, long modified, byte type)
+        throws IOException
+    {
+        byte[] bname = utf8(name);
+        if(bname.length > NAME_LENGTH) {
+            // GNU extension: name in a pseudo-entry
+            out.write(header(utf8(LONG_NAME), bname.length + 1, 0, TYPE_LONG_NAME));
+            out.write(bname);
+            out.write(0);
+            pad(bname.length + 1);
+        }
+        out.write(header(bname, size, modified, type));
+    }
+
+    private byte[] header(byte[] name, long size, long modified, byte type)
+    {
+        byte[] h = new byte[BLOCK];
+        System.arraycopy(name, 0, h, 0, Math.min(name.length, NAME_LENGTH));
+        octal(h, 100, 8, type == TYPE_DIRECTORY? 0755 : 0644);  // mode
+        octal(h, 108, 8, 0);                                    // uid
+        octal(h, 116, 8, 0);                                    // gid
+        number(h, 124, 12, size);
+        number(h, 136, 12, modified / 1000);
+        h[156] = type;
+        System.arraycopy(utf8("ustar"), 0, h, 257, 5);          // magic
+        h[263] = '0';
+        h[264] = '0';                                           // version
+        // checksum computed with spaces in the checksum field:
+        for(int i = 148; i < 156; i++)
+            h[i] = ' ';
+        long sum = 0;
+        for(int i = 0; i < BLOCK; i++)
+            sum += h[i] & 0xff;
+        octal(h, 148, 7, sum);
+        return h;
+    }
+
+    // octal number if it fits, else GNU base-256: big-endian two's
+    // complement with the high bit of the first byte set
+    private static void number(byte[] h, int offset, int length, long value)
+    {
+        if(value >= 0 && value < 1L << (3 * (length - 1))) {
+            octal(h, offset, length, value);
+            return;
+        }
+        long v = value;
+        for(int pos = offset + length; --pos >= offset; v >>= 8)
+            h[pos] = (byte) v;
+        if(value >= 0)
+            h[offset] = (byte) 0x80;
+    }
+
+    // zero-terminated octal number
+    private static void octal(byte[] h, int offset, int length, long value)
+    {
+        String s = Long.toOctalString(value);
+        int pos = offset + length - 1;
+        h[pos--] = 0;
+        for(int i = s.length(); --i >= 0 && pos >= offset; )
+            h[pos--] = (byte) s.charAt(i);
+        while(pos >= offset)
+            h[pos--] = '0';
+    }
+
+    private void pad(long size)
+        throws IOException
+    {
+        int rest = (int) (size % BLOCK);
+        if(rest > 0)
+            out.write(new byte[BLOCK - rest]);
+    }
+
+    private static byte[] utf8(String s)
+    {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            return s.getBytes();    // cannot happen
+        }
+    }
+}
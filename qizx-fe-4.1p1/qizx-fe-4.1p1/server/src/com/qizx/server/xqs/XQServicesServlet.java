@@ -10,25 +10,27 @@ package com.qizx.server.xqs;
 
 import com.qizx.api.*;
 import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.JSONItemWriter;
+import com.qizx.server.util.JSONWriter;
 import com.qizx.server.util.QizxDriver;
 import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.QueryDependencies;
+import com.qizx.server.util.QueryRegistry.RunningQuery;
 import com.qizx.server.util.RequestException;
+import com.qizx.server.util.ResourceLimits;
+import com.qizx.server.util.ResultCache;
 import com.qizx.server.util.ServletBase;
 import com.qizx.util.NamespaceContext;
 import com.qizx.util.basic.FileUtil;
 import com.qizx.util.basic.PathUtil;
-import com.qizx.xdm.DocumentParser;
 import com.qizx.xdm.IQName;
 
-import com.xmlmind.multipartreq.Part;
-
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.util.Map;
+import java.util.TreeMap;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -36,10 +38,43 @@ import javax.servlet.ServletException;
 
 /**
  *  Servlet implementing "XQuery Services".
+ *  <p>
+ *  Options in namespace {@link #OPTION_NS} (prefix 'xqs') control the
+ *  execution of a service: xqs:max-items, xqs:max-output (Kb) and
+ *  xqs:max-memory (Mb) replace the resource limits of the user.
+ *  <p>
+ *  Responses of read-only services are cached when the result cache is
+ *  enabled and the Library members they depend on can be determined; they
+ *  are invalidated when these members change. Option xqs:cache modifies
+ *  this, with comma-separated directives:
+ *  <ul>
+ *  <li>max-age=N: the response is fresh for N seconds. It is cached even if
+ *  its dependencies are not known, and then invalidated by any change in
+ *  the Library.
+ *  <li>stale-while-revalidate=N: during N seconds after max-age, the stale
+ *  response is returned at once, and the request that gets it first
+ *  re-evaluates the service after sending it, to refresh the cache.
+ *  <li>no-store: the response is never cached.
+ *  </ul>
+ *  Responses are cached per service, user and request parameters.
+ *  <p>
+ *  With output method json, the response is an array of items; an error
+ *  occurring after part of it has been flushed is appended as a last
+ *  element, an object with member "error" (see
+ *  {@link JSONItemWriter#putError}).
  */
 public class XQServicesServlet extends ServletBase
 {
     public static final String PARAMETER_NS = "com.qizx.server.xqs.parameter";
+    public static final String OPTION_NS = "com.qizx.server.xqs.option";
+
+    // directives of option xqs:cache
+    static class CacheOption
+    {
+        boolean noStore;
+        long maxAge = -1;   // ms
+        long staleTime;     // ms
+    }
     
     private static final IQName QN_SERVICE = IQName.get("service");
     private static final IQName QN_SERVICES = IQName.get("services");
@@ -51,6 +86,10 @@ public class XQServicesServlet extends ServletBase
     private static final IQName QN_RESULT_TYPE = IQName.get("result-type");
     private static final IQName QN_DOCUMENTATION = IQName.get("documentation");
     
+    // output:method value and output option for JSON output
+    private static final String JSON_METHOD = "json";
+    private static final String JSON_NODES_OPTION = "json-nodes";
+    
     public void init()
         throws ServletException
     {
@@ -73,6 +112,8 @@ public class XQServicesServlet extends ServletBase
 
     public static class Request extends QizxRequestBase
     {
+        private JSONItemWriter jsonOut;     // for output method json
+
         public Request()
         {
         }
@@ -82,6 +123,24 @@ public class XQServicesServlet extends ServletBase
             return "xqs"; // whatever
         }
 
+        protected boolean putErrorRecord(String code, String message)
+            throws IOException
+        {
+            if(jsonOut == null)
+                return false;
+            JSONWriter out = jsonOut.getWriter();
+            out.closeTo(1);     // back in the array of items
+            if(out.getDepth() == 0)
+                out.startArray();
+            out.startObject();
+            out.name("error");
+            jsonOut.putError(code, message);
+            out.endObject();
+            out.endArray();
+            out.flush();
+            return true;
+        }
+
         public void handleGet()
             throws ServletException, IOException
         {
@@ -94,8 +153,15 @@ public class XQServicesServlet extends ServletBase
             // relative path of the stored XQ script:
             String queryPath =
                 PathUtil.normalizePath(request.getPathInfo(), true);
+            startQueryLog(queryPath, false);
+            ResultCache.Result refreshed = null;    // stale result refreshed
 
             try {
+                QizxDriver driver = requireQizxDriver();
+                ResultCache results = isMultipart()? null
+                                          : driver.getResultCache();
+                long stamp = (results == null)? 0 : results.getStamp();
+                
                 // Finds a compiled expression representing the stored query
                 // Based on session pooling and caching of expr. for each session
                 Expression expr = getScript(queryPath);
@@ -109,6 +175,35 @@ public class XQServicesServlet extends ServletBase
                     return;
                 }
                 
+                CacheOption caching = cacheOption(expr.getContext());
+                String[] roots = null;
+                if(results != null && !caching.noStore) {
+                    roots = QueryDependencies.getRoots(expr.getSource());
+                    if(roots == null && caching.maxAge >= 0)
+                        roots = new String[] { QueryDependencies.ROOT };
+                }
+                String resultKey = null;
+                ResultCache.Capture capture = null;
+                if(roots != null) {
+                    resultKey = resultKey(queryPath, expr.getSource());
+                    ResultCache.Result result = results.get(resultKey);
+                    if(result != null) {
+                        boolean refresh = result.isStale()
+                                          && results.startRefresh(result);
+                        response.setContentType(result.getContentType());
+                        response.setContentLength(result.getData().length);
+                        output.write(result.getData());
+                        if(!refresh)
+                            return;
+                        // the client has its response: refresh the cache
+                        output.close();
+                        refreshed = result;
+                        output = capture = results.capture();
+                    }
+                    else
+                        output = capture = results.capture(output);
+                }
+                
                 // look for global variables with NS matching 'req',
                 // and check if there is a matching request parameter
                 XQueryContext xctx = expr.getContext();
@@ -116,12 +211,15 @@ public class XQServicesServlet extends ServletBase
                     if(PARAMETER_NS.equals(varName.getNamespaceURI()))
                     {
                         SequenceType type = xctx.getVariableType(varName);
-                        bindParameter(expr, varName, type.getItemType());
+                        bindParameter(expr, varName, type.getItemType(),
+                                      varName.getLocalPart());
                     }
                 }
                 
                 // look for options in script: 
                 String mimeType = null, format = "XML";
+                String jsonNodes = JSONItemWriter.JSONML;
+                watchClient();
                 XMLSerializer resout = new XMLSerializer(output, "UTF-8");
                 for(QName name : xctx.getOptionNames()) {
                     //println("option "+name+" "+xctx.getOptionValue(name));
@@ -130,6 +228,11 @@ public class XQServicesServlet extends ServletBase
                         String sname = name.getLocalPart();
                         if("content-type".equalsIgnoreCase(sname))
                             mimeType = value;
+                        else if(JSON_NODES_OPTION.equalsIgnoreCase(sname))
+                            jsonNodes = value;
+                        else if("method".equalsIgnoreCase(sname)
+                                && JSON_METHOD.equalsIgnoreCase(value))
+                            format = JSON_METHOD;
                         else {
                             if("method".equalsIgnoreCase(sname))
                                 format = value;
@@ -144,81 +247,172 @@ public class XQServicesServlet extends ServletBase
                         mimeType = "text/xml";
                     else if("text".equalsIgnoreCase(format))
                         mimeType = "text/plain";
+                    else if(JSON_METHOD.equals(format))
+                        mimeType = JSONWriter.MIME_JSON + "; charset=UTF-8";
                     else
                         mimeType = "text/" + format.toLowerCase();
                 }
                 response.setContentType(mimeType);
                 
-                ItemSequence seq = expr.evaluate();
-                for( ; seq.moveToNextItem(); )
-                {
-                    Item it = seq.getCurrentItem();
-                    if(it.isNode())
-                        resout.putNodeCopy(it.getNode(), 0);
-                    else
-                        println(it.getString());
-                }
+                serviceLimits = serviceLimits(xctx);
+                RunningQuery running = startQuery(libSession.getName(), expr);
+                try {
+                    ItemSequence seq = expr.evaluate();
+                    slowLogPhase("evaluate");
+                    if(JSON_METHOD.equals(format)) {
+                        // array of items, see JSONItemWriter
+                        jsonOut = new JSONItemWriter(
+                            new JSONWriter(new BufferedWriter(
+                                new OutputStreamWriter(output, "UTF-8"))), jsonNodes);
+                        jsonOut.getWriter().startArray();
+                        for( ; seq.moveToNextItem(); ) {
+                            countItem();
+                            jsonOut.putItem(seq);
+                            if(flushDue())
+                                jsonOut.getWriter().flush();
+                        }
+                        jsonOut.getWriter().endArray();
+                        jsonOut.getWriter().flush();
+                    }
+                    else {
+                        for( ; seq.moveToNextItem(); )
+                        {
+                            countItem();
+                            Item it = seq.getCurrentItem();
+                            if(it.isNode())
+                                resout.putNodeCopy(it.getNode(), 0);
+                            else
+                                println(it.getString());
+                            if(flushDue())
+                                resout.flush();
+                        }
+                    }
                 
-                resout.flush();
+                    resout.flush();
+                    slowLogPhase("serialize");
+                    setItemCount(seq.getPosition());
+                }
+                catch (EvaluationException e) {
+                    checkStopped(running, e);
+                    throw e;
+                }
+                catch (DataModelException e) {
+                    checkStopped(running, e);
+                    throw e;
+                }
+                catch (IOException e) {
+                    checkStopped(running, e);
+                    throw e;
+                }
+                finally {
+                    endQuery(running);
+                }
+                byte[] data = (capture == null)? null : capture.getData();
+                if(data != null && !libSession.isModified())
+                    results.put(resultKey, libSession.getName(), roots,
+                                (refreshed != null)? refreshed.getContentType()
+                                                   : response.getContentType(),
+                                data, stamp, caching.maxAge,
+                                caching.staleTime);
             }
             catch (RequestException e) {
-                throw (e);
+                if(refreshed == null)
+                    throw (e);
+                log("refresh of " + queryPath + " failed: " + e.getMessage());
             }
             catch (Exception e) {
-                throw new RequestException(e);
+                if(refreshed == null)
+                    throw new RequestException(e);
+                log("refresh of " + queryPath + " failed: " + e);
+            }
+            finally {
+                if(refreshed != null)
+                    requireQizxDriver().getResultCache().endRefresh(refreshed);
             }
         }
 
-        private void bindParameter(Expression expr,
-                                   QName name, ItemType type)
-            throws QizxException, IOException, ServletException, SAXException
+        // directives of option xqs:cache
+        private CacheOption cacheOption(XQueryContext xctx)
+            throws RequestException
         {
-            String pname = name.getLocalPart();
-            
-            if(type.getNodeKind() != ItemType.ATOMIC_TYPE) {
-                InputSource data = openXMLSource(pname);
-                if(data == null)
-                    return;
-                Node node = DocumentParser.parse(data);
-                if(type.getNodeKind() == Node.ELEMENT)   // must be document
-                    node = node.getFirstChild(); // fails if leading PI comment
-                expr.bindVariable(name, node);
-                return;
+            CacheOption caching = new CacheOption();
+            String value = null;
+            for(QName name : xctx.getOptionNames())
+                if(OPTION_NS.equals(name.getNamespaceURI())
+                   && "cache".equals(name.getLocalPart()))
+                    value = xctx.getOptionValue(name);
+            if(value == null)
+                return caching;
+            String[] directives = value.split(",");
+            for(int d = 0; d < directives.length; d++) {
+                String directive = directives[d].trim();
+                int eq = directive.indexOf('=');
+                String dname = (eq < 0)? directive
+                                       : directive.substring(0, eq).trim();
+                try {
+                    if("no-store".equals(dname))
+                        caching.noStore = true;
+                    else if("max-age".equals(dname))
+                        caching.maxAge = 1000 * Long.parseLong(
+                                             directive.substring(eq + 1).trim());
+                    else if("stale-while-revalidate".equals(dname))
+                        caching.staleTime = 1000 * Long.parseLong(
+                                             directive.substring(eq + 1).trim());
+                    else if(dname.length() > 0)
+                        throw new NumberFormatException();
+                }
+                catch (RuntimeException e) {
+                    throw new RequestException(SERVER, "invalid directive '"
+                                  + directive + "' of option xqs:cache");
+                }
             }
-            Part part = getPart(pname);
-            if(part != null) {
-                if("hexBinary".equals(type.getShortName())
-                     || "base64Binary".equals(type.getShortName())) {
-                    InputStream in = part.getInputStream();
-                    byte[] data = FileUtil.loadBytes(in);
-                    in.close();
-                    expr.bindVariable(name, data, type);
+            return caching;
+        }
+
+        // resource limits defined by options of the service, or null
+        private ResourceLimits serviceLimits(XQueryContext xctx)
+            throws RequestException
+        {
+            long[] values = new long[3];
+            boolean defined = false;
+            for(QName name : xctx.getOptionNames()) {
+                if(!OPTION_NS.equals(name.getNamespaceURI()))
+                    continue;
+                String sname = name.getLocalPart();
+                int index = "max-items".equals(sname)? 0
+                            : "max-output".equals(sname)? 1
+                            : "max-memory".equals(sname)? 2 : -1;
+                if(index < 0)
+                    continue;
+                String value = xctx.getOptionValue(name).trim();
+                try {
+                    values[index] = Long.parseLong(value);
+                    defined = true;
                 }
-                else if(!"anyType".equals(type.getShortName())) {
-                    String charset = getTextPartCharset(part);
-                    
-                    InputStream in = part.getInputStream();
-                    String value = FileUtil.loadString(in, charset);
-                    in.close();
-                    expr.bindVariable(name, value, type);
+                catch (NumberFormatException e) {
+                    throw new RequestException(SERVER, "invalid value of option xqs:"
+                                               + sname + ": " + value);
                 }
-                // else do nothing: 
-                // TODO lazy access through specialized XQ ext functions
-                return;
             }
-            
-            String value = getParameter(pname);            
-            if(value != null)
-                expr.bindVariable(name, value, type);
+            return defined? new ResourceLimits(values[0], values[1] * 1024,
+                                               values[2] * 1048576L) : null;
         }
 
-        private String getTextPartCharset(Part part)
+        // identifies a result: service, user, parameters and script text
+        private String resultKey(String queryPath, String source)
         {
-            String contentType = part.getContentType();
-            String PLAIN_TEXT_TYPE = "text/plain; charset=";
-            if(contentType.startsWith(PLAIN_TEXT_TYPE))
-                return contentType.substring(PLAIN_TEXT_TYPE.length());
-            return "UTF-8";
+            StringBuilder key = new StringBuilder("xqs:");
+            key.append(queryPath).append('\u0000').append(getUserName());
+            TreeMap<String, String[]> params = new TreeMap<String, String[]>();
+            Map<?, ?> parameters = request.getParameterMap();
+            for(Map.Entry<?, ?> param : parameters.entrySet())
+                params.put((String) param.getKey(), (String[]) param.getValue());
+            for(Map.Entry<String, String[]> param : params.entrySet()) {
+                key.append('\u0000').append(param.getKey());
+                for(String value : param.getValue())
+                    key.append('\u0001').append(value);
+            }
+            return key.append('\u0000').append(source).toString();
         }
 
         /**
@@ -251,6 +445,7 @@ public class XQServicesServlet extends ServletBase
         {
             Library lib = acquireLibSession(driver.getServicesDefaultLibrary());
             lib.getContext().declarePrefix("param", PARAMETER_NS);
+            lib.getContext().declarePrefix("xqs", OPTION_NS);
             return lib;
         }
 